@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/***
+ * An application context backed by a temporary folder and in memory preferences.
+ */
+public final class BenchmarkContext extends Context {
+
+    private final Map<String, Preferences> preferences = new HashMap<>();
+    private final File filesDir;
+
+    public BenchmarkContext() throws IOException {
+        filesDir = File.createTempFile("http-benchmark", "");
+        if (!filesDir.delete() || !filesDir.mkdirs())
+            throw new IOException("Unable to create " + filesDir);
+    }
+
+    /***
+     * Deletes the files written by the benchmark.
+     */
+    public void delete() {
+        delete(filesDir);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        Preferences shared = preferences.get(name);
+        if (shared == null) {
+            shared = new Preferences();
+            preferences.put(name, shared);
+        }
+        return shared;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    @Override
+    public File getCacheDir() {
+        File cacheDir = new File(filesDir, "cache");
+        cacheDir.mkdirs();
+        return cacheDir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private static final class Preferences implements SharedPreferences {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            Object value = values.get(key);
+            return value instanceof Integer ? (Integer) value : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+            Object value = values.get(key);
+            return value instanceof Set ? (Set<String>) value : defValues;
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, Object> changes = new HashMap<>();
+                private final Set<String> removals = new HashSet<>();
+                private boolean clear;
+
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    changes.put(key, new HashSet<>(values));
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    removals.add(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    clear = true;
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (Preferences.this) {
+                        if (clear)
+                            values.clear();
+                        for (String key : removals)
+                            values.remove(key);
+                        values.putAll(changes);
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * The cookie work done by every request against a large jar: building the Cookie header, as
+ * attachCookies does, and storing the Set-Cookie headers of a response, as readCookies does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieJarBenchmark {
+
+    private static final String[] SET_COOKIE_HEADERS = {
+            "session=3f2a9c; Path=/; HttpOnly",
+            "csrf=91bd7e; Path=/api",
+            "theme=dark; Max-Age=86400; Path=/",
+            "tracking=abc123; Domain=example.com; Path=/",
+            "lang=en; Path=/"
+    };
+
+    @Param({"50", "500"})
+    public int cookieCount;
+
+    private BenchmarkContext context;
+    private HttpCookieStore cookieStore;
+    private URI requestUri;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        cookieStore = new HttpCookieStore(context);
+        fill(cookieStore, cookieCount);
+        requestUri = URI.create("https://host3.example.com/api/items/7");
+    }
+
+    @TearDown
+    public void tearDown() {
+        cookieStore.flush();
+        context.delete();
+    }
+
+    @Benchmark
+    public String attachCookies() {
+        return cookieStore.getCookieHeader(requestUri);
+    }
+
+    @Benchmark
+    public void readCookies(Blackhole blackhole) {
+        for (String header : SET_COOKIE_HEADERS) {
+            List<HttpCookie> cookies = HttpCookie.parse("Set-Cookie: " + header);
+            for (HttpCookie cookie : cookies)
+                cookieStore.add(requestUri, cookie);
+            blackhole.consume(cookies);
+        }
+    }
+
+    /***
+     * Spreads cookies over 10 hosts of the same site, at a few path depths.
+     */
+    static void fill(HttpCookieStore cookieStore, int cookieCount) {
+        String[] paths = {"/", "/api", "/api/items", "/static"};
+        for (int i = 0; i < cookieCount; i++) {
+            URI origin = URI.create("https://host" + (i % 10) + ".example.com" + paths[i % paths.length] + "/");
+            HttpCookie cookie = new HttpCookie("cookie" + i, "value" + i);
+            cookie.setPath(paths[i % paths.length]);
+            cookie.setMaxAge(86400);
+            cookieStore.add(origin, cookie);
+        }
+    }
+}
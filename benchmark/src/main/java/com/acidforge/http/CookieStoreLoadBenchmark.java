@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Time for a new {@link HttpCookieStore} to replay the persisted jar, as on a cold start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieStoreLoadBenchmark {
+
+    @Param({"100", "1000"})
+    public int cookieCount;
+
+    private BenchmarkContext context;
+    private URI requestUri;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        HttpCookieStore cookieStore = new HttpCookieStore(context);
+        CookieJarBenchmark.fill(cookieStore, cookieCount);
+        cookieStore.flush();
+        requestUri = URI.create("https://host3.example.com/api/items/7");
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.delete();
+    }
+
+    @Benchmark
+    public String loadAndAttach() {
+        return new HttpCookieStore(context).getCookieHeader(requestUri);
+    }
+}
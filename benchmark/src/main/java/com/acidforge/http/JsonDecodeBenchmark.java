@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.net.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Decoding of a large Json list, as a whole tree against element by element with an adapter.
+ * Run with {@code -prof gc} to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx256m"})
+public class JsonDecodeBenchmark {
+
+    @Param({"100000"})
+    public int elementCount;
+
+    private BenchmarkContext context;
+    private LoopbackServer server;
+    private ConnectionPool connectionPool;
+    private ResponseDecoders decoders;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        server = new LoopbackServer();
+        connectionPool = new ConnectionPool();
+        decoders = new ResponseDecoders().register(MediaType.JSON_UTF_8,
+                new JsonDecoder().register(Item.class, new JsonDecoder.Adapter<Item>() {
+                    @Override
+                    public Item read(JsonReader reader) throws IOException {
+                        Item item = new Item();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            if (name.equals("id"))
+                                item.id = reader.nextLong();
+                            else if (name.equals("name"))
+                                item.name = reader.nextString();
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                        return item;
+                    }
+                }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        context.delete();
+    }
+
+    @Benchmark
+    public long decodeTree() throws IOException {
+        final long[] count = new long[1];
+        HttpRequest request = new HttpRequest(context, server.url("/list/" + elementCount)) {
+            @Override
+            public void responseStream(InputStream stream) throws Exception {
+                count[0] = decode(stream, List.class).size();
+            }
+        };
+        execute(request);
+        return count[0];
+    }
+
+    @Benchmark
+    public long decodeElements() throws IOException {
+        final long[] ids = new long[1];
+        HttpRequest request = new HttpRequest(context, server.url("/list/" + elementCount)) {
+            @Override
+            public void responseStream(InputStream stream) throws Exception {
+                decodeElements(stream, Item.class, new ResponseDecoder.ElementCallback<Item>() {
+                    @Override
+                    public void onElement(Item item) {
+                        ids[0] += item.id;
+                    }
+                });
+            }
+        };
+        execute(request);
+        return ids[0];
+    }
+
+    private void execute(HttpRequest request) throws IOException {
+        request.setConnectionPool(connectionPool);
+        request.setDecoders(decoders);
+        request.getCall().execute();
+    }
+
+    static final class Item {
+        long id;
+        String name;
+    }
+}
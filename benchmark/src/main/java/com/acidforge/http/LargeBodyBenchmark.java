@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.net.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Streaming of large bodies in both directions against the loopback server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx256m"})
+public class LargeBodyBenchmark {
+
+    @Param({"16777216"})
+    public int bodySize;
+
+    private BenchmarkContext context;
+    private LoopbackServer server;
+    private ConnectionPool connectionPool;
+    private File target;
+    private ByteBuffer buffer;
+    private byte[] upload;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        server = new LoopbackServer();
+        connectionPool = new ConnectionPool();
+        target = new File(context.getFilesDir(), "download.bin");
+        buffer = ByteBuffer.allocate(bodySize);
+        upload = new byte[bodySize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        context.delete();
+    }
+
+    @Benchmark
+    public int downloadToFile() throws IOException {
+        HttpRequest request = newRequest(HttpMethod.GET, "/bytes/" + bodySize, ResponseSinks.toFile(target));
+        return request.getCall().execute();
+    }
+
+    @Benchmark
+    public int downloadToBuffer() throws IOException {
+        buffer.clear();
+        HttpRequest request = newRequest(HttpMethod.GET, "/bytes/" + bodySize, ResponseSinks.toByteBuffer(buffer));
+        return request.getCall().execute();
+    }
+
+    @Benchmark
+    public int upload() throws IOException {
+        HttpRequest request = newRequest(HttpMethod.PUT, "/upload", ResponseSinks.discard());
+        request.setRequestBody(RequestBody.create(MediaType.OCTET_STREAM, upload));
+        return request.getCall().execute();
+    }
+
+    private HttpRequest newRequest(HttpMethod method, String path, ResponseSink sink) throws IOException {
+        HttpRequest request = new DownloadRequest(context, server.url(path), method, sink);
+        request.setConnectionPool(connectionPool);
+        return request;
+    }
+}
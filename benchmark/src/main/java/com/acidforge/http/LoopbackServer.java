@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/***
+ * An in-process http server bound to the loopback interface.
+ * <ul>
+ * <li>/json answers a small Json document, echoing the request body if there's one.</li>
+ * <li>/bytes/{count} streams count bytes.</li>
+ * <li>/list/{count} streams a Json array of count small Json documents.</li>
+ * <li>/upload reads and discards the request body.</li>
+ * </ul>
+ */
+public final class LoopbackServer {
+
+    static final byte[] SMALL_JSON = "{\"id\":42,\"name\":\"benchmark\",\"tags\":[\"a\",\"b\",\"c\"],\"active\":true}"
+            .getBytes();
+
+    static {
+        // the JDK server otherwise leaves Nagle on, adding delayed ACK pauses to small responses
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public LoopbackServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        executor = Executors.newFixedThreadPool(16);
+        server.setExecutor(executor);
+        server.createContext("/json", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = read(exchange.getRequestBody());
+                byte[] response = body.length > 0 ? body : SMALL_JSON;
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.createContext("/bytes/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long count = Long.parseLong(exchange.getRequestURI().getPath().substring("/bytes/".length()));
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, count);
+                byte[] chunk = new byte[64 * 1024];
+                OutputStream stream = exchange.getResponseBody();
+                while (count > 0) {
+                    int length = (int) Math.min(chunk.length, count);
+                    stream.write(chunk, 0, length);
+                    count -= length;
+                }
+                exchange.close();
+            }
+        });
+        server.createContext("/list/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int count = Integer.parseInt(exchange.getRequestURI().getPath().substring("/list/".length()));
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream stream = exchange.getResponseBody();
+                stream.write('[');
+                for (int i = 0; i < count; i++) {
+                    if (i > 0)
+                        stream.write(',');
+                    stream.write(SMALL_JSON);
+                }
+                stream.write(']');
+                exchange.close();
+            }
+        });
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream stream = exchange.getRequestBody();
+                byte[] chunk = new byte[64 * 1024];
+                while (stream.read(chunk) != -1) {
+                    // discards the body
+                }
+                exchange.sendResponseHeaders(204, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public URL url(String path) throws MalformedURLException {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        byte[] buffer = new byte[4096];
+        int length = 0;
+        int read;
+        while ((read = stream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+        byte[] body = new byte[length];
+        System.arraycopy(buffer, 0, body, 0, length);
+        return body;
+    }
+}
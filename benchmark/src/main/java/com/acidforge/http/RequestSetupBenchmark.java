@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.preference.PreferenceManager;
+
+import com.google.common.net.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Cost of building a request, before anything goes to the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSetupBenchmark {
+
+    private static final byte[] BODY = LoopbackServer.SMALL_JSON;
+
+    private BenchmarkContext context;
+    private URL url;
+    private EndpointRegistry.Template template;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        url = new URL("http://127.0.0.1:8080/json");
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(EndpointRegistry.BASE_URL, "127.0.0.1")
+                .putInt(EndpointRegistry.BASE_PORT, 8080)
+                .commit();
+        template = EndpointRegistry.getInstance(context).compile("/users/{id}/posts/{postId}");
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.delete();
+    }
+
+    @Benchmark
+    public HttpRequest getRequest() {
+        return new HttpRequest(context, url) {
+            @Override
+            public void responseStream(InputStream stream) {
+            }
+        };
+    }
+
+    @Benchmark
+    public HttpRequest uriPartRequest() {
+        return new HttpRequest(context, "/json", HttpMethod.GET) {
+            @Override
+            public void responseStream(InputStream stream) {
+            }
+        };
+    }
+
+    @Benchmark
+    public HttpRequest templateRequest() throws Exception {
+        return new HttpRequest(context, template.expand(42, "latest"), HttpMethod.GET) {
+            @Override
+            public void responseStream(InputStream stream) {
+            }
+        };
+    }
+
+    @Benchmark
+    public HttpRequest postRequestWithBody() {
+        HttpRequest request = new HttpRequest(context, url, HttpMethod.POST) {
+            @Override
+            public void responseStream(InputStream stream) {
+            }
+        };
+        request.setRequestBody(RequestBody.create(MediaType.JSON_UTF_8, BODY));
+        request.setRequestHeader("Authorization", "Bearer 0123456789abcdef");
+        return request;
+    }
+}
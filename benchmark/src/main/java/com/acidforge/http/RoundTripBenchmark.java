@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.net.MediaType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Small Json requests through the whole pipeline against the loopback server, on kept alive
+ * connections, with each engine. Sample time mode reports the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"urlConnection", "nio"})
+    public String engine;
+
+    private BenchmarkContext context;
+    private LoopbackServer server;
+    private ConnectionPool connectionPool;
+    private NioEngine nioEngine;
+    private URL url;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new BenchmarkContext();
+        server = new LoopbackServer();
+        connectionPool = new ConnectionPool();
+        if ("nio".equals(engine))
+            nioEngine = new NioEngine();
+        url = server.url("/json");
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (nioEngine != null)
+            nioEngine.shutdown();
+        server.stop();
+        context.delete();
+    }
+
+    @Benchmark
+    public int getJson() {
+        return newRequest(HttpMethod.GET).getCall().execute();
+    }
+
+    @Benchmark
+    public int postJson() {
+        HttpRequest request = newRequest(HttpMethod.POST);
+        request.setRequestBody(RequestBody.create(MediaType.JSON_UTF_8, LoopbackServer.SMALL_JSON));
+        return request.getCall().execute();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int getJsonParallel() {
+        return newRequest(HttpMethod.GET).getCall().execute();
+    }
+
+    /***
+     * Bursts of concurrent requests, submitted to the nio engine or enqueued on the default
+     * scheduler.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int getJsonBurst() throws Exception {
+        List<Future<Integer>> futures = new ArrayList<>(BURST);
+        for (int i = 0; i < BURST; i++) {
+            HttpRequest request = newRequest(HttpMethod.GET);
+            futures.add(nioEngine != null ? request.submit(nioEngine) : request.enqueue());
+        }
+        int sum = 0;
+        for (Future<Integer> future : futures)
+            sum += future.get();
+        return sum;
+    }
+
+    private HttpRequest newRequest(HttpMethod method) {
+        HttpRequest request = new HttpRequest(context, url, method) {
+            @Override
+            public void responseStream(InputStream stream) throws IOException {
+                byte[] buffer = new byte[256];
+                while (stream.read(buffer) != -1) {
+                    // consumes the document
+                }
+            }
+        };
+        request.setConnectionPool(connectionPool);
+        request.setEngine(nioEngine);
+        return request;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package android.content.res;
+
+/***
+ * Stand-in for the Android class. Strings resolve to their resource id, the benchmarks never
+ * display them.
+ */
+public class Resources {
+
+    private static final Resources SYSTEM = new Resources();
+
+    public static Resources getSystem() {
+        return SYSTEM;
+    }
+
+    public String getString(int id) {
+        return "Resource #" + id;
+    }
+}
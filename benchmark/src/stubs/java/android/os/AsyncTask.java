@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package android.os;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/***
+ * Stand-in for the Android class. Without a main looper, the callbacks run on the background
+ * thread right after {@link #doInBackground(Object[])}.
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+    public static final Executor THREAD_POOL_EXECUTOR = Executors.newCachedThreadPool();
+    public static final Executor SERIAL_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private volatile boolean cancelled;
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPreExecute() {
+    }
+
+    protected void onPostExecute(Result result) {
+    }
+
+    protected void onProgressUpdate(Progress... values) {
+    }
+
+    protected void onCancelled() {
+    }
+
+    protected void onCancelled(Result result) {
+        onCancelled();
+    }
+
+    protected final void publishProgress(Progress... values) {
+        onProgressUpdate(values);
+    }
+
+    public final boolean isCancelled() {
+        return cancelled;
+    }
+
+    public final boolean cancel(boolean mayInterruptIfRunning) {
+        cancelled = true;
+        return true;
+    }
+
+    public final AsyncTask<Params, Progress, Result> execute(Params... params) {
+        return executeOnExecutor(SERIAL_EXECUTOR, params);
+    }
+
+    public final AsyncTask<Params, Progress, Result> executeOnExecutor(Executor executor, final Params... params) {
+        onPreExecute();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Result result = doInBackground(params);
+                if (cancelled)
+                    onCancelled(result);
+                else
+                    onPostExecute(result);
+            }
+        });
+        return this;
+    }
+}
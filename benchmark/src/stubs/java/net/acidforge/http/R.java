@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.acidforge.http;
+
+/***
+ * Stand-in for the resource class generated from the library res folder.
+ */
+public final class R {
+
+    private R() {
+    }
+
+    public static final class string {
+        public static final int app_name = 1;
+        public static final int exception_undefined_address = 2;
+        public static final int exception_undefined_base_url = 3;
+        public static final int exception_undefined_url = 4;
+        public static final int exception_method_not_overriden = 5;
+
+        private string() {
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * A pool of equally sized byte arrays reused by the copy loops of the library, so bulk transfers
+ * don't allocate a fresh buffer per request.
+ */
+public final class BufferPool {
+
+    /***
+     * Default size of a pooled buffer, 64KiB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /***
+     * Default number of idle buffers retained.
+     */
+    public static final int DEFAULT_MAX_IDLE_BUFFERS = 16;
+
+    private static BufferPool defaultPool;
+
+    private final Deque<byte[]> idleBuffers = new ArrayDeque<>();
+    private final AtomicLong allocatedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final int bufferSize;
+    private final int maxIdleBuffers;
+
+    /***
+     * @param bufferSize Size of every buffer handed out.
+     * @param maxIdleBuffers Number of released buffers kept for reuse, the others are left to the GC.
+     */
+    public BufferPool(int bufferSize, int maxIdleBuffers) {
+        if (bufferSize < 1 || maxIdleBuffers < 0)
+            throw new IllegalArgumentException("Pool sizes must be positive");
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /***
+     * The process wide pool used by the built-in sinks and request bodies.
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null)
+            defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE_BUFFERS);
+        return defaultPool;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /***
+     * @return Buffers created because the pool was empty.
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    /***
+     * @return Buffers handed out from the pool.
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    /***
+     * @return A buffer of {@link #getBufferSize()} bytes, to be given back with {@link #release(byte[])}.
+     */
+    public byte[] acquire() {
+        byte[] buffer;
+        synchronized (this) {
+            buffer = idleBuffers.pollLast();
+        }
+        if (buffer != null) {
+            reusedCount.incrementAndGet();
+            return buffer;
+        }
+        allocatedCount.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /***
+     * Gives a buffer back. It must not be used by the caller afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize)
+            return;
+        synchronized (this) {
+            if (idleBuffers.size() < maxIdleBuffers)
+                idleBuffers.addLast(buffer);
+        }
+    }
+}
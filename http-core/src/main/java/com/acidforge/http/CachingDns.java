@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * A {@link Dns} keeping the answers of another resolver, the platform one by default, for a time
+ * to live. Failed lookups are kept for a shorter time, so a host known to be unreachable fails
+ * fast. Answers about to expire are refreshed in the background, and an expired answer is still
+ * used when the resolver doesn't answer within the lookup timeout, which on a flaky network is
+ * usually better than waiting. Lookups run on background threads, a single one per host at a time.
+ * Share a single instance among the requests of the application.
+ */
+public final class CachingDns implements Dns {
+
+    /***
+     * Default time an answer is used without asking the resolver again, 5 minutes.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    /***
+     * Default time a failed lookup is remembered, 10 seconds.
+     */
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10 * 1000;
+    /***
+     * Default wait for the resolver before falling back to an expired answer.
+     */
+    public static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 1000;
+    /***
+     * Default age beyond which an expired answer is no longer used, 1 day.
+     */
+    public static final long DEFAULT_MAX_STALE_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final Dns delegate;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Future<List<InetAddress>>> lookups = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new DnsThreadFactory());
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private volatile long negativeTtlMillis = DEFAULT_NEGATIVE_TTL_MILLIS;
+    private volatile long lookupTimeoutMillis = DEFAULT_LOOKUP_TIMEOUT_MILLIS;
+    private volatile long maxStaleMillis = DEFAULT_MAX_STALE_MILLIS;
+
+    /***
+     * Creates a cache over the platform resolver.
+     */
+    public CachingDns() {
+        this(Dns.SYSTEM);
+    }
+
+    /***
+     * @param delegate The resolver asked on misses and refreshes.
+     */
+    public CachingDns(Dns delegate) {
+        this.delegate = delegate;
+    }
+
+    /***
+     * @param ttlMillis Time an answer is used without asking the resolver again.
+     * @param negativeTtlMillis Time a failed lookup is remembered, 0 to always retry.
+     */
+    public void setTtl(long ttlMillis, long negativeTtlMillis) {
+        if (ttlMillis < 0 || negativeTtlMillis < 0)
+            throw new IllegalArgumentException("Time to live must be positive");
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+    }
+
+    /***
+     * @param lookupTimeoutMillis Wait for the resolver before falling back to an expired answer.
+     * @param maxStaleMillis Age beyond which an expired answer is no longer used, 0 to never use one.
+     */
+    public void setStaleFallback(long lookupTimeoutMillis, long maxStaleMillis) {
+        if (lookupTimeoutMillis < 0 || maxStaleMillis < 0)
+            throw new IllegalArgumentException("Timeouts must be positive");
+        this.lookupTimeoutMillis = lookupTimeoutMillis;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /***
+     * Resolves hosts in the background, typically the api hosts at app start, so the first
+     * requests find them in the cache.
+     */
+    public void prefetch(String... hosts) {
+        for (String host : hosts)
+            refresh(host.toLowerCase(Locale.ENGLISH));
+    }
+
+    /***
+     * Forgets every answer, for instance on a network change.
+     */
+    public void evictAll() {
+        entries.clear();
+    }
+
+    /***
+     * @return How many lookups were answered from the cache, failures included.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /***
+     * @return How many lookups waited for the resolver.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /***
+     * @return How many lookups fell back to an expired answer.
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    @Override
+    public List<InetAddress> lookup(String host) throws UnknownHostException {
+        String key = host.toLowerCase(Locale.ENGLISH);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && now < entry.expiresAt) {
+            hitCount.incrementAndGet();
+            if (entry.addresses == null)
+                throw new UnknownHostException(host);
+            if (now >= entry.refreshAt)
+                refresh(key);
+            return entry.addresses;
+        }
+        Future<List<InetAddress>> lookup = refresh(key);
+        boolean stale = entry != null && entry.addresses != null && now - entry.resolvedAt < maxStaleMillis;
+        try {
+            if (stale)
+                return lookup.get(lookupTimeoutMillis, TimeUnit.MILLISECONDS);
+            missCount.incrementAndGet();
+            return lookup.get();
+        } catch (TimeoutException e) {
+            staleCount.incrementAndGet();
+            return entry.addresses;
+        } catch (ExecutionException e) {
+            if (stale) {
+                staleCount.incrementAndGet();
+                return entry.addresses;
+            }
+            if (e.getCause() instanceof UnknownHostException)
+                throw (UnknownHostException) e.getCause();
+            UnknownHostException failure = new UnknownHostException(host);
+            failure.initCause(e.getCause());
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host);
+        }
+    }
+
+    /***
+     * Starts a lookup of the host unless one is running.
+     * @return The running lookup, which updates the cache when done.
+     */
+    private Future<List<InetAddress>> refresh(final String host) {
+        FutureTask<List<InetAddress>> task = new FutureTask<>(new Callable<List<InetAddress>>() {
+            @Override
+            public List<InetAddress> call() throws Exception {
+                try {
+                    return resolve(host);
+                } finally {
+                    lookups.remove(host);
+                }
+            }
+        });
+        Future<List<InetAddress>> running = lookups.putIfAbsent(host, task);
+        if (running != null)
+            return running;
+        executor.execute(task);
+        return task;
+    }
+
+    private List<InetAddress> resolve(String host) throws UnknownHostException {
+        try {
+            List<InetAddress> addresses = delegate.lookup(host);
+            if (addresses.isEmpty())
+                throw new UnknownHostException(host);
+            addresses = Collections.unmodifiableList(new ArrayList<>(addresses));
+            long now = System.currentTimeMillis();
+            entries.put(host, new Entry(addresses, now, now + ttlMillis * 3 / 4, now + ttlMillis));
+            return addresses;
+        } catch (UnknownHostException e) {
+            // an answer recent enough to fall back on is worth more than the failure
+            long now = System.currentTimeMillis();
+            Entry previous = entries.get(host);
+            if (previous == null || previous.addresses == null || now - previous.resolvedAt >= maxStaleMillis)
+                entries.put(host, new Entry(null, now, now + negativeTtlMillis, now + negativeTtlMillis));
+            throw e;
+        }
+    }
+
+    /***
+     * The answer for a host, a null address list standing for a failed lookup.
+     */
+    private static final class Entry {
+        final List<InetAddress> addresses;
+        final long resolvedAt;
+        final long refreshAt;
+        final long expiresAt;
+
+        Entry(List<InetAddress> addresses, long resolvedAt, long refreshAt, long expiresAt) {
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class DnsThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CachingDns #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/***
+ * Cancels related requests together, such as the requests of a screen that is gone. Requests join
+ * with {@link HttpCall#setCancellationGroup(CancellationGroup)}. Cancelling the group aborts the
+ * requests in flight, fails the queued ones as soon as they're dispatched and cascades to the
+ * child groups. A group only keeps the requests while they run, but children live as long as
+ * their parent.
+ */
+public final class CancellationGroup {
+
+    private final Set<HttpCall> calls = new HashSet<>();
+    private final List<CancellationGroup> children = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    /***
+     * @return A group cancelled along with this one, or right away if this one already is.
+     */
+    public CancellationGroup newChild() {
+        CancellationGroup child = new CancellationGroup();
+        synchronized (this) {
+            if (!cancelled) {
+                children.add(child);
+                return child;
+            }
+        }
+        child.cancel();
+        return child;
+    }
+
+    /***
+     * Cancels the requests of the group and of its children. Requests joining afterwards are
+     * cancelled as well.
+     */
+    public void cancel() {
+        List<HttpCall> running;
+        List<CancellationGroup> descendants;
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+            running = new ArrayList<>(calls);
+            descendants = new ArrayList<>(children);
+            calls.clear();
+            children.clear();
+        }
+        for (HttpCall call : running)
+            call.cancel();
+        for (CancellationGroup child : descendants)
+            child.cancel();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /***
+     * @return The number of requests of the group currently running.
+     */
+    public synchronized int getRunningCount() {
+        return calls.size();
+    }
+
+    /***
+     * Tracks a request starting, cancelling it if the group is.
+     */
+    void add(HttpCall call) {
+        synchronized (this) {
+            if (!cancelled) {
+                calls.add(call);
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+    synchronized void remove(HttpCall call) {
+        calls.remove(call);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+
+/***
+ * Reports a request failed without being sent because its host is deemed unhealthy, see
+ * {@link HostLimiter}.
+ */
+public class CircuitOpenException extends IOException {
+    private final String host;
+    private final long retryAfterMillis;
+
+    public CircuitOpenException(String host, long retryAfterMillis) {
+        super("The circuit to " + host + " is open, it will be probed again in " + retryAfterMillis + " ms.");
+        this.host = host;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /***
+     * @return How long before the host is probed again, 0 if a probe is already running.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+/***
+ * Keeps the sockets of finished requests alive so the next request to the same host skips the
+ * TCP connect and, over https, the TLS handshake.
+ * {@link java.net.HttpURLConnection} already owns a socket pool, but it only gets a socket back
+ * when the response body is read to the end and the connection is not disconnected. This class
+ * hands sockets back that way and mirrors the bookkeeping of that pool.
+ * <p>
+ * The platform pool is process wide and reads its settings once, when its http handler is first
+ * used. The first pool created, {@link #getDefault()} included, turns keep-alive on and hands its
+ * limits to the platform through the {@code http.maxConnections} and
+ * {@code http.keepAliveDuration} system properties, unless the application defined them itself.
+ * Create it at app start, before the first connection opens. The limits in effect then apply to
+ * every pool: a later pool asking for others logs an error and keeps the ones of the platform, so
+ * its bookkeeping stays in line with the actual sockets.
+ */
+public final class ConnectionPool {
+
+    /***
+     * Default maximum of idle sockets kept per host.
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+    /***
+     * Default time an idle socket is kept before being closed, 5 minutes.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    /***
+     * Maximum of unread response bytes drained to release a socket. Bigger leftovers are cheaper
+     * to discard with the socket than to download.
+     */
+    static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int PREWARM_TIMEOUT_MILLIS = 15000;
+    private static final AtomicInteger prewarmThreadNumber = new AtomicInteger(1);
+    private static ConnectionPool defaultPool;
+    // guarded by ConnectionPool.class, 0 until the first pool configured the platform
+    private static int platformMaxIdlePerHost;
+    private static long platformKeepAliveMillis;
+
+    private final Map<String, Deque<Long>> idleConnections = new HashMap<>();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final int maxIdlePerHost;
+    private final long keepAliveMillis;
+
+    /***
+     * Creates a pool with {@link #DEFAULT_MAX_IDLE_PER_HOST} and {@link #DEFAULT_KEEP_ALIVE_MILLIS}.
+     */
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /***
+     * Creates a pool. The limits of the first pool become the process wide limits of the platform,
+     * see the class documentation.
+     * @param maxIdlePerHost Maximum of idle sockets kept per host.
+     * @param keepAliveMillis Time an idle socket is kept before being closed.
+     */
+    public ConnectionPool(int maxIdlePerHost, long keepAliveMillis) {
+        if (maxIdlePerHost < 1 || keepAliveMillis < 1)
+            throw new IllegalArgumentException("Pool limits must be positive");
+        synchronized (ConnectionPool.class) {
+            configurePlatform(maxIdlePerHost, keepAliveMillis);
+            this.maxIdlePerHost = platformMaxIdlePerHost;
+            this.keepAliveMillis = platformKeepAliveMillis;
+        }
+        if (this.maxIdlePerHost != maxIdlePerHost || this.keepAliveMillis != keepAliveMillis)
+            HttpLog.e("ConnectionPool", "The platform already keeps " + this.maxIdlePerHost + " idle sockets per host for "
+                    + this.keepAliveMillis + " ms, create the pool with custom limits first");
+    }
+
+    /***
+     * The process wide pool used by batches and queues that weren't given one, so they all share
+     * the same sockets.
+     */
+    public static synchronized ConnectionPool getDefault() {
+        if (defaultPool == null)
+            defaultPool = new ConnectionPool();
+        return defaultPool;
+    }
+
+    /***
+     * Hands the limits to the platform the first time, then reads back those in effect.
+     */
+    private static void configurePlatform(int maxIdlePerHost, long keepAliveMillis) {
+        if (platformMaxIdlePerHost > 0)
+            return;
+        setDefaultProperty("http.keepAlive", "true");
+        setDefaultProperty("http.maxConnections", String.valueOf(maxIdlePerHost));
+        setDefaultProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+        platformMaxIdlePerHost = (int) positiveProperty("http.maxConnections", maxIdlePerHost);
+        platformKeepAliveMillis = positiveProperty("http.keepAliveDuration", keepAliveMillis);
+    }
+
+    private static void setDefaultProperty(String name, String value) {
+        if (System.getProperty(name) == null)
+            System.setProperty(name, value);
+    }
+
+    private static long positiveProperty(String name, long fallback) {
+        try {
+            long value = Long.parseLong(System.getProperty(name));
+            return value > 0 && value <= Integer.MAX_VALUE ? value : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    public int getMaxIdlePerHost() {
+        return maxIdlePerHost;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    /***
+     * @return How many requests found a socket left idle by a previous request in the pool
+     * bookkeeping. It's an estimate: the platform connection doesn't tell whether it actually
+     * reused a socket. {@link NioEngine#getReusedCount()} counts real reuse.
+     */
+    public long getEstimatedReusedCount() {
+        return reusedCount.get();
+    }
+
+    /***
+     * @return How many requests found no idle socket in the pool bookkeeping, an estimate of the
+     * sockets opened. {@link NioEngine#getOpenedCount()} counts real connects.
+     */
+    public long getEstimatedOpenedCount() {
+        return openedCount.get();
+    }
+
+    /***
+     * @return The estimated number of idle sockets still within the keep-alive timeout.
+     */
+    public synchronized int getIdleCount() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Deque<Long> idle : idleConnections.values()) {
+            evictExpired(idle, now);
+            count += idle.size();
+        }
+        return count;
+    }
+
+    /***
+     * Forgets every idle socket. Use it together with a network change, since the platform
+     * drops its sockets as well.
+     */
+    public synchronized void evictAll() {
+        idleConnections.clear();
+    }
+
+    /***
+     * Opens a socket to each host in the background, typically at app start, so the first requests
+     * skip the DNS lookup, the TCP connect and, over https, the TLS handshake. Each url gets a HEAD
+     * request whose socket is left in the pool, and whose TLS session is cached for resumption
+     * once the socket expires. Each host is warmed on a daemon thread of its own. Failures are
+     * only logged.
+     * @param sslContext The context the requests will use, null for the platform default.
+     * @param urls An address on each host to warm up, cheap to answer.
+     */
+    public void prewarm(final SSLContext sslContext, URL... urls) {
+        for (final URL url : urls) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    warm(sslContext, url);
+                }
+            }, "ConnectionPool prewarm #" + prewarmThreadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void warm(SSLContext sslContext, URL url) {
+        HttpURLConnection connection = null;
+        boolean reusable = false;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            if (sslContext != null && connection instanceof HttpsURLConnection)
+                ((HttpsURLConnection) connection).setSSLSocketFactory(TlsSocketFactory.forContext(sslContext));
+            connection.setRequestMethod(HttpMethod.HEAD.toString());
+            connection.setRequestProperty("User-Agent", HttpCall.USER_AGENT);
+            connection.setConnectTimeout(PREWARM_TIMEOUT_MILLIS);
+            connection.setReadTimeout(PREWARM_TIMEOUT_MILLIS);
+            acquire(url);
+            int responseCode = connection.getResponseCode();
+            reusable = !"close".equalsIgnoreCase(connection.getHeaderField("Connection"))
+                    && drain(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream()
+                    : connection.getInputStream());
+        } catch (IOException e) {
+            HttpLog.d("ConnectionPool", "Prewarming " + url + " failed: " + e.getLocalizedMessage());
+        } finally {
+            if (reusable)
+                release(url);
+            else if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    /***
+     * Takes an idle socket for the url host if there's one, otherwise counts a new one.
+     * @param url The address about to be requested.
+     */
+    synchronized void acquire(URL url) {
+        Deque<Long> idle = idleConnections.get(addressOf(url));
+        if (idle != null) {
+            evictExpired(idle, System.currentTimeMillis());
+            if (idle.pollLast() != null) {
+                reusedCount.incrementAndGet();
+                return;
+            }
+        }
+        openedCount.incrementAndGet();
+    }
+
+    /***
+     * Gives the socket back to the pool once the request is done with it.
+     * @param url The address that was requested.
+     */
+    synchronized void release(URL url) {
+        String address = addressOf(url);
+        Deque<Long> idle = idleConnections.get(address);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            idleConnections.put(address, idle);
+        }
+        idle.addLast(System.currentTimeMillis());
+        while (idle.size() > maxIdlePerHost)
+            idle.pollFirst();
+    }
+
+    /***
+     * Reads what's left of a response body so the platform hands the socket back to its pool.
+     * @param stream The response stream, may be null if the response had no body.
+     * @return True if the body was fully read and closed, false if the socket must be discarded.
+     */
+    static boolean drain(InputStream stream) {
+        if (stream == null)
+            return true;
+        try {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES)
+                    return false;
+            }
+            stream.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void evictExpired(Deque<Long> idle, long now) {
+        Iterator<Long> iterator = idle.iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() > keepAliveMillis)
+                iterator.remove();
+            else
+                break;
+        }
+    }
+
+    private static String addressOf(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+    }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.net.InternetDomainName;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Cookie jar following the RFC 6265 storage and matching rules.
+ * Cookies are indexed by the registrable domain of the host that owns them, so attaching cookies
+ * to a request only looks at the cookies that could match it. The resulting Cookie header is
+ * cached per host and path until a cookie of the same domain changes or expires.
+ * <p>
+ * The jar is loaded lazily from its {@link CookiePersistence} the first time a request needs it,
+ * and every mutation of a persistent cookie is handed to it. Session cookies, without Max-Age nor
+ * Expires, stay in memory. Share one jar among the requests of the process.
+ * {@link HttpCall}s without a jar neither send nor store cookies.
+ * <p>
+ * The jar is safe for parallel requests. Each domain publishes an immutable snapshot of its cookies
+ * that requests read without locking, while writers copy and replace it under a lock striped by
+ * domain, so cookies set for one host never block requests to another.
+ */
+public class CookieJar {
+    /***
+     * Maximum of Cookie headers cached per registrable domain.
+     */
+    private static final int MAX_CACHED_HEADERS = 32;
+    private static final int MAX_CACHED_DOMAINS = 256;
+    private static final int LOCK_STRIPES = 16;
+    private static final Comparator<StoredCookie> PATH_LENGTH_ORDER = new Comparator<StoredCookie>() {
+        @Override
+        public int compare(StoredCookie left, StoredCookie right) {
+            return right.path.length() - left.path.length();
+        }
+    };
+
+    private final ConcurrentMap<String, DomainCookies> mapDomains = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> mapRegistrableDomains = new ConcurrentHashMap<>();
+    private final ReentrantLock[] arrLocks = new ReentrantLock[LOCK_STRIPES];
+    private final CookiePersistence perPersistence;
+    private volatile boolean bolLoaded;
+
+    /***
+     * Creates a jar backed by a persistence. Nothing is loaded until the jar is first used.
+     * @param perPersistence Where the cookies are kept, {@link CookiePersistence#NONE} for a jar in
+     *                       memory only.
+     */
+    public CookieJar(CookiePersistence perPersistence) {
+        this.perPersistence = perPersistence;
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            arrLocks[i] = new ReentrantLock();
+    }
+
+    /***
+     * Writes the pending mutations on the calling thread, for instance when the app goes to
+     * background.
+     */
+    public void flush() {
+        perPersistence.flush();
+    }
+
+    private void ensureLoaded() {
+        if (bolLoaded)
+            return;
+        synchronized (this) {
+            if (bolLoaded)
+                return;
+            importCookies();
+            for (String[] arrCookie : perPersistence.load()) {
+                try {
+                    URI uriOrigin = new URI(arrCookie[0]);
+                    for (HttpCookie cookie : HttpCookie.parse(arrCookie[1]))
+                        store(uriOrigin, cookie, false);
+                } catch (URISyntaxException e) {
+                    HttpLog.e("CookieJar", e.getLocalizedMessage(), e);
+                } catch (IllegalArgumentException e) {
+                    HttpLog.e("CookieJar", e.getLocalizedMessage(), e);
+                }
+            }
+            bolLoaded = true;
+        }
+    }
+
+    /***
+     * Called once before the jar is loaded, to move cookies from another store to the persistence
+     * with {@link #store(URI, HttpCookie, boolean)}.
+     */
+    void importCookies() {
+    }
+
+    /***
+     * Drops the cookies held in memory, leaving the persistence as it is.
+     */
+    final void forget() {
+        mapDomains.clear();
+    }
+
+    /*
+     * @see java.net.CookieStore#add(java.net.URI, java.net.HttpCookie)
+     */
+    public void add(URI uri, HttpCookie cookie) {
+        ensureLoaded();
+        store(uri, cookie, true);
+    }
+
+    /***
+     * Builds the Cookie header value for a request.
+     * @param uri The requested address.
+     * @return The header value, or null if there's no cookie to send.
+     */
+    public String getCookieHeader(URI uri) {
+        ensureLoaded();
+        String strHost = hostOf(uri);
+        if (strHost == null)
+            return null;
+        DomainCookies domCookies = mapDomains.get(registrableDomain(strHost));
+        if (domCookies == null)
+            return null;
+        String strPath = pathOf(uri);
+        boolean bolSecure = "https".equalsIgnoreCase(uri.getScheme());
+        String strKey = (bolSecure ? "s:" : ":") + strHost + strPath;
+        long lngNow = System.currentTimeMillis();
+        Snapshot snaCookies = domCookies.snapshot;
+        CachedHeader cacHeader = snaCookies.headers.get(strKey);
+        if (cacHeader != null && (cacHeader.expiresAt < 0 || cacHeader.expiresAt > lngNow))
+            return cacHeader.value;
+
+        List<StoredCookie> lstMatches = snaCookies.match(strHost, strPath, bolSecure, lngNow);
+        StringBuilder sb = new StringBuilder();
+        long lngExpiresAt = -1;
+        for (StoredCookie stoCookie : lstMatches) {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(stoCookie.cookie.getName()).append('=').append(stoCookie.cookie.getValue());
+            if (stoCookie.expiresAt >= 0 && (lngExpiresAt < 0 || stoCookie.expiresAt < lngExpiresAt))
+                lngExpiresAt = stoCookie.expiresAt;
+        }
+        String strHeader = sb.length() == 0 ? null : sb.toString();
+        if (snaCookies.headers.size() >= MAX_CACHED_HEADERS)
+            snaCookies.headers.clear();
+        snaCookies.headers.put(strKey, new CachedHeader(strHeader, lngExpiresAt));
+        return strHeader;
+    }
+
+    /*
+     * @see java.net.CookieStore#get(java.net.URI)
+     */
+    public List<HttpCookie> get(URI uri) {
+        ensureLoaded();
+        List<HttpCookie> lstCookies = new ArrayList<>();
+        String strHost = hostOf(uri);
+        if (strHost == null)
+            return lstCookies;
+        DomainCookies domCookies = mapDomains.get(registrableDomain(strHost));
+        if (domCookies == null)
+            return lstCookies;
+        boolean bolSecure = "https".equalsIgnoreCase(uri.getScheme());
+        for (StoredCookie stoCookie : domCookies.snapshot.match(strHost, pathOf(uri), bolSecure, System.currentTimeMillis()))
+            lstCookies.add(stoCookie.cookie);
+        return lstCookies;
+    }
+
+    /*
+     * @see java.net.CookieStore#removeAll()
+     */
+    public boolean removeAll() {
+        ensureLoaded();
+        for (ReentrantLock lock : arrLocks)
+            lock.lock();
+        try {
+            mapDomains.clear();
+            perPersistence.clear();
+        } finally {
+            for (ReentrantLock lock : arrLocks)
+                lock.unlock();
+        }
+        return true;
+    }
+
+    /*
+     * @see java.net.CookieStore#getCookies()
+     */
+    public List<HttpCookie> getCookies() {
+        ensureLoaded();
+        List<HttpCookie> result = new ArrayList<>();
+        long lngNow = System.currentTimeMillis();
+        for (DomainCookies domCookies : mapDomains.values()) {
+            for (StoredCookie stoCookie : domCookies.snapshot.cookies) {
+                if (!stoCookie.hasExpired(lngNow))
+                    result.add(stoCookie.cookie);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * @see java.net.CookieStore#getURIs()
+     */
+    public List<URI> getURIs() {
+        ensureLoaded();
+        Set<URI> keys = new HashSet<>();
+        for (DomainCookies domCookies : mapDomains.values()) {
+            for (StoredCookie stoCookie : domCookies.snapshot.cookies)
+                keys.add(stoCookie.origin);
+        }
+        return new ArrayList<>(keys);
+    }
+
+    /*
+     * @see java.net.CookieStore#remove(java.net.URI, java.net.HttpCookie)
+     */
+    public boolean remove(URI uri, HttpCookie cookie) {
+        ensureLoaded();
+        String strDomain = cookie.getDomain() != null ? normalizeDomain(cookie.getDomain()) : hostOf(uri);
+        if (strDomain == null)
+            return false;
+        String strRegistrable = registrableDomain(strDomain);
+        ReentrantLock lock = lockFor(strRegistrable);
+        lock.lock();
+        try {
+            DomainCookies domCookies = mapDomains.get(strRegistrable);
+            if (domCookies == null)
+                return false;
+            List<StoredCookie> lstCookies = domCookies.snapshot.cookies;
+            for (int i = 0; i < lstCookies.size(); i++) {
+                StoredCookie stoCookie = lstCookies.get(i);
+                if (stoCookie.cookie.getName().equals(cookie.getName()) && stoCookie.domain.equals(strDomain)
+                        && (cookie.getPath() == null || stoCookie.path.equals(cookie.getPath()))) {
+                    List<StoredCookie> lstUpdated = new ArrayList<>(lstCookies);
+                    lstUpdated.remove(i);
+                    domCookies.snapshot = new Snapshot(lstUpdated);
+                    perPersistence.remove(stoCookie.cookie.getName(), stoCookie.domain, stoCookie.path);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Applies the RFC 6265 storage model to a received cookie, replacing the snapshot of its domain.
+     * @param bolJournal Whether the change must be handed to the persistence.
+     */
+    final void store(URI uri, HttpCookie cookie, boolean bolJournal) {
+        String strHost = hostOf(uri);
+        if (strHost == null)
+            return;
+        String strDomain;
+        boolean bolHostOnly;
+        if (cookie.getDomain() == null || cookie.getDomain().isEmpty()) {
+            strDomain = strHost;
+            bolHostOnly = true;
+        } else {
+            strDomain = normalizeDomain(cookie.getDomain());
+            bolHostOnly = false;
+            if (!domainMatches(strHost, strDomain) || isPublicSuffix(strDomain) && !strDomain.equals(strHost))
+                return;
+        }
+        String strPath = cookie.getPath();
+        if (strPath == null || !strPath.startsWith("/"))
+            strPath = defaultPath(uri);
+        long lngNow = System.currentTimeMillis();
+        StoredCookie stoCookie = null;
+        if (cookie.getMaxAge() != 0) {
+            long lngExpiresAt = cookie.getMaxAge() < 0 ? -1 : lngNow + cookie.getMaxAge() * 1000;
+            stoCookie = new StoredCookie(cookie, strDomain, bolHostOnly, strPath, lngExpiresAt, uri);
+        }
+
+        String strRegistrable = registrableDomain(strDomain);
+        ReentrantLock lock = lockFor(strRegistrable);
+        lock.lock();
+        try {
+            DomainCookies domCookies = mapDomains.get(strRegistrable);
+            if (domCookies == null) {
+                domCookies = new DomainCookies();
+                mapDomains.put(strRegistrable, domCookies);
+            }
+            List<StoredCookie> lstCookies = domCookies.snapshot.cookies;
+            List<StoredCookie> lstUpdated = new ArrayList<>(lstCookies.size() + 1);
+            List<StoredCookie> lstExpired = new ArrayList<>(0);
+            StoredCookie stoReplaced = null;
+            for (StoredCookie stoExisting : lstCookies) {
+                if (stoExisting.cookie.getName().equals(cookie.getName())
+                        && stoExisting.domain.equals(strDomain) && stoExisting.path.equals(strPath))
+                    stoReplaced = stoExisting;
+                else if (stoExisting.hasExpired(lngNow))
+                    lstExpired.add(stoExisting);
+                else
+                    lstUpdated.add(stoExisting);
+            }
+            if (stoCookie != null)
+                lstUpdated.add(stoCookie);
+            domCookies.snapshot = new Snapshot(lstUpdated);
+            if (!bolJournal)
+                return;
+            for (StoredCookie stoExpired : lstExpired)
+                perPersistence.remove(stoExpired.cookie.getName(), stoExpired.domain, stoExpired.path);
+            // session cookies end with the process, RFC 6265 section 5.3
+            if (stoCookie != null && stoCookie.isPersistent())
+                perPersistence.put(stoCookie.cookie.getName(), stoCookie.domain, stoCookie.path,
+                        stoCookie.origin.toString(), stoCookie.encode());
+            else if (stoReplaced != null ? stoReplaced.isPersistent() : stoCookie == null)
+                perPersistence.remove(cookie.getName(), strDomain, strPath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock lockFor(String strRegistrable) {
+        return arrLocks[(strRegistrable.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private String registrableDomain(String strHost) {
+        String strDomain = mapRegistrableDomains.get(strHost);
+        if (strDomain != null)
+            return strDomain;
+        strDomain = strHost;
+        if (InternetDomainName.isValid(strHost)) {
+            InternetDomainName domainName = InternetDomainName.from(strHost);
+            if (domainName.isUnderPublicSuffix())
+                strDomain = domainName.topPrivateDomain().toString();
+        }
+        if (mapRegistrableDomains.size() >= MAX_CACHED_DOMAINS)
+            mapRegistrableDomains.clear();
+        mapRegistrableDomains.putIfAbsent(strHost, strDomain);
+        return strDomain;
+    }
+
+    private static boolean isPublicSuffix(String strDomain) {
+        return InternetDomainName.isValid(strDomain) && InternetDomainName.from(strDomain).isPublicSuffix();
+    }
+
+    /*
+     * RFC 6265 section 5.1.3, IP addresses only match themselves.
+     */
+    static boolean domainMatches(String strHost, String strDomain) {
+        if (strHost.equals(strDomain))
+            return true;
+        return strHost.endsWith(strDomain)
+                && strHost.charAt(strHost.length() - strDomain.length() - 1) == '.'
+                && !isIpAddress(strHost);
+    }
+
+    /*
+     * RFC 6265 section 5.1.4.
+     */
+    static boolean pathMatches(String strRequestPath, String strCookiePath) {
+        if (!strRequestPath.startsWith(strCookiePath))
+            return false;
+        return strRequestPath.length() == strCookiePath.length()
+                || strCookiePath.endsWith("/")
+                || strRequestPath.charAt(strCookiePath.length()) == '/';
+    }
+
+    /*
+     * RFC 6265 section 5.1.4, the directory of the request path.
+     */
+    private static String defaultPath(URI uri) {
+        String strPath = uri.getRawPath();
+        if (strPath == null || !strPath.startsWith("/"))
+            return "/";
+        int intSlash = strPath.lastIndexOf('/');
+        return intSlash == 0 ? "/" : strPath.substring(0, intSlash);
+    }
+
+    private static String pathOf(URI uri) {
+        String strPath = uri.getRawPath();
+        return strPath == null || strPath.isEmpty() ? "/" : strPath;
+    }
+
+    private static String hostOf(URI uri) {
+        return uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String normalizeDomain(String strDomain) {
+        strDomain = strDomain.toLowerCase(Locale.ENGLISH);
+        return strDomain.startsWith(".") ? strDomain.substring(1) : strDomain;
+    }
+
+    private static boolean isIpAddress(String strHost) {
+        return strHost.indexOf(':') >= 0 || strHost.matches("[0-9.]+");
+    }
+
+    /***
+     * Cookies of a registrable domain. Only replaced under the stripe lock of the domain.
+     */
+    private static final class DomainCookies {
+        volatile Snapshot snapshot = new Snapshot(new ArrayList<StoredCookie>(0));
+    }
+
+    /***
+     * Immutable state of a domain and the Cookie headers built from it. The headers die with the
+     * snapshot, so a header built by a reader can never outlive the cookies it was built from.
+     */
+    private static final class Snapshot {
+        final List<StoredCookie> cookies;
+        final ConcurrentMap<String, CachedHeader> headers = new ConcurrentHashMap<>();
+
+        Snapshot(List<StoredCookie> cookies) {
+            this.cookies = Collections.unmodifiableList(cookies);
+        }
+
+        /***
+         * @return The cookies to be sent, longest path first as RFC 6265 section 5.4 suggests.
+         */
+        List<StoredCookie> match(String strHost, String strPath, boolean bolSecure, long lngNow) {
+            List<StoredCookie> lstMatches = new ArrayList<>();
+            for (StoredCookie stoCookie : cookies) {
+                if (stoCookie.hasExpired(lngNow))
+                    continue;
+                if (stoCookie.hostOnly ? !strHost.equals(stoCookie.domain) : !domainMatches(strHost, stoCookie.domain))
+                    continue;
+                if (!pathMatches(strPath, stoCookie.path) || stoCookie.cookie.getSecure() && !bolSecure)
+                    continue;
+                lstMatches.add(stoCookie);
+            }
+            Collections.sort(lstMatches, PATH_LENGTH_ORDER);
+            return lstMatches;
+        }
+    }
+
+    private static final class StoredCookie {
+        final HttpCookie cookie;
+        final String domain;
+        final boolean hostOnly;
+        final String path;
+        final long expiresAt;
+        final URI origin;
+
+        StoredCookie(HttpCookie cookie, String domain, boolean hostOnly, String path, long expiresAt, URI origin) {
+            this.cookie = cookie;
+            this.domain = domain;
+            this.hostOnly = hostOnly;
+            this.path = path;
+            this.expiresAt = expiresAt;
+            this.origin = origin;
+        }
+
+        boolean hasExpired(long lngNow) {
+            return expiresAt >= 0 && expiresAt <= lngNow;
+        }
+
+        boolean isPersistent() {
+            return expiresAt >= 0;
+        }
+
+        /***
+         * @return A Set-Cookie value that {@link HttpCookie#parse(String)} reads back.
+         */
+        String encode() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(cookie.getName()).append('=').append(cookie.getValue());
+            if (!hostOnly)
+                sb.append("; Domain=").append(domain);
+            sb.append("; Path=").append(path);
+            if (expiresAt >= 0) {
+                SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss 'GMT'", Locale.US);
+                dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+                sb.append("; Expires=").append(dateFormat.format(new Date(expiresAt)));
+            }
+            if (cookie.getSecure())
+                sb.append("; Secure");
+            return sb.toString();
+        }
+    }
+
+    private static final class CachedHeader {
+        final String value;
+        final long expiresAt;
+
+        CachedHeader(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
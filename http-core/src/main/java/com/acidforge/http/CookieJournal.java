@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Append-only log of cookie mutations.
+ * Mutations are queued in memory and written in batches by a background thread, so receiving a
+ * Set-Cookie never waits for the disk. Once the log holds mostly superseded records it is
+ * compacted into a snapshot of the live cookies.
+ * <p>
+ * Every line is a tab separated record: {@code P name domain path origin cookie} stores a cookie,
+ * {@code R name domain path} removes it and {@code C} removes them all. Cookies expired by the
+ * time the journal is loaded or compacted are left out.
+ */
+public final class CookieJournal implements CookiePersistence {
+
+    /***
+     * Time mutations are held in memory so bursts of Set-Cookie headers share one write.
+     */
+    static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    private static final Map<String, CookieJournal> journals = new HashMap<>();
+    private static ScheduledExecutorService flusher;
+
+    private final File file;
+    private final Map<String, String> liveRecords = new LinkedHashMap<>();
+    private List<String> pendingRecords = new ArrayList<>();
+    private int journalRecords;
+    private boolean flushScheduled;
+
+    private CookieJournal(File file) {
+        this.file = file;
+    }
+
+    /***
+     * Returns the journal for a file, shared by every store writing to it.
+     * @param file The journal file, created on the first flush.
+     */
+    public static synchronized CookieJournal forFile(File file) {
+        String path = file.getAbsolutePath();
+        CookieJournal journal = journals.get(path);
+        if (journal == null) {
+            journal = new CookieJournal(file);
+            journals.put(path, journal);
+        }
+        return journal;
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /***
+     * Replays the journal. A last record without its line break was torn by the death of the
+     * process while writing it, so it's dropped and cut from the file before anything is appended.
+     * @return The origin and Set-Cookie value of every live cookie, oldest first.
+     */
+    @Override
+    public List<String[]> load() {
+        synchronized (file) {
+            synchronized (this) {
+                liveRecords.clear();
+                journalRecords = 0;
+                if (file.exists()) {
+                    try {
+                        byte[] content = Files.toByteArray(file);
+                        int end = content.length;
+                        while (end > 0 && content[end - 1] != '\n')
+                            end--;
+                        if (end > 0) {
+                            for (String line : Splitter.on('\n').split(new String(content, 0, end - 1, Charsets.UTF_8))) {
+                                apply(line);
+                                journalRecords++;
+                            }
+                        }
+                        if (end < content.length)
+                            truncate(end);
+                    } catch (IOException e) {
+                        HttpLog.e("CookieJournal", e.getLocalizedMessage(), e);
+                    }
+                }
+                for (String record : pendingRecords)
+                    apply(record);
+                boolean dropped = dropExpired();
+                List<String[]> cookies = new ArrayList<>(liveRecords.size());
+                for (String record : liveRecords.values()) {
+                    List<String> fields = Splitter.on('\t').limit(6).splitToList(record);
+                    cookies.add(new String[]{fields.get(4), fields.get(5)});
+                }
+                if (dropped && pendingRecords.isEmpty())
+                    compact();
+                return cookies;
+            }
+        }
+    }
+
+    /***
+     * Forgets the cookies expired since they were written, and the session cookies older versions
+     * wrote.
+     * @return True if any was forgotten.
+     */
+    private boolean dropExpired() {
+        boolean dropped = false;
+        Iterator<String> iterator = liveRecords.values().iterator();
+        while (iterator.hasNext()) {
+            if (!isLive(iterator.next())) {
+                iterator.remove();
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    private static boolean isLive(String record) {
+        try {
+            for (HttpCookie cookie : HttpCookie.parse(Splitter.on('\t').limit(6).splitToList(record).get(5))) {
+                if (cookie.getMaxAge() < 0 || cookie.hasExpired())
+                    return false;
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        HttpLog.d("CookieJournal", "Dropping a torn record at the end of " + file);
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(length);
+            access.getFD().sync();
+        } finally {
+            access.close();
+        }
+    }
+
+    @Override
+    public synchronized void put(String name, String domain, String path, String origin, String cookie) {
+        append("P\t" + name + "\t" + domain + "\t" + path + "\t" + origin + "\t" + cookie);
+    }
+
+    @Override
+    public synchronized void remove(String name, String domain, String path) {
+        append("R\t" + name + "\t" + domain + "\t" + path);
+    }
+
+    @Override
+    public synchronized void clear() {
+        append("C");
+    }
+
+    /***
+     * Writes the pending mutations on the calling thread.
+     */
+    @Override
+    public void flush() {
+        List<String> records;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingRecords.isEmpty())
+                return;
+            records = pendingRecords;
+            pendingRecords = new ArrayList<>();
+        }
+        synchronized (file) {
+            Writer writer = null;
+            try {
+                FileOutputStream stream = new FileOutputStream(file, true);
+                writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+                for (String record : records)
+                    writer.write(record + "\n");
+                writer.flush();
+                stream.getFD().sync();
+            } catch (IOException e) {
+                HttpLog.e("CookieJournal", e.getLocalizedMessage(), e);
+            } finally {
+                closeQuietly(writer);
+            }
+            boolean compact;
+            synchronized (this) {
+                journalRecords += records.size();
+                compact = journalRecords > MIN_COMPACTION_RECORDS && journalRecords > liveRecords.size() * 2;
+            }
+            if (compact)
+                compact();
+        }
+    }
+
+    /***
+     * Rewrites the journal with only the live records, leaving the expired ones out. Runs with the
+     * file lock held.
+     */
+    private void compact() {
+        List<String> snapshot;
+        synchronized (this) {
+            dropExpired();
+            snapshot = new ArrayList<>(liveRecords.values());
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            FileOutputStream stream = new FileOutputStream(temporary);
+            writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+            for (String record : snapshot)
+                writer.write(record + "\n");
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            writer = null;
+            if (!temporary.renameTo(file))
+                throw new IOException("Unable to replace " + file);
+            synchronized (this) {
+                journalRecords = snapshot.size();
+            }
+        } catch (IOException e) {
+            HttpLog.e("CookieJournal", e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private void append(String record) {
+        apply(record);
+        pendingRecords.add(record);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            flusher().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void apply(String record) {
+        if (record.startsWith("C")) {
+            liveRecords.clear();
+            return;
+        }
+        List<String> fields = Splitter.on('\t').limit(6).splitToList(record);
+        if (fields.size() < 4)
+            return;
+        String key = fields.get(1) + "\t" + fields.get(2) + "\t" + fields.get(3);
+        if ("P".equals(fields.get(0)) && fields.size() == 6) {
+            liveRecords.remove(key);
+            liveRecords.put(key, record);
+        } else if ("R".equals(fields.get(0))) {
+            liveRecords.remove(key);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService flusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CookieJournal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return flusher;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
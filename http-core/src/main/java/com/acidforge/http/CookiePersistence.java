@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * Where a {@link CookieJar} keeps its cookies across restarts. The jar loads them once, then
+ * reports every mutation from the request threads, so an implementation must be thread safe and
+ * should not block on storage while recording them. Cookies are identified by their name, domain
+ * and path, see {@link CookieJournal} for the file backed one.
+ */
+public interface CookiePersistence {
+
+    /***
+     * Keeps nothing, the jar lives in memory only.
+     */
+    CookiePersistence NONE = new CookiePersistence() {
+        @Override
+        public List<String[]> load() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void put(String name, String domain, String path, String origin, String cookie) {
+        }
+
+        @Override
+        public void remove(String name, String domain, String path) {
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void flush() {
+        }
+    };
+
+    /***
+     * @return The origin uri and Set-Cookie value of every stored cookie, oldest first.
+     */
+    List<String[]> load();
+
+    /***
+     * Stores a cookie, replacing the one with the same name, domain and path.
+     * @param origin The uri that set the cookie.
+     * @param cookie A Set-Cookie value {@link java.net.HttpCookie#parse(String)} reads back.
+     */
+    void put(String name, String domain, String path, String origin, String cookie);
+
+    void remove(String name, String domain, String path);
+
+    void clear();
+
+    /***
+     * Writes the pending mutations on the calling thread.
+     */
+    void flush();
+}
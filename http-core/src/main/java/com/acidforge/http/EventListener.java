@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+/***
+ * Observes the phases of {@link HttpCall}s. Every event carries a {@link System#nanoTime()}
+ * timestamp, so durations are differences between two events of the same request.
+ * Events are reported on the thread running the phase, which is a worker thread, and may repeat
+ * when a request is retried or hedged. A listener can be shared among requests and must be
+ * thread safe then. Override only the events needed, the others do nothing.
+ * A call ends with either {@link #callEnd(HttpCall, int, long)} or
+ * {@link #callFailed(HttpCall, Exception, long)}. Requests answered by the cache or by a
+ * coalesced request in flight go straight from start to end.
+ */
+public abstract class EventListener {
+
+    public void callStart(HttpCall request, long nanoTime) {
+    }
+
+    /***
+     * The lookup the connection actually goes through. Only reported by the {@link NioEngine} and
+     * the {@link Http2Engine}, on their own threads: {@link HttpEngine#URL_CONNECTION} resolves
+     * the host inside its connect phase, which then includes the lookup. Left out when an idle
+     * connection is reused.
+     */
+    public void dnsStart(HttpCall request, String host, long nanoTime) {
+    }
+
+    public void dnsEnd(HttpCall request, String host, long nanoTime) {
+    }
+
+    /***
+     * The connection phase covers the TCP connect and, for https, the TLS handshake. It's short
+     * when a kept alive connection is reused, and left out by the {@link NioEngine} and the
+     * {@link Http2Engine} then.
+     */
+    public void connectStart(HttpCall request, long nanoTime) {
+    }
+
+    public void connectEnd(HttpCall request, long nanoTime) {
+    }
+
+    public void requestBodyStart(HttpCall request, long nanoTime) {
+    }
+
+    /***
+     * @param bytes Bytes of body written to the wire, after compression.
+     */
+    public void requestBodyEnd(HttpCall request, long bytes, long nanoTime) {
+    }
+
+    /***
+     * The time between the end of the request and this event is the time to first byte.
+     */
+    public void responseHeadersEnd(HttpCall request, int responseCode, long nanoTime) {
+    }
+
+    /***
+     * @param bytes Bytes of body read from the wire, before decompression.
+     */
+    public void responseBodyEnd(HttpCall request, long bytes, long nanoTime) {
+    }
+
+    /***
+     * @param responseCode The status code returned by the request.
+     */
+    public void callEnd(HttpCall request, int responseCode, long nanoTime) {
+    }
+
+    /***
+     * @param e The error that ended the call, the status code may have been received before it.
+     */
+    public void callFailed(HttpCall request, Exception e, long nanoTime) {
+    }
+}
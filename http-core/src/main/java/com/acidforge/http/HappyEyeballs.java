@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Connects to a host with several addresses the happy eyeballs way (RFC 8305): the addresses are
+ * tried alternating IPv6 and IPv4, each attempt starting when the previous one failed or after a
+ * short delay, and the first socket connected wins. A broken address family then costs the delay
+ * instead of a whole connect timeout.
+ * {@link java.net.HttpURLConnection} connects on its own, this is meant for transports owning
+ * their sockets.
+ */
+public final class HappyEyeballs {
+
+    /***
+     * Delay before the next address is tried while an attempt is pending.
+     */
+    public static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ConnectThreadFactory());
+
+    private HappyEyeballs() {
+    }
+
+    /***
+     * @param dns The resolver of the host.
+     * @param host The host name.
+     * @param port The port to connect to.
+     * @param timeoutMillis Time for the whole race.
+     * @return A connected socket, opened through a {@link SocketChannel}.
+     * @throws IOException The error of the last attempt if every address failed.
+     */
+    public static Socket connect(Dns dns, String host, int port, int timeoutMillis) throws IOException {
+        return connect(dns.lookup(host), port, timeoutMillis);
+    }
+
+    /***
+     * @param addresses The addresses of the host, in the resolver order.
+     * @param port The port to connect to.
+     * @param timeoutMillis Time for the whole race.
+     * @return A connected socket, opened through a {@link SocketChannel}.
+     * @throws IOException The error of the last attempt if every address failed.
+     */
+    public static Socket connect(List<InetAddress> addresses, int port, int timeoutMillis) throws IOException {
+        List<InetAddress> ordered = interleave(addresses);
+        Race race = new Race();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long nextAttempt = 0;
+        int next = 0;
+        synchronized (race) {
+            try {
+                while (race.winner == null) {
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline)
+                        break;
+                    if (next < ordered.size() && (race.pending == 0 || now >= nextAttempt)) {
+                        race.start(new InetSocketAddress(ordered.get(next++), port), (int) (deadline - now));
+                        nextAttempt = now + ATTEMPT_DELAY_MILLIS;
+                        continue;
+                    }
+                    if (race.pending == 0)
+                        break;
+                    race.wait(next < ordered.size() ? Math.min(deadline, nextAttempt) - now : deadline - now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            race.over = true;
+            if (race.winner != null)
+                return race.winner;
+            if (race.failure != null && race.pending == 0)
+                throw race.failure;
+            throw new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms");
+        }
+    }
+
+    /***
+     * Orders the addresses alternating families, starting with the family of the first one.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIsV6 = !addresses.isEmpty() && addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIsV6)
+                first.add(address);
+            else
+                second.add(address);
+        }
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size())
+                ordered.add(first.get(i));
+            if (i < second.size())
+                ordered.add(second.get(i));
+        }
+        return ordered;
+    }
+
+    /***
+     * The attempts of a connect. Sockets connected after the winner, or after the race gave up,
+     * are closed.
+     */
+    private static final class Race {
+        private Socket winner;
+        private IOException failure;
+        private int pending;
+        private boolean over;
+
+        void start(final InetSocketAddress address, final int timeoutMillis) {
+            pending++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Socket socket = null;
+                    try {
+                        socket = SocketChannel.open().socket();
+                        socket.connect(address, timeoutMillis);
+                        finished(socket, null);
+                    } catch (IOException e) {
+                        closeQuietly(socket);
+                        finished(null, e);
+                    }
+                }
+            });
+        }
+
+        private void finished(Socket socket, IOException error) {
+            boolean won = false;
+            synchronized (this) {
+                pending--;
+                if (socket != null && winner == null && !over) {
+                    winner = socket;
+                    won = true;
+                } else if (error != null) {
+                    failure = error;
+                }
+                notifyAll();
+            }
+            if (socket != null && !won)
+                closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class ConnectThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HappyEyeballs #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Protects struggling hosts from the load of their clients. Share a single limiter among the
+ * requests to the same backends, see {@link HttpCall#setHostLimiter(HostLimiter)}.
+ * <p>
+ * Every host gets a limit of attempts in flight, adapted with additive increase and
+ * multiplicative decrease: each success while the limit is in use raises it by one over the limit,
+ * so about one per limit's worth of successes, and each failure (no response, 408, 429 and 5xx) or
+ * response much slower than the smoothed latency of the host cuts it by
+ * {@link #DEFAULT_BACKOFF_RATIO}. The smoothed latency is a moving average, so the occasional
+ * connection handshake doesn't look slow next to the requests reusing a connection. Attempts
+ * beyond the limit wait for a slot, within their connect timeout. The ones submitted to a
+ * {@link NioEngine} wait in line without holding a thread, and get the freed slots first.
+ * <p>
+ * On top of the limit, a circuit breaker watches the last {@link #DEFAULT_WINDOW_SIZE} outcomes of
+ * every host. Once half of them failed, the circuit opens and requests fail right away with a
+ * {@link CircuitOpenException}. After the open duration, probes are let through one at a time: a
+ * few successes close the circuit, a failure opens it again for twice as long. Only the outcomes of
+ * the probes decide, not the ones of attempts started before the circuit opened.
+ * <p>
+ * An attempt holds its slot until it gets its response headers, so the body of a long download
+ * doesn't count against the limit.
+ */
+public final class HostLimiter {
+
+    /***
+     * The states of the circuit of a host.
+     */
+    public enum State {
+        /***
+         * Requests are let through within the limit.
+         */
+        CLOSED,
+        /***
+         * Requests fail right away.
+         */
+        OPEN,
+        /***
+         * One probe at a time is let through.
+         */
+        HALF_OPEN
+    }
+
+    /***
+     * Notified of circuit transitions, on the thread of the request causing them.
+     */
+    public interface Listener {
+        void onStateChanged(String host, State from, State to);
+    }
+
+    /***
+     * Notified once an attempt waiting in line gets a slot or gives up, on the thread freeing the
+     * slot or waking the host up, see {@link #acquire(String, HttpCall, long, Admission)}.
+     */
+    interface Admission {
+        void onAdmitted(Permit permit);
+
+        /***
+         * @param e A {@link CircuitOpenException}, a {@link SocketTimeoutException} or a
+         *          {@link RequestCancelledException}.
+         */
+        void onRejected(IOException e);
+    }
+
+    /***
+     * Default limit of a host that wasn't seen yet.
+     */
+    public static final int DEFAULT_INITIAL_LIMIT = 8;
+    /***
+     * Default bounds of the limit.
+     */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 128;
+    /***
+     * Default factor applied to the limit on every failure or slow response.
+     */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    /***
+     * Default multiple of the smoothed latency beyond which a response counts as slow.
+     */
+    public static final double DEFAULT_LATENCY_TOLERANCE = 3.0;
+    /***
+     * Default number of recent outcomes the circuit breaker looks at.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    /***
+     * Default time a circuit stays open before the first probe, doubled on every failed probe.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 5 * 1000;
+    /***
+     * Default cap of the time a circuit stays open.
+     */
+    public static final long DEFAULT_MAX_OPEN_MILLIS = 60 * 1000;
+    /***
+     * Default number of successful probes closing a circuit.
+     */
+    public static final int DEFAULT_PROBE_COUNT = 3;
+
+    /***
+     * Weight of a new sample in the smoothed latency.
+     */
+    private static final double LATENCY_SMOOTHING = 0.1;
+    /***
+     * Samples taken before a response may count as slow.
+     */
+    private static final int LATENCY_WARMUP = 10;
+
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private volatile double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+    private volatile long openMillis = DEFAULT_OPEN_MILLIS;
+    private volatile long maxOpenMillis = DEFAULT_MAX_OPEN_MILLIS;
+    private volatile int probeCount = DEFAULT_PROBE_COUNT;
+    private volatile Listener listener;
+
+    /***
+     * Creates a limiter with {@link #DEFAULT_INITIAL_LIMIT}, {@link #DEFAULT_MIN_LIMIT} and
+     * {@link #DEFAULT_MAX_LIMIT}.
+     */
+    public HostLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /***
+     * @param initialLimit Attempts allowed in flight to a host that wasn't seen yet.
+     * @param minLimit Lower bound of the limit, however badly a host behaves.
+     * @param maxLimit Upper bound of the limit, however well a host behaves.
+     */
+    public HostLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("Invalid host limits");
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /***
+     * Tunes the decrease of the limit.
+     * @param backoffRatio Factor applied to the limit on every failure or slow response, below 1.
+     * @param latencyTolerance Multiple of the smoothed latency beyond which a response is slow,
+     *                         0 to only react to failures.
+     */
+    public void setBackoff(double backoffRatio, double latencyTolerance) {
+        if (backoffRatio <= 0 || backoffRatio >= 1 || (latencyTolerance != 0 && latencyTolerance <= 1))
+            throw new IllegalArgumentException("Invalid backoff");
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /***
+     * Tunes the circuit breaker.
+     * @param openMillis Time a circuit stays open before the first probe.
+     * @param maxOpenMillis Cap of that time, doubled on every failed probe.
+     * @param probeCount Successful probes needed to close a circuit.
+     */
+    public void setCircuit(long openMillis, long maxOpenMillis, int probeCount) {
+        if (openMillis <= 0 || maxOpenMillis < openMillis || probeCount < 1)
+            throw new IllegalArgumentException("Invalid circuit settings");
+        this.openMillis = openMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.probeCount = probeCount;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /***
+     * @return The current limit of a host, the initial one if it wasn't seen yet.
+     */
+    public int getLimit(String host) {
+        Host state = hosts.get(key(host));
+        if (state == null)
+            return initialLimit;
+        state.lock.lock();
+        try {
+            return (int) state.limit;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /***
+     * @return The attempts to a host waiting for their response headers.
+     */
+    public int getInFlight(String host) {
+        Host state = hosts.get(key(host));
+        if (state == null)
+            return 0;
+        state.lock.lock();
+        try {
+            return state.inFlight;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    public State getState(String host) {
+        Host state = hosts.get(key(host));
+        if (state == null)
+            return State.CLOSED;
+        state.lock.lock();
+        try {
+            return state.state;
+        } finally {
+            state.lock.unlock();
+        }
+    }
+
+    /***
+     * @return How many requests failed with a {@link CircuitOpenException}.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /***
+     * @return How many requests gave up waiting for a slot.
+     */
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /***
+     * @return A human readable report, one line per host.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Host> entry : new TreeMap<>(hosts).entrySet()) {
+            Host state = entry.getValue();
+            state.lock.lock();
+            try {
+                builder.append(String.format(Locale.ENGLISH,
+                        "%s: %s, limit %d, in flight %d, failures %d/%d, latency %d ms%n",
+                        entry.getKey(), state.state, (int) state.limit, state.inFlight, state.failures,
+                        state.outcomeCount, TimeUnit.NANOSECONDS.toMillis((long) state.latencyNanos)));
+            } finally {
+                state.lock.unlock();
+            }
+        }
+        builder.append(String.format(Locale.ENGLISH, "rejected %d, timed out %d%n",
+                rejectedCount.get(), timedOutCount.get()));
+        return builder.toString();
+    }
+
+    /***
+     * Forgets the state of a host, closing its circuit.
+     */
+    public void reset(String host) {
+        String key = key(host);
+        Host state = hosts.remove(key);
+        if (state != null) {
+            List<Waiter> ready;
+            state.lock.lock();
+            try {
+                ready = admitWaiters(key, state);
+                state.changed.signalAll();
+            } finally {
+                state.lock.unlock();
+            }
+            notifyWaiters(ready);
+        }
+    }
+
+    /***
+     * Takes a slot for an attempt, waiting for one if the host is at its limit.
+     * @param call The request, waiting stops as soon as it's cancelled.
+     * @param timeoutMillis Maximum wait for a slot.
+     * @return The slot, to be released once the attempt has its response headers or failed.
+     * @throws CircuitOpenException If the circuit of the host is open.
+     * @throws SocketTimeoutException If no slot was free within the timeout.
+     * @throws RequestCancelledException If the request was cancelled while waiting.
+     */
+    Permit acquire(String host, HttpCall call, long timeoutMillis) throws IOException {
+        return acquire(host, call, timeoutMillis, null);
+    }
+
+    /***
+     * Takes a slot for an attempt that can't block, such as one on a {@link NioEngine}. If the
+     * host is at its limit, the attempt waits in line instead: the admission is notified once a
+     * slot is freed for it, or once the circuit opened. It's given up once it's cancelled or its
+     * timeout expired, the next time a slot is freed or {@link #wake(String)} is called.
+     * @param timeoutMillis Maximum wait in line.
+     * @return The slot, or null if the attempt waits in line for one.
+     * @throws CircuitOpenException If the circuit of the host is open.
+     */
+    Permit acquire(String host, HttpCall call, long timeoutMillis, Admission admission) throws IOException {
+        String key = key(host);
+        Host state = host(key);
+        boolean halfOpened = false;
+        boolean probe = false;
+        state.lock.lock();
+        try {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (state.state == State.OPEN && now >= state.openUntil) {
+                    state.state = State.HALF_OPEN;
+                    halfOpened = true;
+                }
+                if (state.state == State.OPEN || (state.state == State.HALF_OPEN && state.probing)) {
+                    rejectedCount.incrementAndGet();
+                    throw new CircuitOpenException(key, Math.max(0, state.openUntil - now));
+                }
+                if (state.state == State.HALF_OPEN) {
+                    state.probing = true;
+                    probe = true;
+                    break;
+                }
+                if (state.inFlight < (int) state.limit)
+                    break;
+                if (call.isCancelled())
+                    throw new RequestCancelledException();
+                if (admission != null && timeoutMillis > 0) {
+                    state.waiters.add(new Waiter(call, end, timeoutMillis, admission));
+                    return null;
+                }
+                if (now >= end) {
+                    timedOutCount.incrementAndGet();
+                    throw new SocketTimeoutException("No free slot to " + key + " within " + timeoutMillis + " ms");
+                }
+                try {
+                    state.changed.await(end - now, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RequestCancelledException();
+                }
+            }
+            state.inFlight++;
+        } finally {
+            state.lock.unlock();
+        }
+        if (halfOpened)
+            changed(key, State.OPEN, State.HALF_OPEN);
+        return new Permit(key, state, probe);
+    }
+
+    /***
+     * Wakes up the requests waiting for a slot to a host, so cancelled and timed out ones give up.
+     */
+    void wake(String host) {
+        String key = key(host);
+        Host state = hosts.get(key);
+        if (state != null) {
+            List<Waiter> ready;
+            state.lock.lock();
+            try {
+                ready = admitWaiters(key, state);
+                state.changed.signalAll();
+            } finally {
+                state.lock.unlock();
+            }
+            notifyWaiters(ready);
+        }
+    }
+
+    /***
+     * Hands the free slots to the attempts waiting in line, in order, and takes the ones giving up
+     * out of the line. Runs with the lock of the host held.
+     * @return The attempts to notify once the lock is released.
+     */
+    private List<Waiter> admitWaiters(String key, Host state) {
+        if (state.waiters.isEmpty())
+            return Collections.emptyList();
+        List<Waiter> ready = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Waiter> iterator = state.waiters.iterator();
+        while (iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            if (waiter.call.isCancelled()) {
+                waiter.rejection = new RequestCancelledException();
+            } else if (state.state != State.CLOSED) {
+                // lines only form while the circuit is closed, an open circuit fails them all
+                rejectedCount.incrementAndGet();
+                waiter.rejection = new CircuitOpenException(key, Math.max(0, state.openUntil - now));
+            } else if (state.inFlight < (int) state.limit) {
+                state.inFlight++;
+                waiter.permit = new Permit(key, state, false);
+            } else if (now >= waiter.end) {
+                timedOutCount.incrementAndGet();
+                waiter.rejection = new SocketTimeoutException("No free slot to " + key + " within "
+                        + waiter.timeoutMillis + " ms");
+            } else {
+                continue;
+            }
+            iterator.remove();
+            ready.add(waiter);
+        }
+        return ready;
+    }
+
+    private static void notifyWaiters(List<Waiter> ready) {
+        for (Waiter waiter : ready) {
+            if (waiter.permit != null)
+                waiter.admission.onAdmitted(waiter.permit);
+            else
+                waiter.admission.onRejected(waiter.rejection);
+        }
+    }
+
+    private Host host(String key) {
+        Host state = hosts.get(key);
+        if (state == null) {
+            state = new Host(initialLimit);
+            Host existing = hosts.putIfAbsent(key, state);
+            if (existing != null)
+                state = existing;
+        }
+        return state;
+    }
+
+    private static String key(String host) {
+        return host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+    }
+
+    private void changed(String host, State from, State to) {
+        HttpLog.d("HostLimiter", String.format(Locale.ENGLISH, "Circuit to %s went from %s to %s", host, from, to));
+        Listener listener = this.listener;
+        if (listener != null)
+            listener.onStateChanged(host, from, to);
+    }
+
+    /***
+     * @return True for the statuses telling the host is struggling.
+     */
+    private static boolean isFailure(int responseCode) {
+        return responseCode <= 0 || responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+
+    private static final class Host {
+        final ReentrantLock lock = new ReentrantLock();
+        /***
+         * Signalled when a slot is freed or the host is reset, for the attempts waiting for one.
+         */
+        final Condition changed = lock.newCondition();
+        /***
+         * The attempts that can't block waiting for a slot, in arrival order.
+         */
+        final Deque<Waiter> waiters = new ArrayDeque<>();
+        double limit;
+        int inFlight;
+        State state = State.CLOSED;
+        long openUntil;
+        long openMillis;
+        int probeSuccesses;
+        /***
+         * True while the probe of a half open circuit is in flight.
+         */
+        boolean probing;
+        final boolean[] outcomes = new boolean[DEFAULT_WINDOW_SIZE];
+        int outcomeCount;
+        int nextOutcome;
+        int failures;
+        double latencyNanos;
+        int latencySamples;
+
+        Host(int limit) {
+            this.limit = limit;
+        }
+
+        void record(boolean failed) {
+            if (outcomeCount == outcomes.length) {
+                if (outcomes[nextOutcome])
+                    failures--;
+            } else {
+                outcomeCount++;
+            }
+            outcomes[nextOutcome] = failed;
+            if (failed)
+                failures++;
+            nextOutcome = (nextOutcome + 1) % outcomes.length;
+        }
+
+        void clearOutcomes() {
+            outcomeCount = 0;
+            nextOutcome = 0;
+            failures = 0;
+        }
+
+        /***
+         * Folds a sample into the exponentially weighted moving average of the latency.
+         * @return The average before the sample, or -1 while there are too few samples to judge.
+         */
+        double sample(long sampleNanos) {
+            double baseline = latencySamples >= LATENCY_WARMUP ? latencyNanos : -1;
+            latencyNanos = latencySamples == 0
+                    ? sampleNanos
+                    : latencyNanos + LATENCY_SMOOTHING * (sampleNanos - latencyNanos);
+            latencySamples++;
+            return baseline;
+        }
+    }
+
+    /***
+     * An attempt waiting in line for a slot.
+     */
+    private static final class Waiter {
+        final HttpCall call;
+        final long end;
+        final long timeoutMillis;
+        final Admission admission;
+        Permit permit;
+        IOException rejection;
+
+        Waiter(HttpCall call, long end, long timeoutMillis, Admission admission) {
+            this.call = call;
+            this.end = end;
+            this.timeoutMillis = timeoutMillis;
+            this.admission = admission;
+        }
+    }
+
+    /***
+     * A slot taken by an attempt, released exactly once.
+     */
+    final class Permit {
+        private final String host;
+        private final Host state;
+        private final boolean probe;
+        private final long startNanos = System.nanoTime();
+        private boolean released;
+
+        /***
+         * @param probe True for the single attempt let through by a half open circuit.
+         */
+        Permit(String host, Host state, boolean probe) {
+            this.host = host;
+            this.state = state;
+            this.probe = probe;
+        }
+
+        /***
+         * Frees the slot and learns from the outcome of the attempt.
+         * @param responseCode The status, 0 if the attempt failed without a response.
+         */
+        void release(int responseCode) {
+            long latencyNanos = System.nanoTime() - startNanos;
+            boolean failed = isFailure(responseCode);
+            State from;
+            State to;
+            List<Waiter> ready;
+            state.lock.lock();
+            try {
+                if (released)
+                    return;
+                released = true;
+                state.inFlight--;
+                if (probe)
+                    state.probing = false;
+                from = state.state;
+                if (hosts.get(host) == state) {
+                    learn(failed, latencyNanos);
+                    breaker(failed);
+                }
+                to = state.state;
+                ready = admitWaiters(host, state);
+                state.changed.signalAll();
+            } finally {
+                state.lock.unlock();
+            }
+            if (from != to)
+                changed(host, from, to);
+            notifyWaiters(ready);
+        }
+
+        /***
+         * Frees the slot without learning anything, for cancelled attempts.
+         */
+        void abandon() {
+            List<Waiter> ready;
+            state.lock.lock();
+            try {
+                if (released)
+                    return;
+                released = true;
+                state.inFlight--;
+                if (probe)
+                    state.probing = false;
+                ready = admitWaiters(host, state);
+                state.changed.signalAll();
+            } finally {
+                state.lock.unlock();
+            }
+            notifyWaiters(ready);
+        }
+
+        private void learn(boolean failed, long latencyNanos) {
+            boolean slow = false;
+            if (!failed) {
+                double baseline = state.sample(latencyNanos);
+                slow = latencyTolerance > 0 && baseline > 0
+                        && latencyNanos > baseline * latencyTolerance
+                        && TimeUnit.NANOSECONDS.toMillis(latencyNanos) > 1;
+            }
+            if (failed || slow)
+                state.limit = Math.max(minLimit, state.limit * backoffRatio);
+            else if (state.inFlight + 1 >= state.limit / 2)
+                state.limit = Math.min(maxLimit, state.limit + 1 / state.limit);
+        }
+
+        private void breaker(boolean failed) {
+            long now = System.currentTimeMillis();
+            if (state.state == State.HALF_OPEN) {
+                // attempts started before the circuit opened don't tell how the host is now
+                if (!probe)
+                    return;
+                if (failed) {
+                    state.openMillis = Math.min(maxOpenMillis, state.openMillis * 2);
+                    state.openUntil = now + state.openMillis;
+                    state.probeSuccesses = 0;
+                    state.state = State.OPEN;
+                } else if (++state.probeSuccesses >= probeCount) {
+                    state.state = State.CLOSED;
+                    state.clearOutcomes();
+                }
+                return;
+            }
+            if (state.state != State.CLOSED)
+                return;
+            state.record(failed);
+            if (state.outcomeCount == state.outcomes.length && state.failures * 2 >= state.outcomeCount) {
+                state.openMillis = openMillis;
+                state.openUntil = now + state.openMillis;
+                state.probeSuccesses = 0;
+                state.state = State.OPEN;
+            }
+        }
+    }
+}
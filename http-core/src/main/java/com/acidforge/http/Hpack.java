@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * HPACK, the header compression of HTTP/2 (RFC 7541). Headers are lists of name and value pairs,
+ * names in lower case.
+ */
+final class Hpack {
+
+    /***
+     * The default size of the dynamic tables, also the size this side decodes with.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /***
+     * Index of the first static entry of each name, and of each name and value pair.
+     */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    /***
+     * The Huffman code of each octet (RFC 7541 appendix B), right aligned, and its length in bits.
+     */
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    private static final Node HUFFMAN_TREE = new Node();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            Node node = HUFFMAN_TREE;
+            for (int bit = CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int branch = (CODES[symbol] >>> bit) & 1;
+                if (node.children[branch] == null)
+                    node.children[branch] = new Node();
+                node = node.children[branch];
+            }
+            node.symbol = symbol;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /***
+     * Decodes the header blocks received on a connection, keeping the dynamic table between blocks.
+     */
+    static final class Decoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private byte[] block;
+        private int position;
+
+        List<String[]> decode(byte[] block) throws ProtocolException {
+            this.block = block;
+            this.position = 0;
+            List<String[]> headers = new ArrayList<>();
+            while (position < block.length) {
+                int b = block[position] & 0xff;
+                if ((b & 0x80) != 0) {
+                    headers.add(entry(readInt(7)));
+                } else if ((b & 0x40) != 0) {
+                    String[] header = literal(6);
+                    table.add(header);
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInt(5);
+                    if (size > DEFAULT_TABLE_SIZE)
+                        throw new ProtocolException("Invalid HPACK table size " + size);
+                    table.resize(size);
+                } else {
+                    headers.add(literal(4));
+                }
+            }
+            return headers;
+        }
+
+        private String[] literal(int prefix) throws ProtocolException {
+            int index = readInt(prefix);
+            String name = index == 0 ? readString() : entry(index)[0];
+            return new String[]{name, readString()};
+        }
+
+        private String[] entry(int index) throws ProtocolException {
+            if (index >= 1 && index <= STATIC_TABLE.length)
+                return STATIC_TABLE[index - 1];
+            String[] header = table.get(index - STATIC_TABLE.length);
+            if (header == null)
+                throw new ProtocolException("Invalid HPACK index " + index);
+            return header;
+        }
+
+        private int readInt(int prefix) throws ProtocolException {
+            int mask = (1 << prefix) - 1;
+            int value = block[position++] & mask;
+            if (value < mask)
+                return value;
+            for (int shift = 0; shift < 28; shift += 7) {
+                if (position >= block.length)
+                    throw new ProtocolException("Truncated HPACK integer");
+                int b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new ProtocolException("HPACK integer overflow");
+        }
+
+        private String readString() throws ProtocolException {
+            if (position >= block.length)
+                throw new ProtocolException("Truncated HPACK string");
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > block.length - position)
+                throw new ProtocolException("Truncated HPACK string");
+            String value = huffman
+                    ? huffmanDecode(block, position, length)
+                    : new String(block, position, length, ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+
+    /***
+     * Encodes the header blocks sent on a connection, indexing the headers repeated from a request
+     * to the next so they take a byte or two once known.
+     */
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int pendingTableSize = -1;
+
+        /***
+         * Follows the table size allowed by the peer settings.
+         */
+        void setMaxTableSize(int size) {
+            int bounded = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (bounded != table.maxSize) {
+                table.resize(bounded);
+                pendingTableSize = bounded;
+            }
+        }
+
+        void encode(List<String[]> headers, ByteArrayOutputStream out) {
+            if (pendingTableSize >= 0) {
+                writeInt(out, pendingTableSize, 5, 0x20);
+                pendingTableSize = -1;
+            }
+            for (String[] header : headers) {
+                String name = header[0];
+                String value = header[1];
+                Integer index = STATIC_ENTRIES.get(name + '\0' + value);
+                if (index == null) {
+                    int dynamic = table.indexOf(name, value);
+                    if (dynamic > 0)
+                        index = dynamic + STATIC_TABLE.length;
+                }
+                if (index != null) {
+                    writeInt(out, index, 7, 0x80);
+                    continue;
+                }
+                Integer nameIndex = STATIC_NAMES.get(name);
+                if (nameIndex == null) {
+                    int dynamic = table.indexOfName(name);
+                    nameIndex = dynamic > 0 ? dynamic + STATIC_TABLE.length : 0;
+                }
+                if (isSensitive(name)) {
+                    writeInt(out, nameIndex, 4, 0x10);
+                } else if (isVolatile(name) || name.length() + value.length() + ENTRY_OVERHEAD > table.maxSize) {
+                    writeInt(out, nameIndex, 4, 0x00);
+                } else {
+                    writeInt(out, nameIndex, 6, 0x40);
+                    table.add(header);
+                }
+                if (nameIndex == 0)
+                    writeString(out, name);
+                writeString(out, value);
+            }
+        }
+
+        /***
+         * Credentials are never indexed, so a compression oracle can't guess them.
+         */
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "proxy-authorization".equals(name);
+        }
+
+        /***
+         * Values changing with every request would only push useful entries out of the table.
+         */
+        private static boolean isVolatile(String name) {
+            return ":path".equals(name) || "content-length".equals(name);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(ISO_8859_1);
+            long huffmanBits = 0;
+            for (byte b : bytes)
+                huffmanBits += CODE_LENGTHS[b & 0xff];
+            int huffmanLength = (int) ((huffmanBits + 7) / 8);
+            if (huffmanLength >= bytes.length) {
+                writeInt(out, bytes.length, 7, 0x00);
+                out.write(bytes, 0, bytes.length);
+                return;
+            }
+            writeInt(out, huffmanLength, 7, 0x80);
+            long current = 0;
+            int bits = 0;
+            for (byte b : bytes) {
+                int symbol = b & 0xff;
+                current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+                bits += CODE_LENGTHS[symbol];
+                while (bits >= 8) {
+                    bits -= 8;
+                    out.write((int) (current >> bits));
+                }
+            }
+            if (bits > 0)
+                out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, int prefix, int flags) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static String huffmanDecode(byte[] source, int offset, int length) throws ProtocolException {
+        StringBuilder builder = new StringBuilder(length * 8 / 5);
+        Node node = HUFFMAN_TREE;
+        int padding = 0;
+        boolean paddingOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = source[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int branch = (b >>> bit) & 1;
+                node = node.children[branch];
+                if (node == null)
+                    throw new ProtocolException("Invalid Huffman code");
+                padding++;
+                paddingOnes &= branch == 1;
+                if (node.symbol >= 0) {
+                    builder.append((char) node.symbol);
+                    node = HUFFMAN_TREE;
+                    padding = 0;
+                    paddingOnes = true;
+                }
+            }
+        }
+        if (padding > 7 || !paddingOnes)
+            throw new ProtocolException("Invalid Huffman padding");
+        return builder.toString();
+    }
+
+    /***
+     * A node of the Huffman decoding tree, a leaf if its symbol is set.
+     */
+    private static final class Node {
+        final Node[] children = new Node[2];
+        int symbol = -1;
+    }
+
+    /***
+     * A dynamic table, the newest entry at index 1.
+     */
+    private static final class Table {
+        private final ArrayList<String[]> entries = new ArrayList<>();
+        private int size;
+        int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            return index >= 1 && index <= entries.size() ? entries.get(entries.size() - index) : null;
+        }
+
+        int indexOf(String name, String value) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                String[] entry = entries.get(i);
+                if (entry[0].equals(name) && entry[1].equals(value))
+                    return entries.size() - i;
+            }
+            return -1;
+        }
+
+        int indexOfName(String name) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i)[0].equals(name))
+                    return entries.size() - i;
+            }
+            return -1;
+        }
+
+        void add(String[] header) {
+            int entrySize = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+            if (entrySize > maxSize) {
+                entries.clear();
+                size = 0;
+                return;
+            }
+            entries.add(header);
+            size += entrySize;
+            evict();
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize) {
+                String[] oldest = entries.remove(0);
+                size -= oldest[0].length() + oldest[1].length() + ENTRY_OVERHEAD;
+            }
+        }
+    }
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * An HTTP/2 connection (RFC 7540) carrying the concurrent {@link Http2Stream}s to a host. Frames
+ * are read by a thread of the connection and written by the threads of the streams, one frame at
+ * a time.
+ * Received data is acknowledged to the server per stream as the reader consumes it, so a slow
+ * reader only stalls its own stream, and per connection as soon as it arrives.
+ */
+final class Http2Connection implements Runnable {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("ISO-8859-1"));
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int ERROR_NO_ERROR = 0x0;
+    static final int ERROR_PROTOCOL = 0x1;
+    static final int ERROR_FLOW_CONTROL = 0x3;
+    static final int ERROR_FRAME_SIZE = 0x6;
+    static final int ERROR_CANCEL = 0x8;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    /***
+     * The window of each stream, how much the server may send before the reader consumes it.
+     */
+    static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+    /***
+     * The window of the connection, shared by its streams.
+     */
+    static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    final String address;
+    private final Http2Engine engine;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    /***
+     * Held while writing a frame, and from the allocation of a stream id to its headers being
+     * written so streams open in order.
+     */
+    private final Object writeLock = new Object();
+
+    // guarded by this
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int nextStreamId = 1;
+    private int reservedStreams;
+    private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private long unacknowledged;
+    private boolean shutdown;
+    private IOException failure;
+
+    /***
+     * Starts the connection over a connected socket, sending the preface and the settings.
+     */
+    Http2Connection(Http2Engine engine, String address, Socket socket) throws IOException {
+        this.engine = engine;
+        this.address = address;
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        synchronized (writeLock) {
+            out.write(PREFACE);
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            writeFrame(TYPE_WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE), 0, 4);
+            out.flush();
+        }
+        Thread thread = new Thread(this, "Http2Connection #" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /***
+     * @return True if new streams may still be opened on the connection.
+     */
+    synchronized boolean isUsable() {
+        return !shutdown;
+    }
+
+    /***
+     * Opens a stream, sending its headers and body. Blocks while the server's limit of concurrent
+     * streams is reached, and while the flow control windows are exhausted.
+     * @param body The request body, null for none.
+     */
+    void newStream(Http2Stream stream, List<String[]> headers, byte[] body) throws IOException {
+        synchronized (this) {
+            try {
+                while (!shutdown && streams.size() + reservedStreams >= peerMaxConcurrentStreams)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (shutdown)
+                throw new IOException("HTTP/2 connection to " + address + " shut down");
+            reservedStreams++;
+        }
+        boolean endStream = body == null || body.length == 0;
+        synchronized (writeLock) {
+            synchronized (this) {
+                reservedStreams--;
+                if (shutdown)
+                    throw new IOException("HTTP/2 connection to " + address + " shut down");
+                stream.id = nextStreamId;
+                stream.sendWindow = peerInitialWindowSize;
+                streams.put(nextStreamId, stream);
+                nextStreamId += 2;
+                // stream ids are exhausted, the next request opens a new connection
+                if (nextStreamId < 0)
+                    shutdown = true;
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(headers, block);
+            writeHeaders(stream.id, block.toByteArray(), endStream);
+            if (endStream)
+                out.flush();
+        }
+        if (!endStream)
+            writeData(stream, body);
+    }
+
+    /***
+     * Gives a stream up, telling the server to stop sending it.
+     */
+    void reset(Http2Stream stream, int errorCode) {
+        synchronized (this) {
+            if (streams.get(stream.id) != stream)
+                return;
+            streams.remove(stream.id);
+            notifyAll();
+        }
+        try {
+            synchronized (writeLock) {
+                writeFrame(TYPE_RST_STREAM, 0, stream.id, int32(errorCode), 0, 4);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /***
+     * Acknowledges the bytes the reader of a stream consumed, once they make up half its window.
+     */
+    void onConsumed(Http2Stream stream, int count) {
+        int increment;
+        synchronized (this) {
+            stream.unacknowledged += count;
+            if (stream.unacknowledged < STREAM_WINDOW_SIZE / 2 || streams.get(stream.id) != stream)
+                return;
+            increment = stream.unacknowledged;
+            stream.unacknowledged = 0;
+        }
+        writeWindowUpdate(stream.id, increment);
+    }
+
+    /***
+     * Fails the open streams and closes the socket.
+     */
+    void close(IOException cause) {
+        List<Http2Stream> failed;
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = cause;
+            shutdown = true;
+            failed = new ArrayList<>(streams.values());
+            streams.clear();
+            notifyAll();
+        }
+        engine.remove(this);
+        for (Http2Stream stream : failed)
+            stream.receiveFailure(cause);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true)
+                readFrame();
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            HttpLog.e("Http2Connection", e.getLocalizedMessage(), e);
+            close(new IOException(e));
+        }
+    }
+
+    private void writeData(Http2Stream stream, byte[] body) throws IOException {
+        int offset = 0;
+        while (offset < body.length) {
+            int count;
+            synchronized (this) {
+                try {
+                    while (failure == null && streams.get(stream.id) == stream
+                            && (sendWindow <= 0 || stream.sendWindow <= 0))
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (failure != null)
+                    throw failure;
+                // the stream was reset, or the server answered without reading the whole body
+                if (streams.get(stream.id) != stream)
+                    return;
+                count = (int) Math.min(Math.min(sendWindow, stream.sendWindow), Math.min(peerMaxFrameSize, body.length - offset));
+                sendWindow -= count;
+                stream.sendWindow -= count;
+            }
+            boolean last = offset + count == body.length;
+            synchronized (writeLock) {
+                writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id, body, offset, count);
+                out.flush();
+            }
+            offset += count;
+        }
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrameSize;
+        synchronized (this) {
+            maxFrameSize = peerMaxFrameSize;
+        }
+        int length = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+        writeFrame(TYPE_HEADERS, flags, streamId, block, 0, length);
+        for (int offset = length; offset < block.length; offset += length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+            writeFrame(TYPE_CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId,
+                    block, offset, length);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        try {
+            synchronized (writeLock) {
+                writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, int32(increment), 0, 4);
+                out.flush();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(int32(streamId));
+        out.write(payload, offset, length);
+    }
+
+    private void readFrame() throws IOException {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+        if (length > DEFAULT_MAX_FRAME_SIZE)
+            throw goAway(ERROR_FRAME_SIZE, "HTTP/2 frame too large: " + length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        switch (type) {
+            case TYPE_DATA:
+                onData(streamId, flags, payload);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(streamId, flags, payload);
+                break;
+            case TYPE_RST_STREAM:
+                if (length != 4)
+                    throw goAway(ERROR_FRAME_SIZE, "Invalid RST_STREAM frame");
+                onReset(streamId, readInt(payload, 0));
+                break;
+            case TYPE_SETTINGS:
+                if ((flags & FLAG_ACK) == 0)
+                    onSettings(payload);
+                break;
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    synchronized (writeLock) {
+                        writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, length);
+                        out.flush();
+                    }
+                }
+                break;
+            case TYPE_GOAWAY:
+                onGoAway(readInt(payload, 0) & 0x7fffffff, readInt(payload, 4));
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+                break;
+            case TYPE_PUSH_PROMISE:
+            case TYPE_CONTINUATION:
+                throw goAway(ERROR_PROTOCOL, "Unexpected HTTP/2 frame of type " + type);
+            default:
+                // PRIORITY and extension frames
+                break;
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end -= payload[0] & 0xff;
+            if (end < start)
+                throw goAway(ERROR_PROTOCOL, "Invalid DATA padding");
+        }
+        Http2Stream stream;
+        int increment = 0;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            unacknowledged += payload.length;
+            if (unacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+                increment = (int) unacknowledged;
+                unacknowledged = 0;
+            }
+            if (stream != null) {
+                // padding never reaches the reader, it's acknowledged with the next consumed bytes
+                stream.unacknowledged += payload.length - (end - start);
+                if ((flags & FLAG_END_STREAM) != 0)
+                    streams.remove(streamId);
+                notifyAll();
+            }
+        }
+        if (increment > 0)
+            writeWindowUpdate(0, increment);
+        if (stream == null)
+            return;
+        byte[] chunk = new byte[end - start];
+        System.arraycopy(payload, start, chunk, 0, chunk.length);
+        stream.receiveBody(chunk);
+        if ((flags & FLAG_END_STREAM) != 0)
+            stream.receiveBodyEnd();
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0)
+            start += 5;
+        if (end < start)
+            throw goAway(ERROR_PROTOCOL, "Invalid HEADERS frame");
+        ByteArrayOutputStream block = new ByteArrayOutputStream(end - start);
+        block.write(payload, start, end - start);
+        int headerFlags = flags;
+        while ((headerFlags & FLAG_END_HEADERS) == 0) {
+            int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+            int type = in.readUnsignedByte();
+            headerFlags = in.readUnsignedByte();
+            int continuedId = in.readInt() & 0x7fffffff;
+            if (type != TYPE_CONTINUATION || continuedId != streamId || length > DEFAULT_MAX_FRAME_SIZE)
+                throw goAway(ERROR_PROTOCOL, "Expected a CONTINUATION frame");
+            byte[] continuation = new byte[length];
+            in.readFully(continuation);
+            block.write(continuation, 0, length);
+        }
+        // the block is decoded even for a stream given up, to keep the table in sync
+        List<String[]> headers = decoder.decode(block.toByteArray());
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.get(streamId);
+            if (stream != null && endStream)
+                streams.remove(streamId);
+            notifyAll();
+        }
+        if (stream != null)
+            stream.receiveHeaders(headers, endStream);
+    }
+
+    private void onReset(int streamId, int errorCode) {
+        Http2Stream stream;
+        synchronized (this) {
+            stream = streams.remove(streamId);
+            notifyAll();
+        }
+        if (stream != null)
+            stream.receiveFailure(new IOException("HTTP/2 stream reset by the server, error " + errorCode));
+    }
+
+    private void onSettings(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0)
+            throw goAway(ERROR_FRAME_SIZE, "Invalid SETTINGS frame");
+        synchronized (writeLock) {
+            synchronized (this) {
+                for (int i = 0; i < payload.length; i += 6) {
+                    int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+                    int value = readInt(payload, i + 2);
+                    switch (id) {
+                        case SETTINGS_HEADER_TABLE_SIZE:
+                            encoder.setMaxTableSize(value);
+                            break;
+                        case SETTINGS_MAX_CONCURRENT_STREAMS:
+                            peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                            break;
+                        case SETTINGS_INITIAL_WINDOW_SIZE:
+                            if (value < 0)
+                                throw goAway(ERROR_FLOW_CONTROL, "Invalid initial window size");
+                            int delta = value - peerInitialWindowSize;
+                            peerInitialWindowSize = value;
+                            for (Http2Stream stream : streams.values())
+                                stream.sendWindow += delta;
+                            break;
+                        case SETTINGS_MAX_FRAME_SIZE:
+                            if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff)
+                                throw goAway(ERROR_PROTOCOL, "Invalid max frame size");
+                            peerMaxFrameSize = value;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                notifyAll();
+            }
+            writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            out.flush();
+        }
+    }
+
+    private void onGoAway(int lastStreamId, int errorCode) {
+        List<Http2Stream> refused = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (Map.Entry<Integer, Http2Stream> entry : new ArrayList<>(streams.entrySet())) {
+                if (entry.getKey() > lastStreamId) {
+                    refused.add(entry.getValue());
+                    streams.remove(entry.getKey());
+                }
+            }
+            notifyAll();
+        }
+        engine.remove(this);
+        HttpLog.d("Http2Connection", "GOAWAY from " + address + ", error " + errorCode);
+        for (Http2Stream stream : refused)
+            stream.receiveFailure(new IOException("HTTP/2 stream refused, the connection is shutting down"));
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        synchronized (this) {
+            if (streamId == 0) {
+                sendWindow += increment;
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null)
+                    stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    /***
+     * Tells the server the connection is given up on an error of its own.
+     * @return The error to close the connection with.
+     */
+    private IOException goAway(int errorCode, String message) {
+        try {
+            synchronized (writeLock) {
+                byte[] payload = new byte[8];
+                int lastStreamId;
+                synchronized (this) {
+                    lastStreamId = Math.max(0, nextStreamId - 2);
+                }
+                System.arraycopy(int32(lastStreamId), 0, payload, 0, 4);
+                System.arraycopy(int32(errorCode), 0, payload, 4, 4);
+                writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+        return new ProtocolException(message);
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        System.arraycopy(int32(value), 0, settings, offset + 2, 4);
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static int readInt(byte[] bytes, int offset) throws EOFException {
+        if (bytes.length < offset + 4)
+            throw new EOFException("Truncated HTTP/2 frame");
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | bytes[offset + 3] & 0xff;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/***
+ * An {@link HttpEngine} speaking HTTP/2, multiplexing the requests to a host as streams of a
+ * single connection with compressed headers, instead of a socket per request in flight.
+ * https hosts are asked for h2 through ALPN during the TLS handshake. Hosts declining it, or every
+ * host on platforms without ALPN, are remembered and served by {@link HttpEngine#URL_CONNECTION}.
+ * http urls are spoken to in cleartext HTTP/2 (h2c) with prior knowledge, without the HTTP/1.1
+ * upgrade, which suits local test servers, so only use it with servers known to accept it.
+ * Request bodies are buffered in memory and sent once complete.
+ * Share a single instance among the requests of the application.
+ */
+public final class Http2Engine implements HttpEngine, ReportingEngine {
+
+    /***
+     * Default time to open a connection, TLS handshake included.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+
+    private static final String[] PROTOCOLS = {"h2", "http/1.1"};
+
+    private final Dns dns;
+    private final ConcurrentHashMap<String, Future<Http2Connection>> connections = new ConcurrentHashMap<>();
+    private final Set<String> http1Addresses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong streamCount = new AtomicLong();
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    /***
+     * Creates an engine resolving hosts with its own {@link CachingDns}.
+     */
+    public Http2Engine() {
+        this(new CachingDns());
+    }
+
+    /***
+     * @param dns The resolver of the hosts.
+     */
+    public Http2Engine(Dns dns) {
+        this.dns = dns;
+    }
+
+    /***
+     * Requests share their connection, so its timeout is the engine's rather than the one of the
+     * request opening it.
+     * @param connectTimeoutMillis Time to open a connection, TLS handshake included.
+     */
+    public void setConnectTimeout(int connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0)
+            throw new IllegalArgumentException("Timeout must be positive");
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /***
+     * @return How many HTTP/2 connections were opened.
+     */
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    /***
+     * @return How many requests went over HTTP/2.
+     */
+    public long getStreamCount() {
+        return streamCount.get();
+    }
+
+    /***
+     * Opens a connection to the host ahead of the requests, unless one is open.
+     * @throws IOException If the connection failed.
+     */
+    @Override
+    public HttpURLConnection open(URL url, SSLContext sslContext) throws IOException {
+        return open(url, sslContext, null);
+    }
+
+    /***
+     * @param call The call whose listener hears of the lookup and connect, when it opens the
+     *             connection the other requests then share.
+     */
+    @Override
+    public HttpURLConnection open(URL url, SSLContext sslContext, HttpCall call) throws IOException {
+        String protocol = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        if (!"http".equals(protocol) && !"https".equals(protocol))
+            throw new IOException("Unsupported protocol " + protocol);
+        if ("http".equals(protocol)) {
+            sslContext = null;
+        } else if (sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String address = protocol + "://" + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port
+                + (sslContext == null ? "" : "#" + System.identityHashCode(sslContext));
+        Http2Connection connection = http1Addresses.contains(address) ? null : connection(address, url, sslContext, call);
+        if (connection == null)
+            return HttpEngine.URL_CONNECTION.open(url, sslContext);
+        streamCount.incrementAndGet();
+        return new Http2Stream(connection, url);
+    }
+
+    /***
+     * Forgets a connection that no longer takes new streams.
+     */
+    void remove(Http2Connection connection) {
+        Future<Http2Connection> future = connections.get(connection.address);
+        if (future == null || !future.isDone())
+            return;
+        try {
+            if (future.get() == connection)
+                connections.remove(connection.address, future);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /***
+     * @return The connection to the address, opening it unless another request is, null if the
+     * host doesn't speak HTTP/2.
+     */
+    private Http2Connection connection(final String address, final URL url, final SSLContext sslContext,
+                                       final HttpCall call) throws IOException {
+        while (true) {
+            Future<Http2Connection> future = connections.get(address);
+            if (future == null) {
+                FutureTask<Http2Connection> task = new FutureTask<>(new Callable<Http2Connection>() {
+                    @Override
+                    public Http2Connection call() throws Exception {
+                        return connect(address, url, sslContext, call);
+                    }
+                });
+                future = connections.putIfAbsent(address, task);
+                if (future == null) {
+                    future = task;
+                    task.run();
+                }
+            }
+            Http2Connection connection;
+            try {
+                connection = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                connections.remove(address, future);
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            if (connection != null && connection.isUsable())
+                return connection;
+            connections.remove(address, future);
+            if (connection == null)
+                return null;
+        }
+    }
+
+    private Http2Connection connect(String address, URL url, SSLContext sslContext, HttpCall call) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        if (call != null)
+            call.dnsStart(host);
+        List<InetAddress> addresses = dns.lookup(host);
+        if (call != null) {
+            call.dnsEnd(host);
+            call.connectStart();
+        }
+        Socket socket = HappyEyeballs.connect(addresses, port, connectTimeoutMillis);
+        try {
+            socket.setTcpNoDelay(true);
+            if (sslContext != null) {
+                SSLSocket sslSocket = (SSLSocket) TlsSocketFactory.forContext(sslContext).createSocket(socket, host, port, true);
+                socket = sslSocket;
+                requestProtocols(sslSocket);
+                sslSocket.setSoTimeout(connectTimeoutMillis);
+                sslSocket.startHandshake();
+                sslSocket.setSoTimeout(0);
+                if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession()))
+                    throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                if (!"h2".equals(selectedProtocol(sslSocket))) {
+                    // the platform connection resumes the session just negotiated
+                    HttpLog.d("Http2Engine", host + " doesn't speak HTTP/2, falling back to HTTP/1.1");
+                    http1Addresses.add(address);
+                    socket.close();
+                    if (call != null)
+                        call.connectEnd();
+                    return null;
+                }
+            }
+            Http2Connection connection = new Http2Connection(this, address, socket);
+            openedCount.incrementAndGet();
+            if (call != null)
+                call.connectEnd();
+            return connection;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    /***
+     * Offers h2 through ALPN, with the api of Android 10 and Java 9 or else the one of the
+     * platform socket on older Android versions.
+     */
+    private static void requestProtocols(SSLSocket socket) {
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            SSLParameters.class.getMethod("setApplicationProtocols", String[].class).invoke(parameters, (Object) PROTOCOLS);
+            socket.setSSLParameters(parameters);
+            return;
+        } catch (Exception ignored) {
+        }
+        try {
+            Charset ascii = Charset.forName("US-ASCII");
+            byte[] h2 = PROTOCOLS[0].getBytes(ascii);
+            byte[] http11 = PROTOCOLS[1].getBytes(ascii);
+            byte[] encoded = new byte[2 + h2.length + http11.length];
+            encoded[0] = (byte) h2.length;
+            System.arraycopy(h2, 0, encoded, 1, h2.length);
+            encoded[1 + h2.length] = (byte) http11.length;
+            System.arraycopy(http11, 0, encoded, 2 + h2.length, http11.length);
+            socket.getClass().getMethod("setAlpnProtocols", byte[].class).invoke(socket, (Object) encoded);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /***
+     * @return The protocol the server picked, null if ALPN isn't supported.
+     */
+    private static String selectedProtocol(SSLSocket socket) {
+        try {
+            return (String) SSLSocket.class.getMethod("getApplicationProtocol").invoke(socket);
+        } catch (Exception ignored) {
+        }
+        try {
+            byte[] protocol = (byte[]) socket.getClass().getMethod("getAlpnSelectedProtocol").invoke(socket);
+            return protocol == null ? null : new String(protocol, Charset.forName("US-ASCII"));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/***
+ * An exchange of the {@link Http2Engine}, a stream of a shared {@link Http2Connection}. The request
+ * goes out with its buffered body once complete.
+ */
+final class Http2Stream extends TransportConnection {
+
+    private final Http2Connection connection;
+    // guarded by the connection
+    int id;
+    long sendWindow;
+    int unacknowledged;
+    // connection reader thread only
+    private boolean headersReceived;
+
+    Http2Stream(Http2Connection connection, URL url) {
+        super(url);
+        this.connection = connection;
+    }
+
+    /***
+     * The connection to the host is opened by the engine, before the stream.
+     */
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    void sendRequest() throws IOException {
+        byte[] body;
+        List<String[]> headers;
+        synchronized (this) {
+            if (!freezeRequest())
+                return;
+            body = requestBody();
+            headers = requestHeaders(body);
+            connected = true;
+        }
+        try {
+            connection.newStream(this, headers, body);
+        } catch (IOException e) {
+            receiveFailure(e);
+            throw e;
+        }
+    }
+
+    @Override
+    void abort() {
+        if (!isBodyComplete()) {
+            connection.reset(this, Http2Connection.ERROR_CANCEL);
+            receiveFailure(new IOException("Canceled"));
+        }
+    }
+
+    @Override
+    void onBodyRead(int count, int buffered) {
+        connection.onConsumed(this, count);
+    }
+
+    /***
+     * Called on the reader thread of the connection with a decoded header block.
+     */
+    void receiveHeaders(List<String[]> headers, boolean endStream) {
+        if (!headersReceived) {
+            String status = null;
+            for (String[] header : headers) {
+                if (":status".equals(header[0]))
+                    status = header[1];
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status);
+            } catch (NumberFormatException e) {
+                connection.reset(this, Http2Connection.ERROR_PROTOCOL);
+                receiveFailure(new ProtocolException("Invalid HTTP/2 status: " + status));
+                return;
+            }
+            // informational responses precede the final one
+            if (code >= 100 && code < 200)
+                return;
+            receiveStatus(code, "", "HTTP/2 " + code);
+            for (String[] header : headers) {
+                if (!header[0].startsWith(":"))
+                    receiveHeader(header[0], header[1]);
+            }
+            headersReceived = true;
+            receiveHeadersEnd();
+        }
+        // trailers are dropped
+        if (endStream)
+            receiveBodyEnd();
+    }
+
+    /***
+     * The pseudo headers then the request properties, without the HTTP/1.1 connection headers.
+     */
+    private List<String[]> requestHeaders(byte[] body) {
+        List<String[]> headers = new ArrayList<>();
+        String file = url.getFile();
+        headers.add(new String[]{":method", method});
+        headers.add(new String[]{":scheme", url.getProtocol().toLowerCase(Locale.ENGLISH)});
+        headers.add(new String[]{":authority", url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                ? url.getHost()
+                : url.getHost() + ":" + url.getPort()});
+        headers.add(new String[]{":path", file.isEmpty() ? "/" : file});
+        for (Map.Entry<String, List<String>> property : getRequestProperties().entrySet()) {
+            if (property.getKey() == null)
+                continue;
+            String name = property.getKey().toLowerCase(Locale.ENGLISH);
+            if (name.equals("host") || name.equals("connection") || name.equals("keep-alive")
+                    || name.equals("proxy-connection") || name.equals("transfer-encoding")
+                    || name.equals("upgrade") || name.equals("te") || name.equals("content-length"))
+                continue;
+            for (String value : property.getValue())
+                headers.add(new String[]{name, value});
+        }
+        if (body != null)
+            headers.add(new String[]{"content-length", Integer.toString(body.length)});
+        else if (getDoOutput() || "POST".equals(method) || "PUT".equals(method))
+            headers.add(new String[]{"content-length", "0"});
+        return headers;
+    }
+}
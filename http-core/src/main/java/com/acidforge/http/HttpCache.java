@@ -0,0 +1,690 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Stores GET responses so repeated requests are answered without the network.
+ * Fresh entries are served as they are, stale entries carrying an ETag or a Last-Modified are
+ * revalidated with a conditional request and served again when the server answers 304.
+ * Entries live in a size bounded directory evicted in least recently used order, and the
+ * smallest ones are also kept in memory.
+ */
+public final class HttpCache {
+
+    /***
+     * Longest freshness given to a response that only carries a Last-Modified, 24 hours.
+     */
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+    private static final String METADATA_SUFFIX = ".0";
+    private static final String BODY_SUFFIX = ".1";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxDiskBytes;
+    private final long maxMemoryBytes;
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong revalidationHitCount = new AtomicLong();
+    private long diskBytes;
+    private long memoryBytes;
+    private boolean initialized;
+
+    /***
+     * Creates a cache, the directory is only read when the first request needs it.
+     * @param directory Directory owned by this cache, usually inside the cache directory of the app.
+     * @param maxDiskBytes Maximum size of the stored bodies.
+     * @param maxMemoryBytes Maximum size of the bodies kept in memory. Only bodies smaller than
+     *                       an eighth of it are kept.
+     */
+    public HttpCache(File directory, long maxDiskBytes, long maxMemoryBytes) {
+        if (maxDiskBytes < 1 || maxMemoryBytes < 0)
+            throw new IllegalArgumentException("Cache sizes must be positive");
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /***
+     * @return Requests answered from the cache without using the network.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /***
+     * @return Requests that downloaded a full response.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /***
+     * @return Conditional requests sent to revalidate a stale entry.
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /***
+     * @return Conditional requests answered with 304, so the stored body was served.
+     */
+    public long getRevalidationHitCount() {
+        return revalidationHitCount.get();
+    }
+
+    public synchronized long getSize() {
+        initialize();
+        return diskBytes;
+    }
+
+    /***
+     * Deletes every stored response.
+     */
+    public synchronized void evictAll() {
+        initialize();
+        for (String key : new ArrayList<>(diskEntries.keySet()))
+            delete(key);
+        memoryEntries.clear();
+        memoryBytes = 0;
+    }
+
+    /***
+     * Deletes the response stored for an address.
+     */
+    public synchronized void remove(URL url) {
+        initialize();
+        delete(keyOf(url));
+    }
+
+    /***
+     * @return The stored response for an address, or null. The files are read without holding the
+     * lock of the cache.
+     */
+    Entry get(URL url) {
+        String key = keyOf(url);
+        synchronized (this) {
+            initialize();
+            Entry entry = memoryEntries.get(key);
+            if (diskEntries.get(key) == null)
+                return null;
+            if (entry != null)
+                return entry;
+        }
+        Entry entry = readMetadata(key);
+        if (entry == null || !entry.url.equals(url.toString())) {
+            synchronized (this) {
+                delete(key);
+            }
+            return null;
+        }
+        if (entry.bodyLength <= maxMemoryBytes / 8)
+            entry.body = readBody(key, entry.bodyLength);
+        if (entry.body != null) {
+            synchronized (this) {
+                if (diskEntries.containsKey(key) && !memoryEntries.containsKey(key))
+                    putMemory(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    void trackHit() {
+        hitCount.incrementAndGet();
+    }
+
+    void trackMiss() {
+        missCount.incrementAndGet();
+    }
+
+    void trackRevalidation() {
+        revalidationCount.incrementAndGet();
+    }
+
+    /***
+     * Refreshes a stale entry with the headers of a 304 response, which update the stored ones as
+     * RFC 7234 section 4.3.4 requires: without Cache-Control nor Expires, the response stays fresh
+     * as long as it was when it was stored.
+     * @return The stored body, or null if the entry was evicted meanwhile and the request has to be
+     * sent again without validators.
+     */
+    InputStream update(Entry entry, Map<String, List<String>> headers) {
+        long now = System.currentTimeMillis();
+        String etag = firstHeader(headers, "ETag");
+        String lastModified = firstHeader(headers, "Last-Modified");
+        long freshUntil = hasExplicitFreshness(headers) ? freshUntil(headers, now) : now + entry.lifetime;
+        Entry updated = new Entry(entry.key, entry.url, entry.contentType,
+                etag != null ? etag : entry.etag, lastModified != null ? lastModified : entry.lastModified,
+                freshUntil, Math.max(0, freshUntil - now), entry.bodyLength);
+        updated.body = entry.body;
+        InputStream body = null;
+        synchronized (this) {
+            if (diskEntries.containsKey(entry.key)) {
+                try {
+                    body = updated.newInputStream();
+                    writeMetadata(updated);
+                    if (memoryEntries.containsKey(entry.key))
+                        memoryEntries.put(entry.key, updated);
+                } catch (FileNotFoundException e) {
+                    delete(entry.key);
+                }
+            }
+        }
+        if (body == null && updated.body != null)
+            body = new ByteArrayInputStream(updated.body);
+        if (body != null)
+            revalidationHitCount.incrementAndGet();
+        return body;
+    }
+
+    /***
+     * Starts storing a 200 response to a GET.
+     * @param url The requested address.
+     * @param headers The response headers.
+     * @param body The response body.
+     * @return The stream to be read instead of body, copying every byte to the cache and storing
+     * the entry once the end is reached. The body itself if the response can't be stored.
+     */
+    InputStream put(URL url, Map<String, List<String>> headers, InputStream body) {
+        if (body == null || !isStorable(headers))
+            return body;
+        long now = System.currentTimeMillis();
+        String key = keyOf(url);
+        long freshUntil = freshUntil(headers, now);
+        Entry entry = new Entry(key, url.toString(), firstHeader(headers, "Content-Type"),
+                firstHeader(headers, "ETag"), firstHeader(headers, "Last-Modified"),
+                freshUntil, Math.max(0, freshUntil - now), 0);
+        if (entry.freshUntil <= now && entry.etag == null && entry.lastModified == null)
+            return body;
+        try {
+            synchronized (this) {
+                initialize();
+            }
+            return new CacheWritingInputStream(body, entry);
+        } catch (IOException e) {
+            HttpLog.e("HttpCache", e.getLocalizedMessage(), e);
+            return body;
+        }
+    }
+
+    private synchronized void commit(Entry entry, File temporary, byte[] body) {
+        delete(entry.key);
+        File bodyFile = new File(directory, entry.key + BODY_SUFFIX);
+        if (!temporary.renameTo(bodyFile)) {
+            temporary.delete();
+            return;
+        }
+        if (!writeMetadata(entry)) {
+            bodyFile.delete();
+            return;
+        }
+        diskEntries.put(entry.key, entry.bodyLength);
+        diskBytes += entry.bodyLength;
+        if (body != null) {
+            entry.body = body;
+            putMemory(entry.key, entry);
+        }
+        trimDisk();
+    }
+
+    private void putMemory(String key, Entry entry) {
+        Entry previous = memoryEntries.put(key, entry);
+        if (previous != null)
+            memoryBytes -= previous.bodyLength;
+        memoryBytes += entry.bodyLength;
+        Iterator<Entry> iterator = memoryEntries.values().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().bodyLength;
+            iterator.remove();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = diskEntries.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            diskBytes -= eldest.getValue();
+            removeMemory(eldest.getKey());
+            new File(directory, eldest.getKey() + METADATA_SUFFIX).delete();
+            new File(directory, eldest.getKey() + BODY_SUFFIX).delete();
+        }
+    }
+
+    private void delete(String key) {
+        Long length = diskEntries.remove(key);
+        if (length != null)
+            diskBytes -= length;
+        removeMemory(key);
+        new File(directory, key + METADATA_SUFFIX).delete();
+        new File(directory, key + BODY_SUFFIX).delete();
+    }
+
+    private void removeMemory(String key) {
+        Entry entry = memoryEntries.remove(key);
+        if (entry != null)
+            memoryBytes -= entry.bodyLength;
+    }
+
+    /***
+     * Rebuilds the index from the directory, least recently used first.
+     */
+    private void initialize() {
+        if (initialized)
+            return;
+        initialized = true;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            HttpLog.e("HttpCache", "Unable to create " + directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long difference = left.lastModified() - right.lastModified();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMPORARY_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(BODY_SUFFIX)) {
+                String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+                if (new File(directory, key + METADATA_SUFFIX).exists()) {
+                    diskEntries.put(key, file.length());
+                    diskBytes += file.length();
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        trimDisk();
+    }
+
+    /***
+     * Replaces the metadata of an entry at once, {@link #get(URL)} reads it without the lock.
+     */
+    private boolean writeMetadata(Entry entry) {
+        File file = new File(directory, entry.key + METADATA_SUFFIX);
+        File temporary = new File(directory, entry.key + "." + System.nanoTime() + TEMPORARY_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporary), Charsets.UTF_8);
+            writer.write(entry.url + "\n");
+            writer.write(nullToEmpty(entry.contentType) + "\n");
+            writer.write(nullToEmpty(entry.etag) + "\n");
+            writer.write(nullToEmpty(entry.lastModified) + "\n");
+            writer.write(entry.freshUntil + "\n");
+            writer.write(entry.lifetime + "\n");
+            writer.write(entry.bodyLength + "\n");
+            writer.close();
+            writer = null;
+            if (!temporary.renameTo(file))
+                throw new IOException("Unable to replace " + file);
+            return true;
+        } catch (IOException e) {
+            HttpLog.e("HttpCache", e.getLocalizedMessage(), e);
+            temporary.delete();
+            return false;
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private Entry readMetadata(String key) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(directory, key + METADATA_SUFFIX)), Charsets.UTF_8));
+            String url = reader.readLine();
+            String contentType = reader.readLine();
+            String etag = reader.readLine();
+            String lastModified = reader.readLine();
+            String freshUntil = reader.readLine();
+            String lifetime = reader.readLine();
+            String bodyLength = reader.readLine();
+            if (bodyLength == null)
+                return null;
+            return new Entry(key, url, emptyToNull(contentType), emptyToNull(etag), emptyToNull(lastModified),
+                    Long.parseLong(freshUntil), Long.parseLong(lifetime), Long.parseLong(bodyLength));
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private byte[] readBody(String key, long length) {
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(new File(directory, key + BODY_SUFFIX));
+            byte[] body = new byte[(int) length];
+            int offset = 0;
+            int read;
+            while (offset < body.length && (read = stream.read(body, offset, body.length - offset)) != -1)
+                offset += read;
+            return offset == body.length ? body : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(stream);
+        }
+    }
+
+    private static boolean isStorable(Map<String, List<String>> headers) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noStore)
+            return false;
+        List<String> vary = headerValues(headers, "Vary");
+        if (vary != null) {
+            for (String value : vary) {
+                for (String field : value.split(",")) {
+                    if (!field.trim().isEmpty() && !"accept-encoding".equalsIgnoreCase(field.trim()))
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /***
+     * RFC 7234 section 4.2.1 and the 10% heuristic of section 4.2.2. Stale entries are never served
+     * without revalidation, so must-revalidate only keeps the heuristic from guessing a lifetime the
+     * server didn't give.
+     * @return The instant the response stops being fresh.
+     */
+    static long freshUntil(Map<String, List<String>> headers, long now) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noCache)
+            return 0;
+        if (cacheControl.maxAge >= 0)
+            return now + cacheControl.maxAge * 1000;
+        long date = HttpDate.parse(firstHeader(headers, "Date"));
+        if (date < 0)
+            date = now;
+        String expiresValue = firstHeader(headers, "Expires");
+        if (expiresValue != null) {
+            long expires = HttpDate.parse(expiresValue);
+            return expires > date ? now + expires - date : 0;
+        }
+        long lastModified = HttpDate.parse(firstHeader(headers, "Last-Modified"));
+        if (lastModified > 0 && date > lastModified && !cacheControl.mustRevalidate)
+            return now + Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+        return 0;
+    }
+
+    /***
+     * @return True if the headers give a freshness lifetime of their own, or forbid one.
+     */
+    static boolean hasExplicitFreshness(Map<String, List<String>> headers) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        return cacheControl.noCache || cacheControl.maxAge >= 0 || firstHeader(headers, "Expires") != null;
+    }
+
+    static String firstHeader(Map<String, List<String>> headers, String name) {
+        List<String> values = headerValues(headers, name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static List<String> headerValues(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()))
+                return header.getValue();
+        }
+        return null;
+    }
+
+    private static String keyOf(URL url) {
+        return Hashing.sha256().hashString(url.toString(), Charsets.UTF_8).toString();
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /***
+     * A stored response.
+     */
+    final class Entry {
+        final String key;
+        final String url;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+        final long freshUntil;
+        /***
+         * How long the response was fresh when it was stored, kept for the 304 responses carrying
+         * no freshness of their own.
+         */
+        final long lifetime;
+        final long bodyLength;
+        volatile byte[] body;
+
+        Entry(String key, String url, String contentType, String etag, String lastModified, long freshUntil,
+              long lifetime, long bodyLength) {
+            this.key = key;
+            this.url = url;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.freshUntil = freshUntil;
+            this.lifetime = lifetime;
+            this.bodyLength = bodyLength;
+        }
+
+        boolean isFresh() {
+            return freshUntil > System.currentTimeMillis();
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        InputStream newInputStream() throws FileNotFoundException {
+            byte[] memoryBody = body;
+            if (memoryBody != null)
+                return new ByteArrayInputStream(memoryBody);
+            return new FileInputStream(new File(directory, key + BODY_SUFFIX));
+        }
+    }
+
+    /***
+     * The directives of the Cache-Control and Pragma response headers this cache understands.
+     */
+    static final class CacheControl {
+        boolean noStore;
+        boolean noCache;
+        boolean mustRevalidate;
+        long maxAge = -1;
+
+        static CacheControl parse(Map<String, List<String>> headers) {
+            CacheControl cacheControl = new CacheControl();
+            List<String> values = headerValues(headers, "Cache-Control");
+            for (String value : values != null ? values : Collections.<String>emptyList()) {
+                for (String directive : value.split(",")) {
+                    String name = directive.trim().toLowerCase(Locale.ENGLISH);
+                    if (name.equals("no-store")) {
+                        cacheControl.noStore = true;
+                    } else if (name.startsWith("no-cache")) {
+                        cacheControl.noCache = true;
+                    } else if (name.startsWith("max-age=")) {
+                        try {
+                            cacheControl.maxAge = Long.parseLong(name.substring(8).replace("\"", ""));
+                        } catch (NumberFormatException e) {
+                            cacheControl.noCache = true;
+                        }
+                    } else if (name.equals("must-revalidate")) {
+                        cacheControl.mustRevalidate = true;
+                    }
+                }
+            }
+            String pragma = firstHeader(headers, "Pragma");
+            if (values == null && pragma != null && pragma.toLowerCase(Locale.ENGLISH).contains("no-cache"))
+                cacheControl.noCache = true;
+            return cacheControl;
+        }
+    }
+
+    /***
+     * Copies the body to a temporary file while it is read, storing the entry once the end of the
+     * body is reached. Closing it earlier reads the rest of the body into the copy, unless the body
+     * is too large to be stored.
+     */
+    private final class CacheWritingInputStream extends FilterInputStream {
+        private final Entry entry;
+        private final File temporary;
+        private final OutputStream cacheStream;
+        private ByteArrayOutputStream memoryCopy = new ByteArrayOutputStream();
+        private long length;
+        private boolean done;
+
+        CacheWritingInputStream(InputStream body, Entry entry) throws IOException {
+            super(body);
+            this.entry = entry;
+            this.temporary = new File(directory, entry.key + "." + System.nanoTime() + TEMPORARY_SUFFIX);
+            this.cacheStream = new FileOutputStream(temporary);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (done)
+                return read;
+            if (read == -1) {
+                finish(true);
+                return -1;
+            }
+            try {
+                cacheStream.write(buffer, offset, read);
+                length += read;
+                if (memoryCopy != null) {
+                    if (length <= maxMemoryBytes / 8)
+                        memoryCopy.write(buffer, offset, read);
+                    else
+                        memoryCopy = null;
+                }
+                if (length > maxDiskBytes / 8)
+                    finish(false);
+            } catch (IOException e) {
+                finish(false);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            if (done)
+                return super.skip(count);
+            byte[] buffer = new byte[(int) Math.min(Math.max(count, 0), 4096)];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buffer = new byte[4096];
+                while (!done && read(buffer, 0, buffer.length) != -1) {
+                }
+            } catch (IOException e) {
+                HttpLog.d("HttpCache", "Discarding " + entry.url + ": " + e.getLocalizedMessage());
+            } finally {
+                finish(false);
+                super.close();
+            }
+        }
+
+        private void finish(boolean complete) {
+            if (done)
+                return;
+            done = true;
+            closeQuietly(cacheStream);
+            if (!complete) {
+                temporary.delete();
+                return;
+            }
+            Entry completed = new Entry(entry.key, entry.url, entry.contentType, entry.etag,
+                    entry.lastModified, entry.freshUntil, entry.lifetime, length);
+            commit(completed, temporary, memoryCopy != null ? memoryCopy.toByteArray() : null);
+        }
+    }
+}
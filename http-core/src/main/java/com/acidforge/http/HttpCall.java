@@ -0,0 +1,1484 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.net.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * A request sent and received through the Http protocol, free of any Android dependency so it runs
+ * on the JVM as well. Subclasses consume the response by overriding the stream callbacks.
+ * {@link #execute()} runs the whole request on the calling thread, which may be a virtual thread,
+ * see {@link RequestScheduler#newVirtualThreadScheduler(int, int)}. On Android, {@code HttpRequest}
+ * adapts it to an AsyncTask.
+ */
+public abstract class HttpCall {
+
+    /***
+     * User agent defined in the http header request.
+     */
+    public static final String USER_AGENT = "AcidForge.Http/1.0";
+    private static final long PROGRESS_STEP = 64 * 1024;
+    private static ScheduledThreadPoolExecutor deadlineTimer;
+    /***
+     * The underlying connection.
+     */
+    protected HttpURLConnection urlConnection;
+    /***
+     * The SSL context, defined if a secure socket layer is enabled for the
+     * request.
+     */
+    protected SSLContext sslContext;
+    /***
+     * The jar cookies are sent from and stored to, none unless set.
+     */
+    protected CookieJar cookieJar;
+    private ConnectionPool connectionPool;
+    private HttpCache cache;
+    private RequestCoalescer coalescer;
+    private RetryPolicy retryPolicy;
+    private HostLimiter hostLimiter;
+    private EventListener eventListener;
+    private Dns dns;
+    private HttpEngine engine = HttpEngine.URL_CONNECTION;
+    private Exception failure;
+    long callStartNanos;
+    long dnsStartNanos;
+    long connectStartNanos;
+    private boolean requestCompression;
+    private boolean methodOverride;
+    private RequestBody requestBody;
+    private final Map<String, String> requestHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private CountingOutputStream sentWire;
+    private CountingOutputStream sentDecoded;
+    private CountingInputStream receivedWire;
+    private CountingInputStream receivedDecoded;
+    private String address;
+    private MediaType requestMediaType = MediaType.JSON_UTF_8;
+    private MediaType responseMediaType = MediaType.JSON_UTF_8;
+    private ResponseDecoders decoders = ResponseDecoders.getDefault();
+
+    private int connectionTimeOut = 15000;
+    private int readTimeOut = 60 * 3 * 1000;
+
+    private String method = "get";
+    private HttpMethod httpMethod;
+    private URL url;
+    private RequestPriority priority = RequestPriority.INTERACTIVE;
+    private CancellationGroup cancellationGroup;
+    private long deadlineMillis;
+    private long deadlineNanos;
+    private ScheduledFuture<?> deadline;
+    private volatile RequestCancelledException cancellation;
+    private final List<HttpURLConnection> openConnections = new ArrayList<>();
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private final Condition cancelled = connectionLock.newCondition();
+
+    /***
+     * Creates a request for Json IO with the default {@link HttpMethod#GET} method.
+     * @param url An arbitrary @see{@link URL}
+     */
+    public HttpCall(URL url) {
+        this(url, HttpMethod.GET);
+    }
+
+    /***
+     * Creates a request for Json IO with the specified {@link HttpMethod}
+     * @param url An arbitrary @see{@link URL}, the request fails with an
+     *            {@link UndefinedUrlException} if null.
+     * @param httpMethod An @see{@link HttpMethod} for the underlying request. A POST fails without
+     *                   an entity, while PUT and PATCH send an empty one. The JDK connection
+     *                   refuses PATCH, see {@link #setMethodOverride(boolean)}.
+     */
+    public HttpCall(URL url, HttpMethod httpMethod) {
+        this.url = url;
+        this.httpMethod = httpMethod;
+    }
+
+    /***
+     * Overrides the default request media type.
+     * @param requestType MimeType to be used upon the request
+     */
+    public void setRequestMediaType(MediaType requestType) {
+        this.requestMediaType = requestType;
+
+    }
+
+    /***
+     * Overrides the default response media type.
+     * @param responseType MimeType to be used upon the response
+     */
+    public void setResponseMediaType(MediaType responseType) {
+        this.responseMediaType = responseType;
+    }
+
+    public MediaType getResponseMediaType() {
+        return responseMediaType;
+    }
+
+    /***
+     * Overrides the registry {@link #decode(InputStream, Class)} takes the decoder of the response
+     * media type from, {@link ResponseDecoders#getDefault()} unless set.
+     * @param decoders The registry, shared with other requests.
+     */
+    public void setDecoders(ResponseDecoders decoders) {
+        this.decoders = decoders == null ? ResponseDecoders.getDefault() : decoders;
+    }
+
+    /***
+     * Overrides the default request time out that is 15seconds.
+     * @param connectionTimeOut Integer representing time in millis.
+     */
+    public void setConnectionTimeOut(int connectionTimeOut) {
+        this.connectionTimeOut = connectionTimeOut;
+    }
+
+    /***
+     * Overrides the default read time out that is 3m.
+     * @param readTimeOut Integer representing time in millis.
+     */
+    public void setReadTimeOut(int readTimeOut) {
+        this.readTimeOut = readTimeOut;
+    }
+
+    /***
+     * Defines if the connection will be encrypted by a SSL layer. Requests with the same context
+     * share a {@link TlsSocketFactory}, and with it kept alive sockets and resumable sessions.
+     * @see{@link SSLContext}
+     * @param sslContext
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /***
+     * Sends the cookies of the jar matching the request and stores the ones of the response.
+     * @param cookieJar The jar shared among requests, null to neither send nor store cookies.
+     */
+    public void setCookieJar(CookieJar cookieJar) {
+        this.cookieJar = cookieJar;
+    }
+
+    /***
+     * Enables keep-alive connection reuse. Instead of disconnecting, the response body is drained
+     * and the socket handed back to the pool for the next request to the same host.
+     * @param connectionPool The pool shared among requests, null disconnects after every request.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /***
+     * Enables the response cache for GET requests. Fresh responses are served without the network
+     * and stale ones are revalidated with a conditional request.
+     * @param cache The cache shared among requests, null disables caching.
+     */
+    public void setCache(HttpCache cache) {
+        this.cache = cache;
+    }
+
+    /***
+     * Enables in-flight deduplication for GET requests. While a request with the same method, url
+     * and media types is running, this one waits for it and reads a replay of its response
+     * instead of going to the network. It goes on its own when the body is larger than the
+     * coalescer replays, or was already being read when it joined.
+     * @param coalescer The coalescer shared among requests, null disables deduplication.
+     */
+    public void setCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /***
+     * Defines the entity sent with the request, written by the default
+     * {@link #requestStream(OutputStream)}. Any method allowing a body may carry it, see
+     * {@link HttpMethod#permitsRequestBody()}.
+     * @param requestBody The entity, its media type overrides the request media type if defined.
+     */
+    public void setRequestBody(RequestBody requestBody) {
+        this.requestBody = requestBody;
+    }
+
+    /***
+     * Defines the pool {@link #transfer(InputStream, ResponseSink)} takes its copy buffers from, {@link BufferPool#getDefault()}
+     * unless set.
+     * @param bufferPool The pool of copy buffers.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool == null ? BufferPool.getDefault() : bufferPool;
+    }
+
+    /***
+     * Retries idempotent requests that fail before getting a response or with a transient status,
+     * and optionally hedges slow ones, see {@link RetryPolicy}.
+     * @param retryPolicy The policy shared among requests, null to send every request once.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /***
+     * Bounds the attempts in flight to the host of the request and fails fast while the host is
+     * unhealthy, with a {@link CircuitOpenException}. Share a single limiter among requests.
+     * @param hostLimiter The limiter, null to send without limit.
+     */
+    public void setHostLimiter(HostLimiter hostLimiter) {
+        this.hostLimiter = hostLimiter;
+    }
+
+    /***
+     * Reports the phases of the request, see {@link HttpMetrics} for a built-in aggregator.
+     * @param eventListener The listener, null to stop reporting.
+     */
+    public void setEventListener(EventListener eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /***
+     * Looks the host up with the given resolver before connecting, see {@link CachingDns}. This is
+     * only a pre-lookup: the engine still resolves the host on its own and connects to its own
+     * answer, so the resolver fails known bad hosts fast and warms the caches, but never picks the
+     * address. {@link HttpEngine#URL_CONNECTION} asks the platform again; for the addresses of a
+     * resolver to be used, give it to a {@link NioEngine} or an {@link Http2Engine}, which connect
+     * through it with {@link HappyEyeballs}.
+     * @param dns The resolver, null to skip the pre-lookup.
+     */
+    public void setDns(Dns dns) {
+        this.dns = dns;
+    }
+
+    /***
+     * Defines the engine opening the connection, {@link HttpEngine#URL_CONNECTION} unless set. See
+     * {@link NioEngine#submit(HttpCall)} to run the request without holding a thread.
+     * @param engine The engine, null for the platform connection.
+     */
+    public void setEngine(HttpEngine engine) {
+        this.engine = engine == null ? HttpEngine.URL_CONNECTION : engine;
+    }
+
+    /***
+     * Adds a header to the request, replacing the one the library would send under the same name.
+     * Requests carrying a Range header bypass the cache and the coalescer.
+     * @param name The header name, case insensitive.
+     * @param value The header value, null to remove a header set before.
+     */
+    public void setRequestHeader(String name, String value) {
+        if (value == null)
+            requestHeaders.remove(name);
+        else
+            requestHeaders.put(name, value);
+    }
+
+    /***
+     * Compresses the body written by {@link #requestStream(OutputStream)} with gzip and declares it
+     * with a Content-Encoding header. Only enable it if the server accepts compressed requests.
+     * @param requestCompression True to gzip the request body.
+     */
+    public void setRequestCompression(boolean requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    /***
+     * Sends a PATCH the platform connection refuses, as the JDK one does, as a POST carrying an
+     * X-HTTP-Method-Override header. Only enable it if the server honours that header, others
+     * handle the request as a plain POST. Unless enabled, such a PATCH fails with a
+     * {@link ProtocolException}.
+     * @param methodOverride True to fall back to POST with the override header.
+     */
+    public void setMethodOverride(boolean methodOverride) {
+        this.methodOverride = methodOverride;
+    }
+
+    /***
+     * @return Bytes of request body sent over the wire, after compression.
+     */
+    public long getBytesSent() {
+        return sentWire == null ? 0 : sentWire.getCount();
+    }
+
+    /***
+     * @return Bytes of request body written by {@link #requestStream(OutputStream)}, before compression.
+     */
+    public long getBytesSentUncompressed() {
+        return sentDecoded == null ? 0 : sentDecoded.getCount();
+    }
+
+    /***
+     * @return Bytes of response body read from the wire, before decompression.
+     */
+    public long getBytesReceived() {
+        return receivedWire == null ? 0 : receivedWire.getCount();
+    }
+
+    /***
+     * @return Bytes of response body handed to {@link #responseStream(InputStream)} or
+     * {@link #errorStream(InputStream)}, after decompression.
+     */
+    public long getBytesReceivedUncompressed() {
+        return receivedDecoded == null ? 0 : receivedDecoded.getCount();
+    }
+
+    /***
+     * Defines the lane this request waits on when submitted to a {@link RequestScheduler}.
+     * The default is {@link RequestPriority#INTERACTIVE}.
+     * @param priority The scheduling priority.
+     */
+    public void setPriority(RequestPriority priority) {
+        this.priority = priority;
+    }
+
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public HttpMethod getHttpMethod() {
+        return httpMethod;
+    }
+
+    /***
+     * Bounds the whole request, from the dns lookup to the last byte of the response and including
+     * the retries, instead of each socket operation on its own. The connect and read timeouts are
+     * shortened to what's left, and a request still running when it expires is aborted and fails
+     * with a {@link DeadlineExceededException}.
+     * @param timeout The budget of each execution, 0 for none.
+     */
+    public void setDeadline(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("The deadline can't be negative");
+        this.deadlineMillis = unit.toMillis(timeout);
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /***
+     * Cancels this request along with the other requests of the group.
+     * @param cancellationGroup The group, null to leave the request on its own.
+     */
+    public void setCancellationGroup(CancellationGroup cancellationGroup) {
+        this.cancellationGroup = cancellationGroup;
+    }
+
+    /***
+     * Gives up this request. A request in flight has its socket aborted right away, wherever it
+     * is blocked, and a request that didn't start yet fails as soon as it's dispatched, either way
+     * with a {@link RequestCancelledException}. The connection isn't reused.
+     */
+    public void cancel() {
+        cancel(new RequestCancelledException());
+    }
+
+    /***
+     * @return True once the request or its group was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancellation != null || cancellationGroup != null && cancellationGroup.isCancelled();
+    }
+
+    private void cancel(RequestCancelledException reason) {
+        List<HttpURLConnection> connections;
+        connectionLock.lock();
+        try {
+            if (cancellation == null)
+                cancellation = reason;
+            connections = new ArrayList<>(openConnections);
+            openConnections.clear();
+            cancelled.signalAll();
+        } finally {
+            connectionLock.unlock();
+        }
+        for (HttpURLConnection connection : connections)
+            connection.disconnect();
+        if (hostLimiter != null && url != null)
+            hostLimiter.wake(url.getHost());
+    }
+
+    private RequestCancelledException cancellation() {
+        RequestCancelledException reason = cancellation;
+        return reason != null ? reason : new RequestCancelledException();
+    }
+
+    private void checkCancelled() throws RequestCancelledException {
+        if (isCancelled())
+            throw cancellation();
+    }
+
+    /***
+     * Joins the cancellation group and arms the deadline of an execution.
+     */
+    private void begin() {
+        connectionLock.lock();
+        try {
+            if (cancellation instanceof DeadlineExceededException)
+                cancellation = null;
+        } finally {
+            connectionLock.unlock();
+        }
+        if (cancellationGroup != null)
+            cancellationGroup.add(this);
+        if (deadlineMillis > 0) {
+            deadlineNanos = callStartNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+            deadline = deadlineTimer().schedule(new Deadline(this), deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void end() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        if (cancellationGroup != null)
+            cancellationGroup.remove(this);
+        connectionLock.lock();
+        try {
+            openConnections.clear();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /***
+     * Registers a connection to abort on cancellation.
+     */
+    private void track(HttpURLConnection connection) throws RequestCancelledException {
+        connectionLock.lock();
+        try {
+            if (!isCancelled()) {
+                openConnections.add(connection);
+                return;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        connection.disconnect();
+        throw cancellation();
+    }
+
+    /***
+     * @return The timeout shortened to what's left of the deadline, never 0 so it isn't infinite.
+     */
+    private int withinDeadline(int timeout) {
+        if (deadlineMillis <= 0)
+            return timeout;
+        long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+        return (int) (timeout > 0 ? Math.min(timeout, remaining) : Math.min(remaining, Integer.MAX_VALUE));
+    }
+
+    /***
+     * Waits between attempts, waking up if the request is cancelled.
+     * @return False if the request was cancelled.
+     */
+    private boolean pause(long millis) throws InterruptedException {
+        connectionLock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (!isCancelled() && remaining > 0)
+                remaining = cancelled.awaitNanos(remaining);
+        } finally {
+            connectionLock.unlock();
+        }
+        return !isCancelled();
+    }
+
+    /***
+     * Records why the request failed, the cancellation if the error comes from aborting it.
+     */
+    private void fail(Exception e) {
+        if (isCancelled()) {
+            failure = cancellation();
+            HttpLog.d("HttpCall", failure.getLocalizedMessage());
+        } else {
+            failure = e;
+            HttpLog.e("HttpCall", e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor deadlineTimer() {
+        if (deadlineTimer == null)
+            deadlineTimer = new ScheduledThreadPoolExecutor(1, new DeadlineThreadFactory());
+        return deadlineTimer;
+    }
+
+    /***
+     * Submits this request to the default {@link RequestScheduler}.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> enqueue() {
+        return enqueue(RequestScheduler.getDefault());
+    }
+
+    /***
+     * Submits this request to the given {@link RequestScheduler}.
+     * @param scheduler The scheduler that will dispatch the request.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> enqueue(RequestScheduler scheduler) {
+        return scheduler.submit(this);
+    }
+
+    /***
+     * Runs the whole request on the calling thread.
+     * @return The http status code, 0 if the request failed before receiving one or was cancelled.
+     */
+    public int execute() {
+        callStartNanos = System.nanoTime();
+        failure = null;
+        if (eventListener != null)
+            eventListener.callStart(this, callStartNanos);
+        begin();
+        Integer result = 0;
+        try {
+            if (isCancelled()) {
+                fail(cancellation());
+                return 0;
+            }
+            result = call();
+            return result;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            end();
+            if (eventListener != null) {
+                if (failure != null)
+                    eventListener.callFailed(this, failure, System.nanoTime());
+                else
+                    eventListener.callEnd(this, result == null ? 0 : result, System.nanoTime());
+            }
+        }
+    }
+
+    /***
+     * Runs the request on a {@link NioEngine} without waiting for the response, the stream
+     * callbacks then run on a dispatch thread of the engine once it's complete. The request is
+     * neither coalesced, retried nor hedged.
+     * @param callback Notified once the request finished.
+     */
+    void executeAsync(NioEngine engine, final RequestScheduler.Callback callback) {
+        callStartNanos = System.nanoTime();
+        failure = null;
+        if (eventListener != null)
+            eventListener.callStart(this, callStartNanos);
+        begin();
+        if (isCancelled()) {
+            fail(cancellation());
+            complete(callback, 0);
+            return;
+        }
+        HttpCache.Entry cacheEntry = null;
+        if (cache != null && url != null && httpMethod.equals(HttpMethod.GET) && !requestHeaders.containsKey("Range")) {
+            cacheEntry = cache.get(url);
+            if (cacheEntry != null && cacheEntry.isFresh()) {
+                complete(callback, respondFromCache(cacheEntry));
+                return;
+            }
+        }
+        if (url == null) {
+            UndefinedUrlException e = new UndefinedUrlException();
+            fail(e);
+            complete(callback, 0);
+            return;
+        }
+        if (cacheEntry != null && cacheEntry.hasValidators())
+            cache.trackRevalidation();
+        sendAsync(engine, cacheEntry, callback);
+    }
+
+    /***
+     * Sends the request on a {@link NioEngine}, conditional if entry is given, once the host
+     * limiter has a slot for it. No thread waits for the slot meanwhile.
+     */
+    private void sendAsync(final NioEngine engine, final HttpCache.Entry entry, final RequestScheduler.Callback callback) {
+        HostLimiter.Permit permit = null;
+        if (hostLimiter != null) {
+            long timeoutMillis = withinDeadline(connectionTimeOut);
+            final ScheduledFuture<?>[] timeout = new ScheduledFuture<?>[1];
+            HostLimiter.Admission admission = new HostLimiter.Admission() {
+                @Override
+                public void onAdmitted(final HostLimiter.Permit permit) {
+                    cancelTimeout();
+                    // the slot was freed by another request, which must not run this one
+                    engine.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendAsync(engine, entry, callback, permit);
+                        }
+                    });
+                }
+
+                @Override
+                public void onRejected(final IOException e) {
+                    cancelTimeout();
+                    engine.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(e);
+                            complete(callback, 0);
+                        }
+                    });
+                }
+
+                private void cancelTimeout() {
+                    synchronized (timeout) {
+                        if (timeout[0] != null)
+                            timeout[0].cancel(false);
+                        timeout[0] = null;
+                    }
+                }
+            };
+            try {
+                permit = hostLimiter.acquire(url.getHost(), this, timeoutMillis, admission);
+            } catch (IOException e) {
+                fail(e);
+                complete(callback, 0);
+                return;
+            }
+            if (permit == null) {
+                // waiting in line, woken up to give up once the timeout expired
+                synchronized (timeout) {
+                    timeout[0] = deadlineTimer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            hostLimiter.wake(url.getHost());
+                        }
+                    }, timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        sendAsync(engine, entry, callback, permit);
+    }
+
+    /***
+     * @param permit The slot of the request, null without host limiter.
+     */
+    private void sendAsync(final NioEngine engine, final HttpCache.Entry entry, final RequestScheduler.Callback callback,
+                           final HostLimiter.Permit permit) {
+        final NioConnection connection;
+        try {
+            connection = (NioConnection) prepare(engine, entry, false);
+            connection.send(new Runnable() {
+                @Override
+                public void run() {
+                    int responseCode;
+                    try {
+                        responseCode = connection.getResponseCode();
+                        if (permit != null)
+                            permit.release(responseCode);
+                        if (eventListener != null)
+                            eventListener.responseHeadersEnd(HttpCall.this, responseCode, System.nanoTime());
+                    } catch (IOException e) {
+                        release(permit, e);
+                        connection.disconnect();
+                        fail(e);
+                        complete(callback, 0);
+                        return;
+                    }
+                    InputStream cached = null;
+                    if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                        cached = cache.update(entry, connection.getHeaderFields());
+                        if (cached == null) {
+                            readCookies(connection);
+                            connection.disconnect();
+                            sendAsync(engine, null, callback);
+                            return;
+                        }
+                    }
+                    urlConnection = connection;
+                    complete(callback, dispatch(null, entry, cached, responseCode));
+                }
+            });
+        } catch (Exception e) {
+            release(permit, e);
+            fail(e);
+            complete(callback, 0);
+        }
+    }
+
+    private void complete(RequestScheduler.Callback callback, int responseCode) {
+        end();
+        if (eventListener != null) {
+            if (failure != null)
+                eventListener.callFailed(this, failure, System.nanoTime());
+            else
+                eventListener.callEnd(this, responseCode, System.nanoTime());
+        }
+        callback.onComplete(this, responseCode);
+    }
+
+    private Integer call() {
+        RequestCoalescer.Flight flight = null;
+        if (coalescer != null && url != null && httpMethod.equals(HttpMethod.GET) && !requestHeaders.containsKey("Range")) {
+            flight = coalescer.join(httpMethod + " " + url + " " + requestMediaType + " " + responseMediaType
+                    + " " + requestHeaders);
+            if (!flight.lead()) {
+                Integer result = follow(flight);
+                if (result != null)
+                    return result;
+                flight = null;
+            }
+        }
+        try {
+            return execute(flight);
+        } finally {
+            if (flight != null)
+                coalescer.finish(flight);
+        }
+    }
+
+    /***
+     * Waits for the leader of a flight and dispatches a replay of its response.
+     * @return The status code, or null if the leader failed and this request must go on its own.
+     */
+    private Integer follow(RequestCoalescer.Flight flight) {
+        int responseCode;
+        try {
+            responseCode = flight.awaitResponse(withinDeadline(connectionTimeOut + readTimeOut));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        if (responseCode <= 0)
+            return null;
+        try {
+            if (isSuccessful(responseCode))
+                responseStream(flight.newBody());
+            else
+                errorStream(flight.newBody());
+        } catch (Exception e) {
+            fail(e);
+        }
+        return responseCode;
+    }
+
+    private Integer execute(RequestCoalescer.Flight flight) {
+        HttpCache.Entry cacheEntry = null;
+        if (cache != null && url != null && httpMethod.equals(HttpMethod.GET) && !requestHeaders.containsKey("Range")) {
+            cacheEntry = cache.get(url);
+            if (cacheEntry != null && cacheEntry.isFresh())
+                return respondFromCache(cacheEntry);
+        }
+        if (url == null) {
+            UndefinedUrlException e = new UndefinedUrlException();
+            fail(e);
+            return 0;
+        }
+        if (cacheEntry != null && cacheEntry.hasValidators())
+            cache.trackRevalidation();
+        boolean repeatable = retryPolicy != null && RetryPolicy.isRepeatable(httpMethod, requestBody);
+        if (retryPolicy != null)
+            retryPolicy.onRequest();
+        HttpURLConnection connection = null;
+        int responseCode = 0;
+        for (int attempt = 1; ; attempt++) {
+            responseCode = 0;
+            try {
+                checkCancelled();
+                connection = repeatable ? connectTimed(cacheEntry) : connect(cacheEntry, null);
+                responseCode = connection.getResponseCode();
+                failure = null;
+            } catch (Exception e) {
+                connection = null;
+                fail(e);
+            }
+            if (!repeatable || isCancelled() || failure instanceof CircuitOpenException
+                    || !retryPolicy.retry(responseCode, attempt))
+                break;
+            long backoff = retryPolicy.backoffMillis(attempt,
+                    connection == null ? null : connection.getHeaderField("Retry-After"));
+            if (deadlineMillis > 0 && backoff >= withinDeadline(0))
+                break;
+            if (connection != null)
+                connection.disconnect();
+            connection = null;
+            HttpLog.d("HttpCall", String.format(Locale.ENGLISH, "Retrying %s after %d ms", url, backoff));
+            try {
+                if (!pause(backoff)) {
+                    fail(cancellation());
+                    return 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        if (connection == null)
+            return 0;
+        InputStream cached = null;
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+            cached = cache.update(cacheEntry, connection.getHeaderFields());
+            if (cached == null) {
+                HttpLog.d("HttpCall", "Cached body of " + url + " is gone, requesting it again");
+                readCookies(connection);
+                connection.disconnect();
+                cacheEntry = null;
+                try {
+                    connection = connect(null, null);
+                    responseCode = connection.getResponseCode();
+                } catch (Exception e) {
+                    fail(e);
+                    return 0;
+                }
+            }
+        }
+        urlConnection = connection;
+        return dispatch(flight, cacheEntry, cached, responseCode);
+    }
+
+    /***
+     * Connects measuring the time to the response headers, hedging the attempt if the retry
+     * policy asks for it.
+     */
+    private HttpURLConnection connectTimed(HttpCache.Entry cacheEntry) throws Exception {
+        String host = url.getAuthority();
+        long hedgeDelay = requestBody == null && (httpMethod.equals(HttpMethod.GET) || httpMethod.equals(HttpMethod.HEAD))
+                ? retryPolicy.hedgeDelayMillis(host)
+                : -1;
+        long start = System.nanoTime();
+        HttpURLConnection connection = hedgeDelay < 0
+                ? connect(cacheEntry, null)
+                : new HedgedConnect(cacheEntry).run(hedgeDelay);
+        retryPolicy.recordLatency(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return connection;
+    }
+
+    /***
+     * Opens a connection, sends the request and waits for the response headers.
+     * @param hedge The race the attempt is part of, null for none.
+     * @return The connection, the caller must disconnect or release it.
+     */
+    private HttpURLConnection connect(HttpCache.Entry cacheEntry, HedgedConnect hedge) throws Exception {
+        HostLimiter.Permit permit = hostLimiter == null ? null
+                : hostLimiter.acquire(url.getHost(), this, withinDeadline(connectionTimeOut));
+        HttpURLConnection connection;
+        try {
+            connection = prepare(engine, cacheEntry, true);
+        } catch (Exception e) {
+            release(permit, e);
+            throw e;
+        }
+        try {
+            if (hedge != null)
+                hedge.opened(connection);
+            int responseCode = connection.getResponseCode();
+            // the platform connection silently retries an aborted idempotent request
+            checkCancelled();
+            if (hedge != null && hedge.lost(connection))
+                throw new HedgeLostException();
+            if (permit != null)
+                permit.release(responseCode);
+            if (eventListener != null)
+                eventListener.responseHeadersEnd(this, responseCode, System.nanoTime());
+            return connection;
+        } catch (Exception e) {
+            if (hedge != null && hedge.lost(connection))
+                release(permit, new HedgeLostException());
+            else
+                release(permit, e);
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /***
+     * Frees the slot of a failed attempt. Only I/O errors tell about the health of the host.
+     */
+    private void release(HostLimiter.Permit permit, Exception e) {
+        if (permit == null)
+            return;
+        if (e instanceof IOException && !(e instanceof HedgeLostException) && !isCancelled())
+            permit.release(0);
+        else
+            permit.abandon();
+    }
+
+    /***
+     * Opens a connection and writes the request, without waiting for the response.
+     * @param blocking False if the calling thread must not wait for the socket, the connect events
+     *                 of the platform connection are then left out.
+     * @return The connection, the caller must disconnect or release it.
+     */
+    private HttpURLConnection prepare(HttpEngine engine, HttpCache.Entry cacheEntry, boolean blocking) throws Exception {
+        if (dns != null)
+            dns.lookup(url.getHost());
+        HttpURLConnection connection = engine instanceof ReportingEngine
+                ? ((ReportingEngine) engine).open(url, sslContext, this)
+                : engine.open(url, sslContext);
+        track(connection);
+        try {
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            if (requestBody != null && requestBody.contentType() != null)
+                connection.setRequestProperty("Content-Type", requestBody.contentType().toString());
+            else
+                connection.setRequestProperty("Content-Type", requestMediaType.toString());
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            if (requestCompression)
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            for (Map.Entry<String, String> header : requestHeaders.entrySet())
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            connection.setConnectTimeout(withinDeadline(connectionTimeOut));
+            connection.setReadTimeout(withinDeadline(readTimeOut));
+            if (cacheEntry != null && cacheEntry.hasValidators()) {
+                connection.setUseCaches(false);
+                if (cacheEntry.etag != null)
+                    connection.setRequestProperty("If-None-Match", cacheEntry.etag);
+                if (cacheEntry.lastModified != null)
+                    connection.setRequestProperty("If-Modified-Since", cacheEntry.lastModified);
+            }
+            try {
+                connection.setRequestMethod(httpMethod.toString());
+            } catch (ProtocolException e) {
+                if (!httpMethod.equals(HttpMethod.PATCH) || !methodOverride)
+                    throw e;
+                connection.setRequestMethod(HttpMethod.POST.toString());
+                connection.setRequestProperty("X-HTTP-Method-Override", HttpMethod.PATCH.toString());
+            }
+            if (connectionPool != null)
+                connectionPool.acquire(url);
+            attachCookies(connection);
+            connection.setDoOutput(requestBody != null
+                    ? httpMethod.permitsRequestBody()
+                    : httpMethod.requiresRequestBody());
+            if (connection.getDoOutput()) {
+                long contentLength = requestBody != null && !requestCompression ? requestBody.contentLength() : -1;
+                if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE)
+                    connection.setFixedLengthStreamingMode((int) contentLength);
+                else
+                    connection.setChunkedStreamingMode(0);
+            }
+            if (eventListener != null && blocking && !(connection instanceof TransportConnection)) {
+                connectStart();
+                connection.connect();
+                connectEnd();
+            }
+            if (connection.getDoOutput()) {
+                if (eventListener != null)
+                    eventListener.requestBodyStart(this, System.nanoTime());
+                writeRequest(connection.getOutputStream());
+                if (eventListener != null)
+                    eventListener.requestBodyEnd(this, sentWire.getCount(), System.nanoTime());
+            }
+            return connection;
+        } catch (Exception e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    void dnsStart(String host) {
+        dnsStartNanos = System.nanoTime();
+        if (eventListener != null)
+            eventListener.dnsStart(this, host, dnsStartNanos);
+    }
+
+    void dnsEnd(String host) {
+        if (eventListener != null)
+            eventListener.dnsEnd(this, host, System.nanoTime());
+    }
+
+    void connectStart() {
+        connectStartNanos = System.nanoTime();
+        if (eventListener != null)
+            eventListener.connectStart(this, connectStartNanos);
+    }
+
+    void connectEnd() {
+        if (eventListener != null)
+            eventListener.connectEnd(this, System.nanoTime());
+    }
+
+    /***
+     * Hands the response of {@link #urlConnection} to the stream callbacks.
+     * @param cached The stored body when a conditional request was answered with 304.
+     */
+    private Integer dispatch(RequestCoalescer.Flight flight, HttpCache.Entry cacheEntry, InputStream cached,
+                             int responseCode) {
+        boolean reusable = false;
+        try {
+            readCookies(urlConnection);
+            InputStream responseBody;
+            if (cached != null) {
+                responseBody = cached;
+                responseCode = HttpURLConnection.HTTP_OK;
+            } else if (isSuccessful(responseCode)) {
+                responseBody = decode(urlConnection.getInputStream());
+                if (cache != null && responseCode == HttpURLConnection.HTTP_OK && httpMethod.equals(HttpMethod.GET)
+                        && !requestHeaders.containsKey("Range")) {
+                    cache.trackMiss();
+                    responseBody = cache.put(url, urlConnection.getHeaderFields(), responseBody);
+                }
+            } else {
+                responseBody = decode(urlConnection.getErrorStream());
+            }
+            if (flight != null)
+                responseBody = flight.share(responseCode, responseBody);
+            if (isSuccessful(responseCode))
+                responseStream(responseBody);
+            else
+                errorStream(responseBody);
+            if (connectionPool != null)
+                reusable = !"close".equalsIgnoreCase(urlConnection.getHeaderField("Connection"))
+                        && ConnectionPool.drain(responseBody);
+            if (!reusable && responseBody != null)
+                responseBody.close();
+            if (eventListener != null)
+                eventListener.responseBodyEnd(this, getBytesReceived(), System.nanoTime());
+        } catch (IOException e) {
+            fail(e);
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            connectionLock.lock();
+            try {
+                openConnections.remove(urlConnection);
+            } finally {
+                connectionLock.unlock();
+            }
+            if (reusable)
+                connectionPool.release(url);
+            else
+                urlConnection.disconnect();
+        }
+        return failure instanceof RequestCancelledException ? 0 : responseCode;
+    }
+
+    /***
+     * Races a hedge against a slow attempt. The first attempt runs on the calling thread, the hedge
+     * on a thread of the retry policy. The first connection to get its headers wins and the other
+     * one is aborted at once, so the loser frees its socket, its thread and its host slot.
+     */
+    private final class HedgedConnect {
+        private final HttpCache.Entry cacheEntry;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition settled = lock.newCondition();
+        private final List<HttpURLConnection> inFlight = new ArrayList<>(2);
+        private HttpURLConnection winner;
+        private Exception failure;
+        private int pending;
+
+        HedgedConnect(HttpCache.Entry cacheEntry) {
+            this.cacheEntry = cacheEntry;
+        }
+
+        HttpURLConnection run(final long hedgeDelayMillis) throws Exception {
+            lock.lock();
+            try {
+                pending++;
+            } finally {
+                lock.unlock();
+            }
+            ScheduledFuture<?> hedge = deadlineTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lock.lock();
+                    try {
+                        if (winner != null || pending == 0 || isCancelled() || !retryPolicy.hedge())
+                            return;
+                        pending++;
+                    } finally {
+                        lock.unlock();
+                    }
+                    HttpLog.d("HttpCall", String.format(Locale.ENGLISH, "Hedging %s after %d ms", url, hedgeDelayMillis));
+                    try {
+                        retryPolicy.hedgeExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                attempt();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        settle(null, e);
+                    }
+                }
+            }, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+            attempt();
+            hedge.cancel(false);
+            lock.lock();
+            try {
+                while (winner == null && pending > 0)
+                    settled.await();
+                if (winner == null)
+                    throw failure;
+                return winner;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * Records the connection of an attempt so it can be aborted if the other attempt wins.
+         * @throws HedgeLostException If the race is already won.
+         */
+        void opened(HttpURLConnection connection) throws HedgeLostException {
+            lock.lock();
+            try {
+                if (winner == null) {
+                    inFlight.add(connection);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            abort(connection);
+            throw new HedgeLostException();
+        }
+
+        /***
+         * @return True if another attempt won the race.
+         */
+        boolean lost(HttpURLConnection connection) {
+            lock.lock();
+            try {
+                return winner != null && winner != connection;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void attempt() {
+            HttpURLConnection connection = null;
+            Exception error = null;
+            try {
+                connection = connect(cacheEntry, this);
+            } catch (Exception e) {
+                error = e;
+            }
+            settle(connection, error);
+        }
+
+        private void settle(HttpURLConnection connection, Exception error) {
+            List<HttpURLConnection> losers = new ArrayList<>(1);
+            lock.lock();
+            try {
+                pending--;
+                if (connection != null && winner == null) {
+                    winner = connection;
+                    for (HttpURLConnection other : inFlight) {
+                        if (other != connection)
+                            losers.add(other);
+                    }
+                    inFlight.clear();
+                    connection = null;
+                } else if (error != null && failure == null && !(error instanceof HedgeLostException)) {
+                    failure = error;
+                }
+                settled.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            for (HttpURLConnection loser : losers)
+                abort(loser);
+            if (connection != null)
+                abort(connection);
+        }
+
+        /***
+         * Aborts the connection of a losing attempt the way {@link #cancel()} does, wherever it's
+         * blocked.
+         */
+        private void abort(HttpURLConnection connection) {
+            connectionLock.lock();
+            try {
+                openConnections.remove(connection);
+            } finally {
+                connectionLock.unlock();
+            }
+            connection.disconnect();
+        }
+    }
+
+    /***
+     * Ends an attempt aborted because the other attempt of a hedged race won.
+     */
+    private static final class HedgeLostException extends InterruptedIOException {
+        HedgeLostException() {
+            super("Another attempt won the hedged race");
+        }
+    }
+
+    /***
+     * @return True for the 2xx codes, whose body goes to {@link #responseStream(InputStream)}.
+     */
+    private static boolean isSuccessful(int responseCode) {
+        return responseCode >= 200 && responseCode < 300;
+    }
+
+    private void writeRequest(OutputStream stream) throws Exception {
+        sentWire = new CountingOutputStream(stream);
+        if (requestCompression) {
+            GZIPOutputStream gzipStream = new GZIPOutputStream(sentWire);
+            sentDecoded = new CountingOutputStream(gzipStream);
+            requestStream(sentDecoded);
+            gzipStream.finish();
+        } else {
+            sentDecoded = sentWire;
+            requestStream(sentDecoded);
+        }
+    }
+
+    /***
+     * Undoes the Content-Encoding of a response body, counting the bytes on both sides.
+     */
+    private InputStream decode(InputStream stream) throws IOException {
+        if (stream == null)
+            return null;
+        receivedWire = new CountingInputStream(new CancellableInputStream(stream));
+        String contentEncoding = urlConnection.getContentEncoding();
+        InputStream decoded = receivedWire;
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "deflate".equalsIgnoreCase(contentEncoding)) {
+            PushbackInputStream pushbackStream = new PushbackInputStream(receivedWire);
+            int first = pushbackStream.read();
+            if (first == -1) {
+                decoded = new ByteArrayInputStream(new byte[0]);
+            } else {
+                pushbackStream.unread(first);
+                decoded = "gzip".equalsIgnoreCase(contentEncoding)
+                        ? new GZIPInputStream(pushbackStream)
+                        : new InflaterInputStream(pushbackStream);
+            }
+        }
+        receivedDecoded = new CountingInputStream(decoded);
+        return receivedDecoded;
+    }
+
+    private Integer respondFromCache(HttpCache.Entry cacheEntry) {
+        cache.trackHit();
+        InputStream stream = null;
+        try {
+            stream = cacheEntry.newInputStream();
+            responseStream(stream);
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            try {
+                if (stream != null)
+                    stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    private void attachCookies(HttpURLConnection httpURLConnection) {
+        if (cookieJar == null)
+            return;
+        try {
+            String cookieHeader = cookieJar.getCookieHeader(httpURLConnection.getURL().toURI());
+            if (cookieHeader != null)
+                httpURLConnection.setRequestProperty("Cookie", cookieHeader);
+        } catch (Exception e) {
+            HttpLog.e("HttpCall", e.getLocalizedMessage());
+        }
+    }
+
+    private void readCookies(HttpURLConnection httpURLConnection) {
+        List<HttpCookie> cookieList;
+        List<String> cookies = httpURLConnection.getHeaderFields().get("Set-Cookie");
+        if (cookies != null && cookieJar != null) {
+            for (String cookieHeader : cookies) {
+                try {
+                    cookieList = HttpCookie.parse(cookieHeader);
+                    if (cookieList != null) {
+                        for (HttpCookie cookie : cookieList) {
+                            cookieJar.add(httpURLConnection.getURL().toURI(), cookie);
+                        }
+                    }
+                } catch (NullPointerException e) {
+                    HttpLog.e("HttpCall", e.getLocalizedMessage(), e);
+                    continue;
+                } catch (URISyntaxException e) {
+                    HttpLog.e("HttpCall", e.getLocalizedMessage(), e);
+                    continue;
+                } catch (Exception e) {
+                    HttpLog.e("HttpCall", e.getLocalizedMessage(), e);
+                    continue;
+                }
+            }
+        }
+    }
+
+    /***
+     * The request output stream. Writes the {@link RequestBody} if one was set, otherwise must be
+     * overriden for POST. PUT and PATCH send an empty body unless overriden.
+     * With the platform engine the stream goes straight to the socket, so there's no need to buffer
+     * the whole entity first, the {@link NioEngine} buffers it.
+     * @param stream
+     * @throws IOException
+     */
+    public void requestStream(OutputStream stream) throws Exception {
+        if (requestBody != null)
+            requestBody.writeTo(stream);
+        else if (httpMethod.equals(HttpMethod.POST))
+            throw new NotOverridenException();
+    }
+
+    /***
+     * Reads the content from the connection asynchronously if there are no errors, that is for any
+     * 2xx status including 206 Partial Content. {@link DownloadCall} implements it with a {@link ResponseSink}.
+     * @param stream The connection response stream if the connection is successfull.
+     */
+    public abstract void responseStream(InputStream stream) throws Exception;
+
+    /***
+     * Consumes the body with a sink, to be called from {@link #responseStream(InputStream)}. The
+     * number of bytes transferred is published through {@link #onProgress(int)}.
+     * @param stream The response body.
+     * @param sink The sink, see {@link ResponseSinks}.
+     * @return The number of bytes transferred.
+     */
+    protected long transfer(InputStream stream, ResponseSink sink) throws IOException {
+        final long[] published = new long[1];
+        long transferred = sink.consume(stream, bufferPool, new ResponseSink.Progress() {
+            @Override
+            public void onProgress(long bytesTransferred) {
+                if (bytesTransferred - published[0] >= PROGRESS_STEP) {
+                    published[0] = bytesTransferred;
+                    HttpCall.this.onProgress((int) Math.min(bytesTransferred, Integer.MAX_VALUE));
+                }
+            }
+        });
+        if (transferred != published[0])
+            onProgress((int) Math.min(transferred, Integer.MAX_VALUE));
+        return transferred;
+    }
+
+    /***
+     * Decodes the body with the shared decoder of the response media type, to be called from
+     * {@link #responseStream(InputStream)}.
+     * @param stream The response body.
+     * @param type The class of the result.
+     */
+    protected <T> T decode(InputStream stream, Class<T> type) throws IOException {
+        return decoders.forMediaType(responseMediaType).decode(stream, responseMediaType, type);
+    }
+
+    /***
+     * Decodes the elements of the body as they arrive, to be called from
+     * {@link #responseStream(InputStream)}. The first element reaches the callback once its own
+     * bytes are read, and the body is never held in memory as a whole.
+     * @param stream The response body.
+     * @param elementType The class of the elements.
+     * @param callback Receives every element in order, on the thread reading the body.
+     * @return The number of elements decoded.
+     */
+    protected <T> long decodeElements(InputStream stream, Class<T> elementType,
+                                      ResponseDecoder.ElementCallback<? super T> callback) throws IOException {
+        return decoders.forMediaType(responseMediaType).decodeElements(stream, responseMediaType, elementType, callback);
+    }
+
+    /***
+     * Called on the request thread as {@link #transfer(InputStream, ResponseSink)} copies the response body.
+     * @param bytesTransferred The bytes of the body transferred so far.
+     */
+    protected void onProgress(int bytesTransferred) {
+    }
+
+    /***
+     * Reads an error stream from the connection asynchronously if there are errors.
+     * Override this if you intend to capture the @see{@link HttpURLConnection#getErrorStream()}.
+     * @param stream The error stream from the response.
+     * @throws IOException
+     */
+    public void errorStream(InputStream stream) throws Exception {
+
+    }
+
+    /***
+     * Fails the reads of a cancelled request, for the engines that can't abort a blocked socket.
+     */
+    private final class CancellableInputStream extends FilterInputStream {
+
+        CancellableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkCancelled();
+            return super.read(buffer, offset, length);
+        }
+    }
+
+    /***
+     * Expires a request, only weakly held so the timer doesn't keep finished requests around
+     * until their deadline.
+     */
+    private static final class Deadline implements Runnable {
+        private final WeakReference<HttpCall> call;
+
+        Deadline(HttpCall call) {
+            this.call = new WeakReference<>(call);
+        }
+
+        @Override
+        public void run() {
+            HttpCall expired = call.get();
+            if (expired != null)
+                expired.cancel(new DeadlineExceededException(expired.deadlineMillis));
+        }
+    }
+
+    private static final class DeadlineThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HttpCall deadline");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/***
+ * Parses and formats the date formats allowed by RFC 7231 section 7.1.1.1.
+ */
+final class HttpDate {
+    private static final String[] FORMATS = {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            "EEE MMM d HH:mm:ss yyyy",
+            "EEE, dd-MMM-yyyy HH:mm:ss zzz"
+    };
+    private static final ThreadLocal<DateFormat[]> formats = new ThreadLocal<DateFormat[]>() {
+        @Override
+        protected DateFormat[] initialValue() {
+            DateFormat[] dateFormats = new DateFormat[FORMATS.length];
+            for (int i = 0; i < FORMATS.length; i++) {
+                dateFormats[i] = new SimpleDateFormat(FORMATS[i], Locale.US);
+                dateFormats[i].setTimeZone(TimeZone.getTimeZone("GMT"));
+                dateFormats[i].setLenient(false);
+            }
+            return dateFormats;
+        }
+    };
+
+    private HttpDate() {
+    }
+
+    /***
+     * @param value A header value, may be null.
+     * @return The date in millis, or -1 if the value is missing or malformed.
+     */
+    static long parse(String value) {
+        if (value == null)
+            return -1;
+        for (DateFormat dateFormat : formats.get()) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = dateFormat.parse(value.trim(), position);
+            if (date != null && position.getIndex() > 0)
+                return date.getTime();
+        }
+        return -1;
+    }
+
+    /***
+     * @return The preferred IMF-fixdate form of a date.
+     */
+    static String format(long millis) {
+        return formats.get()[0].format(new Date(millis));
+    }
+}
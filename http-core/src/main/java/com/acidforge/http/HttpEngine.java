@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+
+/***
+ * Opens the connections of {@link HttpCall}s. Everything above the connection, from headers and
+ * cookies to the stream callbacks, is the same whatever the engine.
+ */
+public interface HttpEngine {
+
+    /***
+     * The platform {@link HttpURLConnection}, one thread blocked per request. The default engine.
+     */
+    HttpEngine URL_CONNECTION = new HttpEngine() {
+        @Override
+        public HttpURLConnection open(URL url, SSLContext sslContext) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            if (sslContext != null && connection instanceof HttpsURLConnection)
+                ((HttpsURLConnection) connection).setSSLSocketFactory(TlsSocketFactory.forContext(sslContext));
+            return connection;
+        }
+    };
+
+    /***
+     * @param url The address of the request.
+     * @param sslContext The SSL context for https urls, null for the platform default.
+     * @return An unconnected connection.
+     */
+    HttpURLConnection open(URL url, SSLContext sslContext) throws IOException;
+}
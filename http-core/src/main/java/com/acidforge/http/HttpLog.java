@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/***
+ * The log of the library, written to {@link java.util.logging} unless a {@link Sink} is set. The
+ * Android front end sends it to logcat.
+ */
+public final class HttpLog {
+
+    /***
+     * Priority of the debug messages, the value of android.util.Log.DEBUG.
+     */
+    public static final int DEBUG = 3;
+    /***
+     * Priority of the errors, the value of android.util.Log.ERROR.
+     */
+    public static final int ERROR = 6;
+
+    /***
+     * Receives the messages of the library.
+     */
+    public interface Sink {
+        /***
+         * @param priority {@link #DEBUG} or {@link #ERROR}.
+         * @param tag The class writing the message.
+         * @param error The error being reported, may be null.
+         */
+        void log(int priority, String tag, String message, Throwable error);
+    }
+
+    private static final Sink JAVA_LOGGING = new Sink() {
+        @Override
+        public void log(int priority, String tag, String message, Throwable error) {
+            Logger.getLogger("com.acidforge.http." + tag).log(priority >= ERROR ? Level.SEVERE : Level.FINE, message, error);
+        }
+    };
+
+    private static volatile Sink sink = JAVA_LOGGING;
+    private static boolean custom;
+
+    private HttpLog() {
+    }
+
+    /***
+     * @param sink The sink of every message, null for {@link java.util.logging}.
+     */
+    public static synchronized void setSink(Sink sink) {
+        HttpLog.sink = sink == null ? JAVA_LOGGING : sink;
+        custom = sink != null;
+    }
+
+    /***
+     * Sets the log of the platform, unless the application set a sink of its own.
+     */
+    static synchronized void setPlatformSink(Sink sink) {
+        if (!custom)
+            HttpLog.sink = sink;
+    }
+
+    static void d(String tag, String message) {
+        sink.log(DEBUG, tag, message, null);
+    }
+
+    static void e(String tag, String message) {
+        sink.log(ERROR, tag, message, null);
+    }
+
+    static void e(String tag, String message, Throwable error) {
+        sink.log(ERROR, tag, message, error);
+    }
+}
@@ -72,4 +72,27 @@ public enum HttpMethod {
     public String toString(){
         return  method;
     }
+
+    /***
+     * @return True for the methods whose semantics need an enclosed entity: POST, PUT and PATCH.
+     */
+    public boolean requiresRequestBody() {
+        return this == POST || this == PUT || this == PATCH;
+    }
+
+    /***
+     * @return True for the methods that may enclose an entity, the ones requiring it plus DELETE
+     * and OPTIONS.
+     */
+    public boolean permitsRequestBody() {
+        return requiresRequestBody() || this == DELETE || this == OPTIONS;
+    }
+
+    /***
+     * @return True for the methods whose effect is the same however many times they are sent:
+     * GET, HEAD, OPTIONS, TRACE, PUT and DELETE.
+     */
+    public boolean isIdempotent() {
+        return this == GET || this == HEAD || this == OPTIONS || this == TRACE || this == PUT || this == DELETE;
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * An {@link EventListener} aggregating requests in per host latency histograms, plus status and
+ * error counters. Recording only touches atomic counters, so a single instance can be shared by
+ * every request of the application.
+ */
+public class HttpMetrics extends EventListener {
+
+    private static final long[] BUCKET_BOUNDS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+    private static final int MAX_STATUS_CODE = 600;
+    private static final String[] HISTOGRAM_NAMES = {
+            "http_request_duration_ms", "http_time_to_first_byte_ms", "http_dns_duration_ms", "http_connect_duration_ms"
+    };
+
+    private final ConcurrentHashMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+    private final AtomicLongArray statusCounts = new AtomicLongArray(MAX_STATUS_CODE);
+    private final ConcurrentHashMap<String, AtomicLong> errorCounts = new ConcurrentHashMap<>();
+
+    /***
+     * A latency histogram over fixed buckets from 1ms to 60s.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final AtomicLong sumMillis = new AtomicLong();
+
+        void record(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket])
+                bucket++;
+            counts.incrementAndGet(bucket);
+            sumMillis.addAndGet(millis);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++)
+                count += counts.get(i);
+            return count;
+        }
+
+        public long getSumMillis() {
+            return sumMillis.get();
+        }
+
+        /***
+         * @param fraction The percentile as a fraction, 0.99 for the 99th.
+         * @return The upper bound of the bucket holding the percentile, -1 if empty or beyond
+         * the last bound.
+         */
+        public long getPercentileMillis(double fraction) {
+            long count = getCount();
+            if (count == 0)
+                return -1;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return BUCKET_BOUNDS_MILLIS[i];
+            }
+            return -1;
+        }
+    }
+
+    private static final class HostMetrics {
+        final Histogram total = new Histogram();
+        final Histogram timeToFirstByte = new Histogram();
+        final Histogram dns = new Histogram();
+        final Histogram connect = new Histogram();
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        /***
+         * @param family The index of the histogram in {@link #HISTOGRAM_NAMES}.
+         */
+        Histogram histogram(int family) {
+            switch (family) {
+                case 0:
+                    return total;
+                case 1:
+                    return timeToFirstByte;
+                case 2:
+                    return dns;
+                default:
+                    return connect;
+            }
+        }
+    }
+
+    /***
+     * @return Time from start to end of the calls to a host, null if none was recorded.
+     */
+    public Histogram getLatencyHistogram(String host) {
+        HostMetrics metrics = hosts.get(host);
+        return metrics == null ? null : metrics.total;
+    }
+
+    /***
+     * @return Time from start to the response headers of the calls to a host, null if none was recorded.
+     */
+    public Histogram getTimeToFirstByteHistogram(String host) {
+        HostMetrics metrics = hosts.get(host);
+        return metrics == null ? null : metrics.timeToFirstByte;
+    }
+
+    /***
+     * @return Time of the host lookups, null if none was recorded. Only the engines resolving on
+     * their own report it, see {@link EventListener#dnsStart(HttpCall, String, long)}.
+     */
+    public Histogram getDnsHistogram(String host) {
+        HostMetrics metrics = hosts.get(host);
+        return metrics == null ? null : metrics.dns;
+    }
+
+    /***
+     * @return Time of the TCP connects and TLS handshakes to a host, null if none was recorded.
+     */
+    public Histogram getConnectHistogram(String host) {
+        HostMetrics metrics = hosts.get(host);
+        return metrics == null ? null : metrics.connect;
+    }
+
+    /***
+     * @return The number of calls ended with a status code, 0 standing for calls without response.
+     */
+    public long getStatusCount(int responseCode) {
+        return responseCode >= 0 && responseCode < MAX_STATUS_CODE ? statusCounts.get(responseCode) : 0;
+    }
+
+    /***
+     * @return The number of failed calls per error class.
+     */
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : errorCounts.entrySet())
+            counts.put(entry.getKey(), entry.getValue().get());
+        return counts;
+    }
+
+    /***
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        hosts.clear();
+        errorCounts.clear();
+        for (int i = 0; i < statusCounts.length(); i++)
+            statusCounts.set(i, 0);
+    }
+
+    @Override
+    public void dnsEnd(HttpCall request, String host, long nanoTime) {
+        hostMetrics(request).dns.record(TimeUnit.NANOSECONDS.toMillis(nanoTime - request.dnsStartNanos));
+    }
+
+    @Override
+    public void connectEnd(HttpCall request, long nanoTime) {
+        hostMetrics(request).connect.record(TimeUnit.NANOSECONDS.toMillis(nanoTime - request.connectStartNanos));
+    }
+
+    @Override
+    public void responseHeadersEnd(HttpCall request, int responseCode, long nanoTime) {
+        hostMetrics(request).timeToFirstByte.record(TimeUnit.NANOSECONDS.toMillis(nanoTime - request.callStartNanos));
+    }
+
+    @Override
+    public void requestBodyEnd(HttpCall request, long bytes, long nanoTime) {
+        hostMetrics(request).bytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void responseBodyEnd(HttpCall request, long bytes, long nanoTime) {
+        hostMetrics(request).bytesReceived.addAndGet(bytes);
+    }
+
+    @Override
+    public void callEnd(HttpCall request, int responseCode, long nanoTime) {
+        hostMetrics(request).total.record(TimeUnit.NANOSECONDS.toMillis(nanoTime - request.callStartNanos));
+        if (responseCode >= 0 && responseCode < MAX_STATUS_CODE)
+            statusCounts.incrementAndGet(responseCode);
+    }
+
+    @Override
+    public void callFailed(HttpCall request, Exception e, long nanoTime) {
+        hostMetrics(request).total.record(TimeUnit.NANOSECONDS.toMillis(nanoTime - request.callStartNanos));
+        String name = e.getClass().getSimpleName();
+        AtomicLong count = errorCounts.get(name);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = errorCounts.putIfAbsent(name, count);
+            if (existing != null)
+                count = existing;
+        }
+        count.incrementAndGet();
+    }
+
+    /***
+     * @return A human readable report, one line per host, status code and error.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, HostMetrics> entry : new TreeMap<>(hosts).entrySet()) {
+            HostMetrics metrics = entry.getValue();
+            builder.append(String.format(Locale.ENGLISH,
+                    "%s: %d calls, p50 %d ms, p95 %d ms, p99 %d ms, ttfb p95 %d ms, dns p95 %d ms, connect p95 %d ms, "
+                            + "sent %d B, received %d B%n",
+                    entry.getKey(), metrics.total.getCount(), metrics.total.getPercentileMillis(0.5),
+                    metrics.total.getPercentileMillis(0.95), metrics.total.getPercentileMillis(0.99),
+                    metrics.timeToFirstByte.getPercentileMillis(0.95), metrics.dns.getPercentileMillis(0.95),
+                    metrics.connect.getPercentileMillis(0.95), metrics.bytesSent.get(),
+                    metrics.bytesReceived.get()));
+        }
+        for (int code = 0; code < MAX_STATUS_CODE; code++) {
+            long count = statusCounts.get(code);
+            if (count > 0)
+                builder.append(String.format(Locale.ENGLISH, "status %d: %d%n", code, count));
+        }
+        for (Map.Entry<String, Long> entry : getErrorCounts().entrySet())
+            builder.append(String.format(Locale.ENGLISH, "error %s: %d%n", entry.getKey(), entry.getValue()));
+        return builder.toString();
+    }
+
+    /***
+     * Writes the metrics in the Prometheus text exposition format.
+     */
+    public void export(Writer writer) throws IOException {
+        // every sample of a family follows its TYPE line, before the next family
+        Map<String, HostMetrics> sortedHosts = new TreeMap<>(hosts);
+        for (int family = 0; family < HISTOGRAM_NAMES.length; family++) {
+            writer.write("# TYPE " + HISTOGRAM_NAMES[family] + " histogram\n");
+            for (Map.Entry<String, HostMetrics> entry : sortedHosts.entrySet())
+                writeHistogram(writer, HISTOGRAM_NAMES[family], entry.getKey(), entry.getValue().histogram(family));
+        }
+        writer.write("# TYPE http_bytes_sent counter\n");
+        for (Map.Entry<String, HostMetrics> entry : sortedHosts.entrySet())
+            writer.write(String.format(Locale.ENGLISH, "http_bytes_sent{host=\"%s\"} %d\n",
+                    entry.getKey(), entry.getValue().bytesSent.get()));
+        writer.write("# TYPE http_bytes_received counter\n");
+        for (Map.Entry<String, HostMetrics> entry : sortedHosts.entrySet())
+            writer.write(String.format(Locale.ENGLISH, "http_bytes_received{host=\"%s\"} %d\n",
+                    entry.getKey(), entry.getValue().bytesReceived.get()));
+        writer.write("# TYPE http_responses counter\n");
+        for (int code = 0; code < MAX_STATUS_CODE; code++) {
+            long count = statusCounts.get(code);
+            if (count > 0)
+                writer.write(String.format(Locale.ENGLISH, "http_responses{code=\"%d\"} %d\n", code, count));
+        }
+        writer.write("# TYPE http_errors counter\n");
+        for (Map.Entry<String, Long> entry : getErrorCounts().entrySet())
+            writer.write(String.format(Locale.ENGLISH, "http_errors{error=\"%s\"} %d\n", entry.getKey(), entry.getValue()));
+        writer.flush();
+    }
+
+    private static void writeHistogram(Writer writer, String name, String host, Histogram histogram) throws IOException {
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            cumulative += histogram.counts.get(i);
+            writer.write(String.format(Locale.ENGLISH, "%s_bucket{host=\"%s\",le=\"%d\"} %d\n",
+                    name, host, BUCKET_BOUNDS_MILLIS[i], cumulative));
+        }
+        cumulative += histogram.counts.get(BUCKET_BOUNDS_MILLIS.length);
+        writer.write(String.format(Locale.ENGLISH, "%s_bucket{host=\"%s\",le=\"+Inf\"} %d\n", name, host, cumulative));
+        writer.write(String.format(Locale.ENGLISH, "%s_sum{host=\"%s\"} %d\n", name, host, histogram.getSumMillis()));
+        writer.write(String.format(Locale.ENGLISH, "%s_count{host=\"%s\"} %d\n", name, host, cumulative));
+    }
+
+    private HostMetrics hostMetrics(HttpCall request) {
+        String host = request.getUrl() == null ? null : request.getUrl().getAuthority();
+        if (host == null)
+            host = "";
+        HostMetrics metrics = hosts.get(host);
+        if (metrics == null) {
+            metrics = new HostMetrics();
+            HostMetrics existing = hosts.putIfAbsent(host, metrics);
+            if (existing != null)
+                metrics = existing;
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * Decodes JSON bodies with a streaming {@link JsonReader}. Types with a registered {@link Adapter}
+ * are read straight from the tokens, other values as trees of {@link Map}, {@link List},
+ * {@link String}, {@link Long} or {@link Double}, {@link Boolean} and null.
+ * <p>
+ * The elements of a top level array are decoded as they arrive, see
+ * {@link #decodeElements(InputStream, MediaType, Class, ElementCallback)}.
+ */
+public final class JsonDecoder implements ResponseDecoder {
+
+    /***
+     * Reads one value of a type from the tokens. Adapters are shared like the decoder, so they
+     * must be thread-safe.
+     */
+    public interface Adapter<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    private final Map<Class<?>, Adapter<?>> adapters = new ConcurrentHashMap<>();
+
+    public JsonDecoder() {
+        register(String.class, new Adapter<String>() {
+            @Override
+            public String read(JsonReader reader) throws IOException {
+                return reader.nextString();
+            }
+        });
+        register(Long.class, new Adapter<Long>() {
+            @Override
+            public Long read(JsonReader reader) throws IOException {
+                return reader.nextLong();
+            }
+        });
+        register(Integer.class, new Adapter<Integer>() {
+            @Override
+            public Integer read(JsonReader reader) throws IOException {
+                return reader.nextInt();
+            }
+        });
+        register(Double.class, new Adapter<Double>() {
+            @Override
+            public Double read(JsonReader reader) throws IOException {
+                return reader.nextDouble();
+            }
+        });
+        register(Boolean.class, new Adapter<Boolean>() {
+            @Override
+            public Boolean read(JsonReader reader) throws IOException {
+                return reader.nextBoolean();
+            }
+        });
+    }
+
+    /***
+     * Binds a type to its adapter, replacing any previous one.
+     * @return This decoder, for chaining.
+     */
+    public <T> JsonDecoder register(Class<T> type, Adapter<T> adapter) {
+        adapters.put(type, adapter);
+        return this;
+    }
+
+    @Override
+    public <T> T decode(InputStream stream, MediaType mediaType, Class<T> type) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, charset(mediaType)));
+        T value = read(reader, type);
+        if (reader.peek() != JsonReader.Token.END_DOCUMENT)
+            throw new IOException("Unexpected content after the JSON document");
+        return value;
+    }
+
+    /***
+     * Decodes the elements of a top level array.
+     */
+    @Override
+    public <T> long decodeElements(InputStream stream, MediaType mediaType, Class<T> elementType,
+                                   ElementCallback<? super T> callback) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, charset(mediaType)));
+        long count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            callback.onElement(read(reader, elementType));
+            count++;
+        }
+        reader.endArray();
+        return count;
+    }
+
+    /***
+     * Reads the next value as a type, with its adapter if there is one.
+     */
+    public <T> T read(JsonReader reader, Class<T> type) throws IOException {
+        if (reader.peek() == JsonReader.Token.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Adapter<T> adapter = (Adapter<T>) adapters.get(type);
+        if (adapter != null)
+            return adapter.read(reader);
+        Object value = reader.readValue();
+        if (!type.isInstance(value))
+            throw new IllegalArgumentException("No JSON adapter registered for " + type.getName());
+        return type.cast(value);
+    }
+
+    private static Charset charset(MediaType mediaType) {
+        return mediaType == null ? Charsets.UTF_8 : mediaType.charset().or(Charsets.UTF_8);
+    }
+}
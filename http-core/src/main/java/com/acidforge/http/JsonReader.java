@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Reads a JSON document token by token, so the values of a large document can be consumed while
+ * it's still arriving. Only the current token is held in memory, besides a fixed buffer.
+ */
+public final class JsonReader implements Closeable {
+
+    /***
+     * The kinds of token of a document.
+     */
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder builder = new StringBuilder();
+    private int pos;
+    private int limit;
+    private long consumed;
+    private int[] stack = new int[32];
+    private int stackSize = 1;
+    private Token peeked;
+    private String peekedValue;
+
+    /***
+     * @param in The document, read through the internal buffer so it needs no buffering of its own.
+     */
+    public JsonReader(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+
+    /***
+     * @return The kind of the next token, without consuming it.
+     */
+    public Token peek() throws IOException {
+        if (peeked == null)
+            peeked = read();
+        return peeked;
+    }
+
+    /***
+     * @return True if the current array or object has another element.
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_ARRAY && token != Token.END_OBJECT && token != Token.END_DOCUMENT;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        stackSize--;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        stackSize--;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return peekedValue;
+    }
+
+    /***
+     * @return The next string, or the text of the next number.
+     */
+    public String nextString() throws IOException {
+        if (peek() == Token.NUMBER)
+            expect(Token.NUMBER);
+        else
+            expect(Token.STRING);
+        return peekedValue;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return "true".equals(peekedValue);
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    /***
+     * @return The next number, or the next string holding a number.
+     */
+    public double nextDouble() throws IOException {
+        String value = nextString();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + value);
+        }
+    }
+
+    public long nextLong() throws IOException {
+        String value = nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            double asDouble = parseDouble(value);
+            long asLong = (long) asDouble;
+            if (asLong != asDouble)
+                throw syntaxError("Expected a long but was " + value);
+            return asLong;
+        }
+    }
+
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if (value != (int) value)
+            throw syntaxError("Expected an int but was " + value);
+        return (int) value;
+    }
+
+    /***
+     * Skips the next value, with all its nested values if it's an array or an object.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_ARRAY:
+                    beginArray();
+                    depth++;
+                    break;
+                case BEGIN_OBJECT:
+                    beginObject();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    depth--;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    depth--;
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    peeked = null;
+            }
+        } while (depth > 0);
+    }
+
+    /***
+     * Reads the next value as a tree of {@link Map}, {@link List}, {@link String}, {@link Long} or
+     * {@link Double}, {@link Boolean} and null.
+     */
+    public Object readValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<>();
+                beginArray();
+                while (hasNext())
+                    list.add(readValue());
+                endArray();
+                return list;
+            case BEGIN_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                beginObject();
+                while (hasNext())
+                    map.put(nextName(), readValue());
+                endObject();
+                return map;
+            case STRING:
+                return nextString();
+            case NUMBER:
+                String number = nextString();
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    return parseDouble(number);
+                }
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return null;
+            default:
+                throw syntaxError("Expected a value but was " + peek());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        peeked = null;
+        stackSize = 0;
+        in.close();
+    }
+
+    private void expect(Token token) throws IOException {
+        if (peek() != token)
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    /***
+     * Reads the next token, moving the scope on the top of the stack past it.
+     */
+    private Token read() throws IOException {
+        if (stackSize == 0)
+            throw new IllegalStateException("JsonReader is closed");
+        int scope = stack[stackSize - 1];
+        int c;
+        switch (scope) {
+            case EMPTY_ARRAY:
+                stack[stackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']')
+                    return Token.END_ARRAY;
+                return readValue(c);
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']')
+                    return Token.END_ARRAY;
+                if (c != ',')
+                    throw syntaxError("Unterminated array");
+                return readValue(nextNonWhitespace());
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                c = nextNonWhitespace();
+                if (c == '}')
+                    return Token.END_OBJECT;
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',')
+                        throw syntaxError("Unterminated object");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"')
+                    throw syntaxError("Expected a name");
+                stack[stackSize - 1] = DANGLING_NAME;
+                peekedValue = readString();
+                return Token.NAME;
+            case DANGLING_NAME:
+                if (nextNonWhitespace() != ':')
+                    throw syntaxError("Expected ':'");
+                stack[stackSize - 1] = NONEMPTY_OBJECT;
+                return readValue(nextNonWhitespace());
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                return readValue(nextNonWhitespace());
+            default:
+                if (nextNonWhitespace() != -1)
+                    throw syntaxError("Expected the end of the document");
+                return Token.END_DOCUMENT;
+        }
+    }
+
+    /***
+     * Reads a value starting with the given character, already consumed.
+     */
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '"':
+                peekedValue = readString();
+                return Token.STRING;
+            case 't':
+                readLiteral("rue");
+                peekedValue = "true";
+                return Token.BOOLEAN;
+            case 'f':
+                readLiteral("alse");
+                peekedValue = "false";
+                return Token.BOOLEAN;
+            case 'n':
+                readLiteral("ull");
+                peekedValue = null;
+                return Token.NULL;
+            case -1:
+                throw syntaxError("Unexpected end of document");
+            default:
+                if (c != '-' && (c < '0' || c > '9'))
+                    throw syntaxError("Unexpected character '" + (char) c + "'");
+                peekedValue = readNumber((char) c);
+                return Token.NUMBER;
+        }
+    }
+
+    private String readString() throws IOException {
+        builder.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    builder.append(buffer, start, pos - start - 1);
+                    return builder.toString();
+                }
+                if (c == '\\') {
+                    builder.append(buffer, start, pos - start - 1);
+                    builder.append(readEscape());
+                    start = pos;
+                }
+            }
+            builder.append(buffer, start, pos - start);
+            if (!fill())
+                throw syntaxError("Unterminated string");
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = nextChar();
+        switch (c) {
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0)
+                        throw syntaxError("Malformed unicode escape");
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+
+    private String readNumber(char first) throws IOException {
+        builder.setLength(0);
+        builder.append(first);
+        while (pos < limit || fill()) {
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                builder.append(c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+        String number = builder.toString();
+        parseDouble(number);
+        return number;
+    }
+
+    private void readLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (nextChar() != rest.charAt(i))
+                throw syntaxError("Unexpected literal");
+        }
+    }
+
+    private double parseDouble(String number) throws IOException {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number " + number);
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (pos < limit || fill()) {
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return c;
+        }
+        return -1;
+    }
+
+    private int nextChar() throws IOException {
+        if (pos == limit && !fill())
+            throw syntaxError("Unexpected end of document");
+        return buffer[pos++];
+    }
+
+    /***
+     * Reads more of the document once the buffer is consumed.
+     * @return False at the end of the document.
+     */
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = 0;
+        limit = 0;
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) == 0) {
+            // a reader may return 0 before blocking
+        }
+        if (read < 0)
+            return false;
+        limit = read;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at offset " + (consumed + pos) + " of the JSON document");
+    }
+}
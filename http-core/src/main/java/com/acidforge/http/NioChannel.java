@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/***
+ * A non blocking socket of the {@link NioEngine}, with the TLS layer of https connections.
+ * Only used on the selector thread.
+ */
+final class NioChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final SocketChannel channel;
+    final String address;
+    final String host;
+    private final SSLEngine sslEngine;
+    /***
+     * TLS records received and not yet decrypted, in write mode.
+     */
+    private ByteBuffer netIn;
+    /***
+     * TLS records waiting for the socket, in read mode.
+     */
+    private ByteBuffer netOut;
+    /***
+     * Decrypted bytes not yet read, in read mode.
+     */
+    private ByteBuffer appIn;
+    private boolean handshaken;
+    SelectionKey key;
+    NioConnection exchange;
+    long idleSince;
+
+    /***
+     * @param channel A connected channel.
+     * @param address The pool key of the channel.
+     * @param host The host name, for SNI and the certificate check.
+     * @param port The port, for TLS session resumption.
+     * @param sslContext The context of an https channel, null for plain http.
+     */
+    NioChannel(SocketChannel channel, String address, String host, int port, SSLContext sslContext) throws SSLException {
+        this.channel = channel;
+        this.address = address;
+        this.host = host;
+        if (sslContext == null) {
+            sslEngine = null;
+            handshaken = true;
+            return;
+        }
+        sslEngine = sslContext.createSSLEngine(host, port);
+        sslEngine.setUseClientMode(true);
+        netIn = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        sslEngine.beginHandshake();
+    }
+
+    /***
+     * Drives the TLS handshake as far as the socket allows.
+     * @return True once the handshake is done and the server certificate matches the host.
+     */
+    boolean handshake() throws IOException {
+        while (!handshaken) {
+            switch (sslEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = sslEngine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    if (!flush())
+                        return false;
+                    wrap(EMPTY);
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    if (!flush())
+                        return false;
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslEngine.getSession()))
+                        throw new SSLPeerUnverifiedException("Hostname " + host + " not verified");
+                    handshaken = true;
+                    break;
+                default:
+                    if (!flush())
+                        return false;
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("Connection closed during the TLS handshake");
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+                            || result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() == 0
+                            && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                        int read = channel.read(netIn);
+                        if (read < 0)
+                            throw new EOFException("Connection closed during the TLS handshake");
+                        if (read == 0)
+                            return false;
+                    }
+            }
+        }
+        return true;
+    }
+
+    /***
+     * Writes as much of the source as the socket takes.
+     * @return True if the source and the TLS records it produced were all written.
+     */
+    boolean write(ByteBuffer source) throws IOException {
+        if (sslEngine == null) {
+            channel.write(source);
+            return !source.hasRemaining();
+        }
+        while (true) {
+            if (!flush())
+                return false;
+            if (!source.hasRemaining())
+                return true;
+            wrap(source);
+        }
+    }
+
+    /***
+     * @return True if TLS records wait for the socket to accept them.
+     */
+    boolean hasPendingWrites() {
+        return netOut != null && netOut.hasRemaining();
+    }
+
+    /***
+     * Reads the bytes available without blocking.
+     * @return The number of bytes read, 0 if none is available, -1 at the end of the stream.
+     */
+    int read(ByteBuffer destination) throws IOException {
+        if (sslEngine == null)
+            return channel.read(destination);
+        while (true) {
+            if (appIn.hasRemaining()) {
+                int count = Math.min(appIn.remaining(), destination.remaining());
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + count);
+                destination.put(slice);
+                appIn.position(appIn.position() + count);
+                return count;
+            }
+            SSLEngineResult result = unwrap();
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                    || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                handshaken = false;
+                if (!handshake())
+                    return 0;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && !appIn.hasRemaining())
+                return -1;
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW || appIn.hasRemaining())
+                continue;
+            if (result.bytesProduced() > 0 || result.bytesConsumed() > 0 && result.getStatus() == SSLEngineResult.Status.OK)
+                continue;
+            int read = channel.read(netIn);
+            if (read <= 0)
+                return read;
+        }
+    }
+
+    /***
+     * @param ops The selector events to wait for.
+     */
+    void interest(int ops) {
+        if (key != null && key.isValid() && key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+
+    void close() {
+        if (key != null)
+            key.cancel();
+        try {
+            if (sslEngine != null && handshaken) {
+                sslEngine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private boolean flush() throws IOException {
+        if (netOut.hasRemaining())
+            channel.write(netOut);
+        return !netOut.hasRemaining();
+    }
+
+    private void wrap(ByteBuffer source) throws IOException {
+        netOut.clear();
+        SSLEngineResult result = sslEngine.wrap(source, netOut);
+        netOut.flip();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && !sslEngine.isOutboundDone())
+            throw new SSLException("TLS connection closed");
+    }
+
+    private SSLEngineResult unwrap() throws IOException {
+        netIn.flip();
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                appIn = grow(appIn, sslEngine.getSession().getApplicationBufferSize());
+                break;
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining())
+                    netIn = grow(netIn, sslEngine.getSession().getPacketBufferSize());
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    /***
+     * @param buffer A buffer in read mode for appIn, write mode for netIn, kept as is.
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() + extra);
+        if (buffer == appIn) {
+            grown.put(buffer);
+            grown.flip();
+        } else {
+            buffer.flip();
+            grown.put(buffer);
+        }
+        return grown;
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * An exchange of the {@link NioEngine}. The request is sent with its buffered body once complete.
+ * The response is parsed on the selector thread and its body queued for the reader, reading the
+ * socket being paused while the queue is full.
+ * Selector side methods are only called on the selector thread.
+ */
+final class NioConnection extends TransportConnection {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int HIGH_WATER = 256 * 1024;
+    private static final int LOW_WATER = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    private final NioEngine engine;
+    final SSLContext sslContext;
+    final HttpCall call;
+    final String address;
+    private boolean started;
+    private boolean connectionReady;
+    private boolean paused;
+    private Runnable completion;
+
+    // selector thread only
+    NioChannel channel;
+    boolean reusedChannel;
+    boolean connecting;
+    boolean retried;
+    long lastActivity;
+    private ByteBuffer[] pendingWrites;
+    private byte[] head;
+    private byte[] content;
+    private State state = State.STATUS_LINE;
+    private final StringBuilder line = new StringBuilder();
+    private boolean informational;
+    private long remaining;
+    private long bytesReceived;
+    boolean keepAlive;
+
+    /***
+     * @param call The call reported the lookup and connect of a new socket, null for none.
+     */
+    NioConnection(NioEngine engine, URL url, SSLContext sslContext, HttpCall call) {
+        super(url);
+        this.engine = engine;
+        this.call = call;
+        this.sslContext = "https".equalsIgnoreCase(url.getProtocol()) ? sslContext : null;
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        this.address = url.getProtocol().toLowerCase(Locale.ENGLISH) + "://"
+                + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port
+                + (this.sslContext == null ? "" : "#" + System.identityHashCode(this.sslContext));
+    }
+
+    /***
+     * Opens the socket ahead of the request, blocking until it's connected.
+     */
+    @Override
+    public void connect() throws IOException {
+        synchronized (this) {
+            if (started)
+                return;
+            started = true;
+        }
+        engine.start(this);
+        await(new Condition() {
+            @Override
+            public boolean met() {
+                return connectionReady;
+            }
+        });
+    }
+
+    /***
+     * Sends the request without waiting for the response.
+     * @param completion Run on a dispatch thread once the whole response arrived or the exchange
+     *                   failed, the response then reads without blocking.
+     */
+    void send(Runnable completion) throws IOException {
+        synchronized (this) {
+            this.completion = completion;
+        }
+        sendRequest();
+    }
+
+    @Override
+    void sendRequest() {
+        boolean connecting;
+        synchronized (this) {
+            if (!freezeRequest())
+                return;
+            content = requestBody();
+            head = requestHead();
+            connected = true;
+            connecting = started;
+            started = true;
+        }
+        if (connecting)
+            engine.resume(this);
+        else
+            engine.start(this);
+    }
+
+    @Override
+    void abort() {
+        engine.abort(this);
+    }
+
+    @Override
+    void onBodyRead(int count, int buffered) {
+        boolean resume;
+        synchronized (this) {
+            resume = paused && buffered <= LOW_WATER;
+            if (resume)
+                paused = false;
+        }
+        if (resume)
+            engine.resume(this);
+    }
+
+    private byte[] requestHead() {
+        StringBuilder builder = new StringBuilder(256);
+        String file = url.getFile();
+        builder.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        builder.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort())
+            builder.append(':').append(url.getPort());
+        builder.append("\r\n");
+        for (Map.Entry<String, List<String>> property : getRequestProperties().entrySet()) {
+            String name = property.getKey();
+            if (name == null || "Host".equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name)
+                    || "Transfer-Encoding".equalsIgnoreCase(name))
+                continue;
+            for (String value : property.getValue())
+                builder.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (content != null)
+            builder.append("Content-Length: ").append(content.length).append("\r\n");
+        else if (getDoOutput() || "POST".equals(method) || "PUT".equals(method))
+            builder.append("Content-Length: 0\r\n");
+        builder.append("\r\n");
+        return builder.toString().getBytes(ISO_8859_1);
+    }
+
+    /***
+     * Called on the selector thread once the socket is connected, and the TLS handshake done.
+     */
+    void onConnected() {
+        if (connecting) {
+            connecting = false;
+            call.connectEnd();
+        }
+        synchronized (this) {
+            connectionReady = true;
+            notifyAll();
+        }
+    }
+
+    /***
+     * Writes the request as far as the socket allows.
+     * @return True once the whole request was written.
+     */
+    boolean writeRequest(NioChannel channel) throws IOException {
+        if (pendingWrites == null) {
+            pendingWrites = new ByteBuffer[]{ByteBuffer.wrap(head), ByteBuffer.wrap(content == null ? new byte[0] : content)};
+        }
+        for (ByteBuffer buffer : pendingWrites) {
+            if (buffer.hasRemaining() && !channel.write(buffer))
+                return false;
+        }
+        return !channel.hasPendingWrites();
+    }
+
+    /***
+     * Parses the response bytes read from the socket.
+     */
+    void parse(ByteBuffer input) throws IOException {
+        bytesReceived += input.remaining();
+        while (input.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case FIXED_BODY:
+                case CHUNK_DATA: {
+                    int count = (int) Math.min(input.remaining(), remaining);
+                    receive(input, count);
+                    remaining -= count;
+                    if (remaining == 0) {
+                        if (state == State.FIXED_BODY)
+                            complete();
+                        else
+                            state = State.CHUNK_END;
+                    }
+                    break;
+                }
+                case UNTIL_CLOSE:
+                    receive(input, input.remaining());
+                    break;
+                default:
+                    if (readLine(input))
+                        onLine(line.toString());
+            }
+        }
+    }
+
+    /***
+     * @return True if the response body is complete, so the socket can go on with another exchange.
+     */
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /***
+     * @return True if nothing was received yet on a kept alive socket, that the server may have
+     * closed while idle. The request can then be sent again on a new socket.
+     */
+    boolean isRetryable() {
+        return reusedChannel && bytesReceived == 0 && !retried;
+    }
+
+    /***
+     * Called on the selector thread at the end of the stream.
+     */
+    void onEndOfStream() throws IOException {
+        if (state == State.UNTIL_CLOSE)
+            complete();
+        else
+            throw new EOFException("Unexpected end of stream from " + url.getHost());
+    }
+
+    /***
+     * Forgets the progress of the exchange to send it again.
+     */
+    void reset() {
+        retried = true;
+        reusedChannel = false;
+        pendingWrites = null;
+        bytesReceived = 0;
+        state = State.STATUS_LINE;
+        line.setLength(0);
+    }
+
+    /***
+     * @return True if the reader has too many bytes queued, reading the socket must wait.
+     */
+    boolean isPaused() {
+        synchronized (this) {
+            paused = completion == null && !isBodyComplete() && getBufferedBodySize() > HIGH_WATER;
+            return paused;
+        }
+    }
+
+    /***
+     * Called on the selector thread when the exchange failed.
+     */
+    void fail(IOException e) {
+        Runnable callback;
+        synchronized (this) {
+            if (state == State.DONE)
+                return;
+            state = State.DONE;
+            callback = completion;
+            completion = null;
+        }
+        receiveFailure(e);
+        if (callback != null)
+            engine.dispatch(callback);
+    }
+
+    private void complete() {
+        Runnable callback;
+        synchronized (this) {
+            state = State.DONE;
+            callback = completion;
+            completion = null;
+        }
+        receiveBodyEnd();
+        if (callback != null)
+            engine.dispatch(callback);
+    }
+
+    private void receive(ByteBuffer input, int count) {
+        byte[] chunk = new byte[count];
+        input.get(chunk);
+        receiveBody(chunk);
+    }
+
+    private boolean readLine(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            char c = (char) (input.get() & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH)
+                throw new ProtocolException("Response line too long from " + url.getHost());
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void onLine(String text) throws IOException {
+        line.setLength(0);
+        switch (state) {
+            case STATUS_LINE:
+                onStatusLine(text);
+                break;
+            case HEADERS:
+                if (text.isEmpty())
+                    onHeadersEnd();
+                else if (!informational)
+                    onHeader(text);
+                break;
+            case CHUNK_SIZE:
+                int extension = text.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension == -1 ? text : text.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Invalid chunk size: " + text);
+                }
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                if (!text.isEmpty())
+                    throw new ProtocolException("Invalid chunk end: " + text);
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty())
+                    complete();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onStatusLine(String text) throws IOException {
+        String[] parts = text.split(" ", 3);
+        int code;
+        try {
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+                throw new NumberFormatException();
+            code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid status line: " + text);
+        }
+        informational = code >= 100 && code < 200 && code != 101;
+        if (!informational) {
+            receiveStatus(code, parts.length > 2 ? parts[2] : "", text);
+            keepAlive = !"HTTP/1.0".equals(parts[0]);
+        }
+        state = State.HEADERS;
+    }
+
+    private void onHeader(String text) {
+        int colon = text.indexOf(':');
+        if (colon > 0)
+            receiveHeader(text.substring(0, colon).trim(), text.substring(colon + 1).trim());
+    }
+
+    private void onHeadersEnd() {
+        if (informational) {
+            state = State.STATUS_LINE;
+            return;
+        }
+        String connectionHeader = getHeaderField("Connection");
+        if ("close".equalsIgnoreCase(connectionHeader))
+            keepAlive = false;
+        else if ("keep-alive".equalsIgnoreCase(connectionHeader))
+            keepAlive = true;
+        String transferEncoding = getHeaderField("Transfer-Encoding");
+        String contentLength = getHeaderField("Content-Length");
+        if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED) {
+            remaining = 0;
+            state = State.FIXED_BODY;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).endsWith("chunked")) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                remaining = -1;
+            }
+            state = remaining >= 0 ? State.FIXED_BODY : State.UNTIL_CLOSE;
+        } else {
+            state = State.UNTIL_CLOSE;
+        }
+        if (state == State.UNTIL_CLOSE)
+            keepAlive = false;
+        receiveHeadersEnd();
+        if (state == State.FIXED_BODY && remaining == 0)
+            complete();
+    }
+}
@@ -0,0 +1,717 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * An {@link HttpEngine} multiplexing HTTP/1.1 exchanges over non blocking sockets on a single
+ * selector thread, with its own pool of kept alive sockets per host.
+ * Requests run through {@link HttpCall#setEngine(HttpEngine)} still block their thread until
+ * their response is read, only the socket work moves to the selector. Requests run through
+ * {@link #submit(HttpCall)} don't hold a thread while in flight: the response is read in the
+ * background and the stream callbacks run on a dispatch thread once it's complete, so a few threads
+ * carry thousands of requests.
+ * Request bodies are buffered in memory and sent with the headers.
+ * Share a single instance among the requests of the application.
+ */
+public final class NioEngine implements HttpEngine, ReportingEngine {
+
+    /***
+     * Default maximum of sockets open at once to a single host, exchanges beyond it wait for one.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    /***
+     * Default maximum of idle sockets kept per host.
+     */
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 5;
+    /***
+     * Default time an idle socket is kept, 5 minutes.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+    private static final long MAX_SELECT_MILLIS = 1000;
+
+    private final Dns dns;
+    private final Selector selector;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new EngineThreadFactory());
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong openedCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private volatile int inFlightCount;
+    private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile int maxIdlePerHost = DEFAULT_MAX_IDLE_PER_HOST;
+    private volatile long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private volatile boolean shutdown;
+
+    // selector thread only
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final Set<NioConnection> exchanges = new HashSet<>();
+    private final List<Connect> connects = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    /***
+     * Creates an engine resolving hosts with its own {@link CachingDns}.
+     */
+    public NioEngine() throws IOException {
+        this(new CachingDns());
+    }
+
+    /***
+     * @param dns The resolver of the hosts.
+     */
+    public NioEngine(Dns dns) throws IOException {
+        this.dns = dns;
+        this.selector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "NioEngine selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /***
+     * @param maxConnectionsPerHost Maximum of sockets open at once to a single host.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1)
+            throw new IllegalArgumentException("Connection limits must be positive");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /***
+     * @param maxIdlePerHost Maximum of idle sockets kept per host, 0 to close sockets after use.
+     * @param keepAliveMillis Time an idle socket is kept.
+     */
+    public void setKeepAlive(int maxIdlePerHost, long keepAliveMillis) {
+        if (maxIdlePerHost < 0 || keepAliveMillis < 0)
+            throw new IllegalArgumentException("Keep alive settings must be positive");
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    /***
+     * @return The number of exchanges started and not finished, waiting ones included.
+     */
+    public int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    /***
+     * @return How many sockets were opened.
+     */
+    public long getOpenedCount() {
+        return openedCount.get();
+    }
+
+    /***
+     * @return How many exchanges went over an idle socket instead of a new one.
+     */
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @Override
+    public HttpURLConnection open(URL url, SSLContext sslContext) throws IOException {
+        return open(url, sslContext, null);
+    }
+
+    /***
+     * @param call The call whose listener hears of the lookup and connect, on the engine threads.
+     */
+    @Override
+    public HttpURLConnection open(URL url, SSLContext sslContext, HttpCall call) throws IOException {
+        if (!"http".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(url.getProtocol()))
+            throw new IOException("Unsupported protocol " + url.getProtocol());
+        if (shutdown)
+            throw new IOException("Engine shut down");
+        if ("https".equalsIgnoreCase(url.getProtocol()) && sslContext == null) {
+            try {
+                sslContext = SSLContext.getDefault();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        return new NioConnection(this, url, sslContext, call);
+    }
+
+    /***
+     * Runs a request without holding a thread while it's in flight. The response is read in the
+     * background, then handed to the stream callbacks on a dispatch thread.
+     * Unlike {@link HttpCall#enqueue()}, the request is neither coalesced, retried nor hedged.
+     * @param call The request to run.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> submit(HttpCall call) {
+        return submit(call, null);
+    }
+
+    /***
+     * @param callback Notified on the dispatch thread once the request finished, may be null.
+     */
+    Future<Integer> submit(final HttpCall call, final RequestScheduler.Callback callback) {
+        final SettableFuture<Integer> future = SettableFuture.create();
+        final RequestScheduler.Callback completion = new RequestScheduler.Callback() {
+            @Override
+            public void onComplete(HttpCall call, int responseCode) {
+                future.set(responseCode);
+                if (callback != null)
+                    callback.onComplete(call, responseCode);
+            }
+        };
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.executeAsync(NioEngine.this, completion);
+                } catch (RuntimeException e) {
+                    HttpLog.e("NioEngine", e.getLocalizedMessage(), e);
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /***
+     * Closes every socket and fails the exchanges in flight.
+     */
+    public void shutdown() {
+        shutdown = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException e = new IOException("Engine shut down");
+                for (NioConnection exchange : new ArrayList<>(exchanges))
+                    fail(exchange, e);
+                for (Connect connect : connects)
+                    connect.cancel();
+                connects.clear();
+                for (Host host : hosts.values()) {
+                    for (NioChannel channel : host.idle)
+                        channel.close();
+                }
+                hosts.clear();
+            }
+        });
+        executor.shutdown();
+    }
+
+    /***
+     * Starts an exchange, on a kept alive socket if there's one.
+     */
+    void start(final NioConnection exchange) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (shutdown) {
+                    exchange.fail(new IOException("Engine shut down"));
+                    return;
+                }
+                exchanges.add(exchange);
+                inFlightCount = exchanges.size();
+                acquire(exchange, true);
+            }
+        });
+    }
+
+    /***
+     * Goes on with an exchange paused waiting for its request or for its reader.
+     */
+    void resume(final NioConnection exchange) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                NioChannel channel = exchange.channel;
+                if (channel != null && channel.exchange == exchange)
+                    process(channel);
+            }
+        });
+    }
+
+    /***
+     * Gives up an exchange, closing its socket unless it's already back in the pool.
+     */
+    void abort(final NioConnection exchange) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (exchanges.contains(exchange))
+                    fail(exchange, new IOException("Canceled"));
+            }
+        });
+    }
+
+    /***
+     * Runs a completion off the selector thread.
+     */
+    void dispatch(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RuntimeException e) {
+            HttpLog.e("NioEngine", e.getLocalizedMessage(), e);
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                selector.select(selectTimeout());
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.attachment() instanceof Connect)
+                        ((Connect) key.attachment()).onConnectable(key);
+                    else
+                        onReady((NioChannel) key.attachment());
+                }
+                expire();
+            } catch (Exception e) {
+                HttpLog.e("NioEngine", e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    private long selectTimeout() {
+        long now = System.currentTimeMillis();
+        long timeout = MAX_SELECT_MILLIS;
+        for (Connect connect : connects)
+            timeout = Math.min(timeout, connect.nextDeadline() - now);
+        return Math.max(1, timeout);
+    }
+
+    /***
+     * Fails the exchanges whose read timed out, moves the connect races along and closes the
+     * sockets idle for too long.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (NioConnection exchange : new ArrayList<>(exchanges)) {
+            int readTimeout = exchange.getReadTimeout();
+            if (exchange.channel != null && readTimeout > 0 && exchange.isRequestReady() && !exchange.isPaused()
+                    && now - exchange.lastActivity > readTimeout)
+                fail(exchange, new SocketTimeoutException("Read timed out"));
+        }
+        for (Connect connect : new ArrayList<>(connects))
+            connect.onTimer(now);
+        for (Host host : hosts.values()) {
+            Iterator<NioChannel> iterator = host.idle.iterator();
+            while (iterator.hasNext()) {
+                NioChannel channel = iterator.next();
+                if (now - channel.idleSince > keepAliveMillis) {
+                    iterator.remove();
+                    close(channel);
+                }
+            }
+        }
+    }
+
+    private Host host(String address) {
+        Host host = hosts.get(address);
+        if (host == null) {
+            host = new Host();
+            hosts.put(address, host);
+        }
+        return host;
+    }
+
+    private void acquire(NioConnection exchange, boolean allowIdle) {
+        Host host = host(exchange.address);
+        NioChannel channel = allowIdle ? host.idle.pollLast() : null;
+        if (channel != null) {
+            reusedCount.incrementAndGet();
+            exchange.reusedChannel = true;
+            bind(exchange, channel);
+        } else if (host.open < maxConnectionsPerHost) {
+            host.open++;
+            connect(exchange);
+        } else {
+            host.waiting.addLast(exchange);
+        }
+    }
+
+    private void connect(final NioConnection exchange) {
+        final String hostName = exchange.getURL().getHost();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (exchange.call != null)
+                        exchange.call.dnsStart(hostName);
+                    final List<InetAddress> addresses = HappyEyeballs.interleave(dns.lookup(hostName));
+                    if (exchange.call != null)
+                        exchange.call.dnsEnd(hostName);
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            exchange.connecting = exchange.call != null;
+                            if (exchange.connecting)
+                                exchange.call.connectStart();
+                            new Connect(exchange, addresses).next();
+                        }
+                    });
+                } catch (final IOException e) {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectFailed(exchange, e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void connectFailed(NioConnection exchange, IOException e) {
+        Host host = host(exchange.address);
+        host.open--;
+        if (exchanges.contains(exchange))
+            fail(exchange, e);
+        serveWaiting(host);
+    }
+
+    private void connected(NioConnection exchange, SocketChannel socketChannel, SelectionKey key) {
+        openedCount.incrementAndGet();
+        NioChannel channel;
+        try {
+            socketChannel.socket().setTcpNoDelay(true);
+            URL url = exchange.getURL();
+            channel = new NioChannel(socketChannel, exchange.address, url.getHost(),
+                    url.getPort() == -1 ? url.getDefaultPort() : url.getPort(), exchange.sslContext);
+        } catch (IOException e) {
+            key.cancel();
+            closeQuietly(socketChannel);
+            connectFailed(exchange, e);
+            return;
+        }
+        channel.key = key;
+        key.attach(channel);
+        if (exchanges.contains(exchange))
+            bind(exchange, channel);
+        else
+            release(channel);
+    }
+
+    private void bind(NioConnection exchange, NioChannel channel) {
+        channel.exchange = exchange;
+        exchange.channel = channel;
+        exchange.lastActivity = System.currentTimeMillis();
+        process(channel);
+    }
+
+    private void onReady(NioChannel channel) {
+        if (channel.exchange != null) {
+            process(channel);
+            return;
+        }
+        // an idle socket turning readable was closed by the server, or is out of sync
+        host(channel.address).idle.remove(channel);
+        close(channel);
+    }
+
+    /***
+     * Moves the exchange of a socket as far as it goes without blocking.
+     */
+    private void process(NioChannel channel) {
+        NioConnection exchange = channel.exchange;
+        try {
+            if (!channel.handshake()) {
+                channel.interest(channel.hasPendingWrites() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                return;
+            }
+            exchange.onConnected();
+            if (!exchange.isRequestReady()) {
+                channel.interest(0);
+                return;
+            }
+            if (!exchange.writeRequest(channel)) {
+                channel.interest(SelectionKey.OP_WRITE);
+                return;
+            }
+            while (!exchange.isComplete()) {
+                if (exchange.isPaused()) {
+                    channel.interest(0);
+                    return;
+                }
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read == 0) {
+                    channel.interest(SelectionKey.OP_READ);
+                    return;
+                }
+                if (read < 0) {
+                    if (exchange.isRetryable()) {
+                        retry(exchange, channel);
+                        return;
+                    }
+                    exchange.onEndOfStream();
+                    break;
+                }
+                readBuffer.flip();
+                exchange.lastActivity = System.currentTimeMillis();
+                exchange.parse(readBuffer);
+                if (readBuffer.hasRemaining())
+                    exchange.keepAlive = false;
+            }
+        } catch (IOException e) {
+            if (exchange.isRetryable())
+                retry(exchange, channel);
+            else
+                fail(exchange, e);
+            return;
+        }
+        exchanges.remove(exchange);
+        inFlightCount = exchanges.size();
+        unbind(exchange, channel);
+        if (exchange.keepAlive && !shutdown)
+            release(channel);
+        else
+            close(channel);
+    }
+
+    /***
+     * Sends an exchange again on a new socket, the kept alive one it was sent on being closed.
+     */
+    private void retry(NioConnection exchange, NioChannel channel) {
+        HttpLog.d("NioEngine", "Retrying " + exchange.getURL() + " on a new connection");
+        unbind(exchange, channel);
+        close(channel);
+        exchange.reset();
+        acquire(exchange, false);
+    }
+
+    private void fail(NioConnection exchange, IOException e) {
+        exchanges.remove(exchange);
+        inFlightCount = exchanges.size();
+        Host host = hosts.get(exchange.address);
+        if (host != null)
+            host.waiting.remove(exchange);
+        NioChannel channel = exchange.channel;
+        if (channel != null) {
+            unbind(exchange, channel);
+            close(channel);
+        }
+        exchange.fail(e);
+    }
+
+    private static void unbind(NioConnection exchange, NioChannel channel) {
+        channel.exchange = null;
+        exchange.channel = null;
+    }
+
+    /***
+     * Hands a socket done with its exchange to a waiting one, or keeps it idle.
+     */
+    private void release(NioChannel channel) {
+        Host host = host(channel.address);
+        NioConnection waiting = host.waiting.pollFirst();
+        if (waiting != null) {
+            reusedCount.incrementAndGet();
+            waiting.reusedChannel = true;
+            bind(waiting, channel);
+        } else if (host.idle.size() < maxIdlePerHost) {
+            channel.idleSince = System.currentTimeMillis();
+            channel.interest(SelectionKey.OP_READ);
+            host.idle.addLast(channel);
+        } else {
+            close(channel);
+        }
+    }
+
+    private void close(NioChannel channel) {
+        channel.close();
+        Host host = host(channel.address);
+        host.open--;
+        serveWaiting(host);
+    }
+
+    private void serveWaiting(Host host) {
+        if (host.open < maxConnectionsPerHost) {
+            NioConnection waiting = host.waiting.pollFirst();
+            if (waiting != null) {
+                host.open++;
+                connect(waiting);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /***
+     * The sockets of a host, its idle sockets most recently used last.
+     */
+    private static final class Host {
+        final Deque<NioChannel> idle = new ArrayDeque<>();
+        final Deque<NioConnection> waiting = new ArrayDeque<>();
+        int open;
+    }
+
+    /***
+     * Connects the addresses of a host the happy eyeballs way, see {@link HappyEyeballs}, without
+     * a thread per attempt: each attempt is a channel waiting for OP_CONNECT.
+     */
+    private final class Connect {
+        private final NioConnection exchange;
+        private final List<InetAddress> addresses;
+        private final List<SelectionKey> pending = new ArrayList<>();
+        private final long deadline;
+        private long nextAttemptAt;
+        private int next;
+        private IOException failure;
+
+        Connect(NioConnection exchange, List<InetAddress> addresses) {
+            this.exchange = exchange;
+            this.addresses = addresses;
+            int timeout = exchange.getConnectTimeout();
+            this.deadline = System.currentTimeMillis() + (timeout > 0 ? timeout : Integer.MAX_VALUE);
+            connects.add(this);
+        }
+
+        long nextDeadline() {
+            return next < addresses.size() && !pending.isEmpty() ? Math.min(deadline, nextAttemptAt) : deadline;
+        }
+
+        /***
+         * Starts an attempt on the next address.
+         */
+        void next() {
+            while (next < addresses.size()) {
+                InetSocketAddress address = new InetSocketAddress(addresses.get(next++), exchange.getURL().getPort() == -1
+                        ? exchange.getURL().getDefaultPort()
+                        : exchange.getURL().getPort());
+                SocketChannel socketChannel = null;
+                try {
+                    socketChannel = SocketChannel.open();
+                    socketChannel.configureBlocking(false);
+                    SelectionKey key = socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+                    nextAttemptAt = System.currentTimeMillis() + HappyEyeballs.ATTEMPT_DELAY_MILLIS;
+                    if (socketChannel.connect(address)) {
+                        won(key);
+                        return;
+                    }
+                    pending.add(key);
+                    return;
+                } catch (IOException e) {
+                    if (socketChannel != null)
+                        closeQuietly(socketChannel);
+                    failure = e;
+                }
+            }
+            if (pending.isEmpty())
+                lost(failure != null ? failure : new ConnectException("No address for " + exchange.getURL().getHost()));
+        }
+
+        void onConnectable(SelectionKey key) {
+            SocketChannel socketChannel = (SocketChannel) key.channel();
+            try {
+                if (socketChannel.finishConnect())
+                    won(key);
+            } catch (IOException e) {
+                pending.remove(key);
+                key.cancel();
+                closeQuietly(socketChannel);
+                failure = e;
+                next();
+            }
+        }
+
+        void onTimer(long now) {
+            if (now >= deadline)
+                lost(new SocketTimeoutException("Connect timed out"));
+            else if (now >= nextAttemptAt && next < addresses.size())
+                next();
+        }
+
+        void cancel() {
+            for (SelectionKey key : pending) {
+                key.cancel();
+                closeQuietly((SocketChannel) key.channel());
+            }
+            pending.clear();
+        }
+
+        private void won(SelectionKey key) {
+            pending.remove(key);
+            cancel();
+            connects.remove(this);
+            key.interestOps(0);
+            connected(exchange, (SocketChannel) key.channel(), key);
+        }
+
+        private void lost(IOException e) {
+            cancel();
+            if (connects.remove(this))
+                connectFailed(exchange, e);
+        }
+    }
+
+    private static final class EngineThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NioEngine #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
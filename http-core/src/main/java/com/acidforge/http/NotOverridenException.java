@@ -13,16 +13,12 @@
  */
 package com.acidforge.http;
 
-import android.content.res.Resources;
-
-import net.acidforge.http.R;
-
 /**
  * Created by Moises on 25/05/2017.
  */
 
 public class NotOverridenException extends Exception {
     public NotOverridenException(){
-        super(Resources.getSystem().getString(R.string.exception_method_not_overriden));
+        super("Method is not overriden and needs a proper @Override on the subclass!");
     }
 }
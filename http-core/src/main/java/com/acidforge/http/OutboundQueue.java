@@ -0,0 +1,642 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.net.MediaType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * A persistent queue of fire and forget requests, such as analytics events or state updates.
+ * {@link #enqueue(HttpMethod, URL, MediaType, byte[])} returns as soon as the request is in the
+ * log, and the requests are sent in batches, once enough of them are waiting or the oldest one
+ * waited long enough, over a few connections kept alive between batches.
+ * <p>
+ * A request superseding a waiting one replaces it: a PUT or a DELETE replaces the waiting PUT,
+ * PATCH or DELETE to the same url, and requests enqueued with the same coalescing key replace each
+ * other. A PATCH only changes part of the resource, so it never replaces anything.
+ * <p>
+ * Every request of a batch has {@link #DEFAULT_REQUEST_TIMEOUT_MILLIS} to complete, see
+ * {@link #setRequestTimeout(long, TimeUnit)}. One still running then is aborted and sent again
+ * with the next batch.
+ * <p>
+ * Every line of the log is a tab separated record: {@code A id method url type key body} adds a
+ * request, with a base64 body, and {@code D id} removes it once delivered or superseded. Records
+ * are written before {@link #enqueue(HttpMethod, URL, MediaType, byte[])} returns, so they survive
+ * the death of the process, and synced to the disk after each batch. Requests are sent at least
+ * once: one delivered right before the process died is sent again, with the same Idempotency-Key
+ * header for the server to recognize it.
+ */
+public final class OutboundQueue {
+
+    /***
+     * Default number of requests that triggers a batch, and the most a batch sends.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    /***
+     * Default time the oldest request waits for a batch to fill, 30 seconds.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    /***
+     * Default number of requests sent at once.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+    /***
+     * Default time a request of a batch has to complete, retries included, 60 seconds.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    /***
+     * Notified on a worker thread when a request leaves the queue.
+     */
+    public interface Listener {
+        /***
+         * @param id The id returned on enqueue.
+         * @param responseCode The status of the delivery. 4xx statuses other than 408 and 429 are
+         *                     never retried, the request is given up.
+         */
+        void onDelivered(String id, int responseCode);
+    }
+
+    private static final Map<String, OutboundQueue> queues = new HashMap<>();
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private final File file;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final ScheduledExecutorService sender;
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private FileOutputStream log;
+    private int logRecords;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    private boolean methodOverride;
+    private ConnectionPool connectionPool;
+    private SSLContext sslContext;
+    private HttpEngine engine;
+    private Listener listener;
+    private RequestScheduler scheduler;
+    private ScheduledFuture<?> nextBatch;
+    private long nextBatchMillis;
+    private boolean sending;
+    private int failedBatches;
+
+    private OutboundQueue(File file) {
+        this.file = file;
+        this.sender = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "OutboundQueue #" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        load();
+    }
+
+    /***
+     * Returns the queue logged to a file, shared by every caller of the process. The requests left
+     * by a previous process are sent with the first batch.
+     * @param file The log file, created with the first request.
+     */
+    public static synchronized OutboundQueue forFile(File file) {
+        String path = file.getAbsolutePath();
+        OutboundQueue queue = queues.get(path);
+        if (queue == null) {
+            queue = new OutboundQueue(file);
+            queues.put(path, queue);
+        }
+        return queue;
+    }
+
+    /***
+     * Queues a request, replacing the waiting one it supersedes if any.
+     * @param method The method, PUT and DELETE supersede the waiting PUT, PATCH and DELETE to the
+     *               same url.
+     * @param url The address of the request.
+     * @param contentType The media type of the body, may be null.
+     * @param body The body, null for none.
+     * @return The id of the request, also sent as its Idempotency-Key header.
+     */
+    public String enqueue(HttpMethod method, URL url, MediaType contentType, byte[] body) {
+        boolean replacesResource = method == HttpMethod.PUT || method == HttpMethod.DELETE;
+        return enqueue(method, url, contentType, body, replacesResource ? "resource " + url : null, replacesResource);
+    }
+
+    /***
+     * Queues a request, replacing the waiting request enqueued with the same key.
+     * @param coalescingKey The key of the requests superseding each other, such as the name of
+     *                      the state they update, null to never replace one.
+     * @return The id of the request, also sent as its Idempotency-Key header.
+     */
+    public String enqueue(HttpMethod method, URL url, MediaType contentType, byte[] body, String coalescingKey) {
+        return enqueue(method, url, contentType, body, coalescingKey, false);
+    }
+
+    /***
+     * @param replacesPatches True to replace the waiting PATCH to the same url as well.
+     */
+    private String enqueue(HttpMethod method, URL url, MediaType contentType, byte[] body, String coalescingKey,
+                           boolean replacesPatches) {
+        if (coalescingKey != null && (coalescingKey.isEmpty() || !isField(coalescingKey)))
+            throw new IllegalArgumentException("Coalescing keys can't be empty nor hold tabs or line breaks");
+        Entry entry = new Entry(UUID.randomUUID().toString(), method, url,
+                contentType == null ? null : contentType.toString(), coalescingKey, body);
+        synchronized (this) {
+            StringBuilder records = new StringBuilder();
+            if (coalescingKey != null || replacesPatches) {
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry waiting = iterator.next();
+                    if (waiting.sending)
+                        continue;
+                    if (coalescingKey != null && coalescingKey.equals(waiting.coalescingKey)
+                            || replacesPatches && waiting.method == HttpMethod.PATCH && waiting.coalescingKey == null
+                            && waiting.url.toString().equals(url.toString())) {
+                        iterator.remove();
+                        records.append("D\t").append(waiting.id).append('\n');
+                        coalescedCount.incrementAndGet();
+                    }
+                }
+            }
+            records.append(entry.record()).append('\n');
+            write(records.toString());
+            entries.put(entry.id, entry);
+            schedule(waitingCount() >= maxBatchSize ? 0 : maxDelayMillis);
+        }
+        return entry.id;
+    }
+
+    /***
+     * Sends the waiting requests right away, such as when the app goes to the background.
+     */
+    public synchronized void flush() {
+        schedule(0);
+    }
+
+    /***
+     * @param maxBatchSize Number of waiting requests that triggers a batch, and the most a batch sends.
+     */
+    public synchronized void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("The batch size must be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /***
+     * @param maxDelay Time the oldest request waits for a batch to fill.
+     */
+    public synchronized void setMaxDelay(long maxDelay, TimeUnit unit) {
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+    }
+
+    /***
+     * @param maxConnections Number of requests of a batch sent at once.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("The connection count must be positive");
+        this.maxConnections = maxConnections;
+        if (scheduler != null) {
+            scheduler.setMaxRequests(maxConnections);
+            scheduler.setMaxRequestsPerHost(maxConnections);
+        }
+    }
+
+    /***
+     * @param requestTimeout Time a request of a batch has to complete, retries included. One still
+     *                       running then is aborted and sent again with the next batch.
+     */
+    public synchronized void setRequestTimeout(long requestTimeout, TimeUnit unit) {
+        if (requestTimeout <= 0)
+            throw new IllegalArgumentException("The request timeout must be positive");
+        this.requestTimeoutMillis = unit.toMillis(requestTimeout);
+    }
+
+    /***
+     * Sends PATCH as a POST with an X-HTTP-Method-Override header, for the platform connection
+     * which refuses PATCH, see {@link HttpCall#setMethodOverride(boolean)}. Without it, a PATCH
+     * sent through the platform connection fails, and keeps failing, on every batch.
+     * @param methodOverride True if the server honours the override header.
+     */
+    public synchronized void setMethodOverride(boolean methodOverride) {
+        this.methodOverride = methodOverride;
+    }
+
+    /***
+     * @param connectionPool The pool keeping the sockets alive between batches,
+     *                       {@link ConnectionPool#getDefault()} unless set.
+     */
+    public synchronized void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public synchronized void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /***
+     * @param engine The engine sending the requests, null for the platform connection.
+     */
+    public synchronized void setEngine(HttpEngine engine) {
+        this.engine = engine;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /***
+     * @return The number of requests not delivered yet, including the ones being sent.
+     */
+    public synchronized int getPendingCount() {
+        return entries.size();
+    }
+
+    /***
+     * @return How many requests left the queue with a response.
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /***
+     * @return How many waiting requests were replaced by a newer one.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /***
+     * Plans the next batch, unless one is planned sooner. Runs with the queue lock held.
+     */
+    private void schedule(long delayMillis) {
+        if (sending || entries.isEmpty())
+            return;
+        long at = System.currentTimeMillis() + delayMillis;
+        if (nextBatch != null) {
+            if (nextBatchMillis <= at)
+                return;
+            nextBatch.cancel(false);
+        }
+        nextBatchMillis = at;
+        nextBatch = sender.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * Sends a batch on the sender thread and waits for it.
+     */
+    private void send() {
+        List<Entry> batch = new ArrayList<>();
+        RequestScheduler batchScheduler;
+        ConnectionPool pool;
+        SSLContext context;
+        HttpEngine batchEngine;
+        long timeoutMillis;
+        int connections;
+        boolean override;
+        synchronized (this) {
+            nextBatch = null;
+            for (Entry entry : entries.values()) {
+                if (batch.size() == maxBatchSize)
+                    break;
+                entry.sending = true;
+                batch.add(entry);
+            }
+            if (batch.isEmpty())
+                return;
+            sending = true;
+            if (scheduler == null)
+                scheduler = new RequestScheduler(maxConnections, maxConnections);
+            batchScheduler = scheduler;
+            pool = connectionPool != null ? connectionPool : ConnectionPool.getDefault();
+            context = sslContext;
+            batchEngine = engine;
+            timeoutMillis = requestTimeoutMillis;
+            connections = maxConnections;
+            override = methodOverride;
+        }
+        List<Future<Integer>> results = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            HttpCall call = entry.newCall(pool, context, batchEngine);
+            call.setDeadline(timeoutMillis, TimeUnit.MILLISECONDS);
+            call.setMethodOverride(override);
+            results.add(call.enqueue(batchScheduler));
+        }
+        // every call is bounded by its deadline once running, and runs after the calls queued before it
+        int rounds = (batch.size() + connections - 1) / connections;
+        long batchDeadline = System.currentTimeMillis() + rounds * timeoutMillis + MIN_RETRY_DELAY_MILLIS;
+        boolean failed = false;
+        StringBuilder records = new StringBuilder();
+        List<Entry> delivered = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            int responseCode = 0;
+            Future<Integer> result = results.get(i);
+            try {
+                responseCode = result.get(Math.max(0, batchDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.cancel(true);
+            } catch (ExecutionException e) {
+                HttpLog.e("OutboundQueue", e.getLocalizedMessage(), e);
+            } catch (TimeoutException e) {
+                HttpLog.e("OutboundQueue", "Aborting " + batch.get(i).id + ", still running after the batch deadline");
+                result.cancel(true);
+            }
+            Entry entry = batch.get(i);
+            if (isFinal(responseCode)) {
+                entry.responseCode = responseCode;
+                delivered.add(entry);
+                records.append("D\t").append(entry.id).append('\n');
+            } else {
+                failed = true;
+            }
+        }
+        Listener deliveryListener;
+        synchronized (this) {
+            if (records.length() > 0)
+                write(records.toString());
+            sync();
+            for (Entry entry : batch)
+                entry.sending = false;
+            for (Entry entry : delivered)
+                entries.remove(entry.id);
+            deliveredCount.addAndGet(delivered.size());
+            if (logRecords > MIN_COMPACTION_RECORDS && logRecords > entries.size() * 2)
+                compact();
+            sending = false;
+            failedBatches = failed ? failedBatches + 1 : 0;
+            if (failed)
+                schedule(Math.min(Math.max(maxDelayMillis, MIN_RETRY_DELAY_MILLIS),
+                        MIN_RETRY_DELAY_MILLIS << Math.min(failedBatches - 1, 20)));
+            else
+                schedule(waitingCount() >= maxBatchSize ? 0 : maxDelayMillis);
+            deliveryListener = listener;
+        }
+        if (deliveryListener != null) {
+            for (Entry entry : delivered)
+                deliveryListener.onDelivered(entry.id, entry.responseCode);
+        }
+    }
+
+    /***
+     * @return True if the request must leave the queue: it was delivered, or the server will never
+     * accept it.
+     */
+    private static boolean isFinal(int responseCode) {
+        if (responseCode >= 200 && responseCode < 400)
+            return true;
+        return responseCode >= 400 && responseCode < 500
+                && responseCode != 408 && responseCode != 429;
+    }
+
+    private int waitingCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.sending)
+                count++;
+        }
+        return count;
+    }
+
+    /***
+     * Replays the log, then rewrites it with the live requests only, which also drops a record
+     * torn by the death of the process. Should the rewrite fail, the torn record is cut off before
+     * the next one is appended.
+     */
+    private synchronized void load() {
+        if (file.exists()) {
+            try {
+                String content = Files.asCharSource(file, Charsets.UTF_8).read();
+                // a record is only complete with its line break
+                int end = content.lastIndexOf('\n');
+                if (end > 0) {
+                    for (String record : Splitter.on('\n').split(content.substring(0, end))) {
+                        apply(record);
+                        logRecords++;
+                    }
+                }
+            } catch (IOException e) {
+                HttpLog.e("OutboundQueue", e.getLocalizedMessage(), e);
+            }
+            compact();
+        }
+        schedule(0);
+    }
+
+    private void apply(String record) {
+        List<String> fields = Splitter.on('\t').splitToList(record);
+        if ("D".equals(fields.get(0)) && fields.size() == 2) {
+            entries.remove(fields.get(1));
+        } else if ("A".equals(fields.get(0)) && fields.size() == 7) {
+            try {
+                Entry entry = new Entry(fields.get(1), HttpMethod.valueOf(fields.get(2)), new URL(fields.get(3)),
+                        nullable(fields.get(4)), nullable(fields.get(5)),
+                        "-".equals(fields.get(6)) ? null : BaseEncoding.base64().decode(fields.get(6)));
+                entries.put(entry.id, entry);
+            } catch (IllegalArgumentException | IOException e) {
+                HttpLog.e("OutboundQueue", "Skipping a damaged record: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /***
+     * Appends records to the log, without waiting for the disk. Runs with the queue lock held.
+     */
+    private void write(String records) {
+        try {
+            if (log == null) {
+                dropTornRecord();
+                log = new FileOutputStream(file, true);
+            }
+            log.write(records.getBytes(Charsets.UTF_8));
+            for (int i = 0; i < records.length(); i++) {
+                if (records.charAt(i) == '\n')
+                    logRecords++;
+            }
+        } catch (IOException e) {
+            HttpLog.e("OutboundQueue", e.getLocalizedMessage(), e);
+        }
+    }
+
+    /***
+     * Cuts the log after its last line break, so that a record torn by the death of the process
+     * isn't glued to the next one. Runs with the queue lock held.
+     */
+    private void dropTornRecord() throws IOException {
+        if (!file.exists())
+            return;
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            byte[] buffer = new byte[4096];
+            long end = access.length();
+            long length = end;
+            while (end > 0) {
+                int count = (int) Math.min(buffer.length, end);
+                access.seek(end - count);
+                access.readFully(buffer, 0, count);
+                int i = count;
+                while (i > 0 && buffer[i - 1] != '\n')
+                    i--;
+                end -= count - i;
+                if (i > 0)
+                    break;
+            }
+            if (end < length) {
+                HttpLog.d("OutboundQueue", "Dropping a torn record at the end of " + file);
+                access.setLength(end);
+            }
+        } finally {
+            access.close();
+        }
+    }
+
+    private void sync() {
+        if (log == null)
+            return;
+        try {
+            log.getFD().sync();
+        } catch (IOException e) {
+            HttpLog.e("OutboundQueue", e.getLocalizedMessage(), e);
+        }
+    }
+
+    /***
+     * Rewrites the log with the live requests only. Runs with the queue lock held.
+     */
+    private void compact() {
+        closeQuietly(log);
+        log = null;
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            FileOutputStream stream = new FileOutputStream(temporary);
+            writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+            for (Entry entry : entries.values())
+                writer.write(entry.record() + "\n");
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            writer = null;
+            if (!temporary.renameTo(file))
+                throw new IOException("Unable to replace " + file);
+            logRecords = entries.size();
+        } catch (IOException e) {
+            HttpLog.e("OutboundQueue", e.getLocalizedMessage(), e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static boolean isField(String value) {
+        return value.indexOf('\t') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    private static String nullable(String field) {
+        return "-".equals(field) ? null : field;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Entry {
+        final String id;
+        final HttpMethod method;
+        final URL url;
+        final String contentType;
+        final String coalescingKey;
+        final byte[] body;
+        boolean sending;
+        int responseCode;
+
+        Entry(String id, HttpMethod method, URL url, String contentType, String coalescingKey, byte[] body) {
+            this.id = id;
+            this.method = method;
+            this.url = url;
+            this.contentType = contentType;
+            this.coalescingKey = coalescingKey;
+            this.body = body;
+        }
+
+        String record() {
+            return "A\t" + id + "\t" + method.name() + "\t" + url + "\t"
+                    + (contentType == null ? "-" : contentType) + "\t"
+                    + (coalescingKey == null ? "-" : coalescingKey) + "\t"
+                    + (body == null ? "-" : BaseEncoding.base64().encode(body));
+        }
+
+        HttpCall newCall(ConnectionPool connectionPool, SSLContext sslContext, HttpEngine engine) {
+            HttpCall call = new HttpCall(url, method) {
+                @Override
+                public void responseStream(InputStream stream) throws Exception {
+                    // the body is drained by the connection pool
+                }
+            };
+            if (body != null)
+                call.setRequestBody(RequestBody.create(contentType == null ? null : MediaType.parse(contentType), body));
+            call.setRequestHeader("Idempotency-Key", id);
+            call.setConnectionPool(connectionPool);
+            call.setSslContext(sslContext);
+            call.setEngine(engine);
+            call.setPriority(RequestPriority.BACKGROUND);
+            return call;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * An engine resolving and connecting on its own, which reports those phases to the call through
+ * {@link HttpCall#dnsStart(String)} and its siblings, on the thread running them.
+ */
+interface ReportingEngine extends HttpEngine {
+
+    /***
+     * @param call The call the connection is opened for.
+     * @see HttpEngine#open(URL, SSLContext)
+     */
+    HttpURLConnection open(URL url, SSLContext sslContext, HttpCall call) throws IOException;
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.MediaType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/***
+ * An entity sent with a {@link HttpMethod} that carries a body.
+ * The body is written straight to the socket: with a known {@link #contentLength()} the request
+ * declares a Content-Length, otherwise it falls back to chunked transfer encoding. Either way the
+ * body is never buffered whole in memory.
+ */
+public abstract class RequestBody {
+
+    /***
+     * @return The media type sent as Content-Type, or null to keep the request media type.
+     */
+    public abstract MediaType contentType();
+
+    /***
+     * @return The number of bytes {@link #writeTo(OutputStream)} writes, or -1 if unknown.
+     */
+    public long contentLength() {
+        return -1;
+    }
+
+    /***
+     * @return True if the body can only be written once, so the request can't be sent again.
+     */
+    public boolean isOneShot() {
+        return false;
+    }
+
+    /***
+     * Writes the body to the request stream.
+     * @param stream The request stream, must not be closed.
+     */
+    public abstract void writeTo(OutputStream stream) throws IOException;
+
+    /***
+     * Creates a body from a byte array.
+     */
+    public static RequestBody create(final MediaType contentType, final byte[] content) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return content.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream stream) throws IOException {
+                stream.write(content);
+            }
+        };
+    }
+
+    /***
+     * Creates a body from a string, encoded with the charset of the media type or UTF-8.
+     */
+    public static RequestBody create(MediaType contentType, String content) {
+        byte[] bytes = content.getBytes(contentType != null ? contentType.charset().or(Charsets.UTF_8) : Charsets.UTF_8);
+        return create(contentType, bytes);
+    }
+
+    /***
+     * Creates a body streamed from a file, which is read again every time the request is sent.
+     */
+    public static RequestBody create(final MediaType contentType, final File file) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream stream) throws IOException {
+                InputStream fileStream = new FileInputStream(file);
+                try {
+                    copy(fileStream, stream);
+                } finally {
+                    fileStream.close();
+                }
+            }
+        };
+    }
+
+    /***
+     * Creates a one shot body streamed from an arbitrary source.
+     * @param contentLength The number of bytes the source holds, or -1 if unknown.
+     */
+    public static RequestBody create(final MediaType contentType, final InputStream source, final long contentLength) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public boolean isOneShot() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream stream) throws IOException {
+                copy(source, stream);
+            }
+        };
+    }
+
+    static void copy(InputStream source, OutputStream stream) throws IOException {
+        BufferPool bufferPool = BufferPool.getDefault();
+        byte[] buffer = bufferPool.acquire();
+        try {
+            int read;
+            while ((read = source.read(buffer)) != -1)
+                stream.write(buffer, 0, read);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+
+/***
+ * Reports a request given up before its end, through {@link HttpCall#cancel()} or a
+ * {@link CancellationGroup}.
+ */
+public class RequestCancelledException extends IOException {
+    public RequestCancelledException() {
+        super("The request was cancelled.");
+    }
+
+    RequestCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Deduplicates identical GET requests while they are in flight.
+ * The first request for a key becomes the leader and goes to the network, the requests joining
+ * before it starts reading the body wait for its response and get their own replay of the same
+ * body instead of a round trip of their own.
+ * <p>
+ * The body is only kept while someone joined, and up to {@link #DEFAULT_MAX_SHARED_BYTES}, see
+ * {@link #RequestCoalescer(int)}. Past that, the followers go to the network on their own.
+ */
+public final class RequestCoalescer {
+
+    /***
+     * Default size of the largest body replayed to the followers, 1 MB.
+     */
+    public static final int DEFAULT_MAX_SHARED_BYTES = 1024 * 1024;
+
+    private final Map<String, Flight> flights = new HashMap<>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final int maxSharedBytes;
+
+    public RequestCoalescer() {
+        this(DEFAULT_MAX_SHARED_BYTES);
+    }
+
+    /***
+     * @param maxSharedBytes Size of the largest body replayed to the followers. The followers of a
+     *                       larger body send their own request.
+     */
+    public RequestCoalescer(int maxSharedBytes) {
+        if (maxSharedBytes < 0)
+            throw new IllegalArgumentException("The shared size can't be negative");
+        this.maxSharedBytes = maxSharedBytes;
+    }
+
+    /***
+     * @return How many requests were answered by another request already in flight.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /***
+     * @return How many distinct requests are currently in flight.
+     */
+    public synchronized int getInFlightCount() {
+        return flights.size();
+    }
+
+    /***
+     * Joins the flight for a key, starting one if there's none or if the body of the current one
+     * can't be replayed anymore.
+     * @param key Identifies requests that are interchangeable.
+     * @return The flight, call {@link Flight#lead()} to find out if the caller must perform it.
+     */
+    synchronized Flight join(String key) {
+        Flight flight = flights.get(key);
+        if (flight == null || !flight.follow()) {
+            flight = new Flight(key, maxSharedBytes);
+            flights.put(key, flight);
+        } else {
+            coalescedCount.incrementAndGet();
+        }
+        return flight;
+    }
+
+    /***
+     * Called by the leader once it's done, releasing the followers still waiting.
+     */
+    void finish(Flight flight) {
+        synchronized (this) {
+            if (flights.get(flight.key) == flight)
+                flights.remove(flight.key);
+        }
+        flight.finish();
+    }
+
+    /***
+     * A request in flight shared by a leader and its followers.
+     */
+    static final class Flight {
+        private final String key;
+        private final int maxSharedBytes;
+        private final AtomicBoolean leaderClaimed = new AtomicBoolean();
+        private final ReentrantLock lock = new ReentrantLock();
+        /***
+         * Signalled as the response arrives and once the body is complete or no longer shared.
+         */
+        private final Condition progress = lock.newCondition();
+        private ByteArrayOutputStream shared = new ByteArrayOutputStream();
+        private byte[] body;
+        private int followers;
+        private int responseCode = -1;
+        private boolean complete;
+        private boolean unshared;
+        private IOException failure;
+        private SharingInputStream source;
+
+        Flight(String key, int maxSharedBytes) {
+            this.key = key;
+            this.maxSharedBytes = maxSharedBytes;
+        }
+
+        /***
+         * @return True for the first caller only, which must perform the request.
+         */
+        boolean lead() {
+            return leaderClaimed.compareAndSet(false, true);
+        }
+
+        /***
+         * Counts a follower, unless the body can't be replayed from its first byte anymore.
+         */
+        private boolean follow() {
+            lock.lock();
+            try {
+                if (unshared)
+                    return false;
+                followers++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * Publishes the response of the leader.
+         * @param responseCode The status handed to the followers.
+         * @param body The body read by the leader, may be null.
+         * @return The stream the leader must read instead of body, the bytes read from it are
+         * replayed to the followers.
+         */
+        InputStream share(int responseCode, InputStream body) {
+            lock.lock();
+            try {
+                this.responseCode = responseCode;
+                if (body == null) {
+                    complete = true;
+                    progress.signalAll();
+                    return null;
+                }
+                source = new SharingInputStream(body);
+                return source;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * Waits for the leader to read the whole response.
+         * @param timeoutMillis Maximum time to wait.
+         * @return The status code, or 0 if the leader failed or the body is too large to be
+         * replayed.
+         */
+        int awaitResponse(long timeoutMillis) throws InterruptedException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (!complete && !unshared) {
+                    if (remaining <= 0)
+                        return 0;
+                    remaining = progress.awaitNanos(remaining);
+                }
+                return unshared || failure != null ? 0 : responseCode;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * @return A replay of the body, once {@link #awaitResponse(long)} returned a status.
+         */
+        InputStream newBody() {
+            lock.lock();
+            try {
+                return body == null ? null : new ByteArrayInputStream(body);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void finish() {
+            SharingInputStream pending;
+            lock.lock();
+            try {
+                pending = complete || unshared ? null : source;
+            } finally {
+                lock.unlock();
+            }
+            if (pending != null) {
+                try {
+                    pending.close();
+                } catch (IOException ignored) {
+                }
+            }
+            lock.lock();
+            try {
+                if (responseCode < 0)
+                    responseCode = 0;
+                if (!complete) {
+                    complete = true;
+                    if (failure == null)
+                        failure = new IOException("The coalesced request was aborted");
+                }
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * @return False once the body isn't shared anymore.
+         */
+        private boolean append(byte[] buffer, int offset, int count) {
+            lock.lock();
+            try {
+                if (unshared)
+                    return false;
+                if (followers == 0 || shared.size() + count > maxSharedBytes) {
+                    // nobody can replay it from the first byte anymore, or it would be kept too long
+                    unshared = true;
+                    shared = null;
+                    progress.signalAll();
+                    return false;
+                }
+                shared.write(buffer, offset, count);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void end(IOException e) {
+            lock.lock();
+            try {
+                if (complete)
+                    return;
+                complete = true;
+                failure = e;
+                if (!unshared)
+                    body = shared.toByteArray();
+                shared = null;
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /***
+         * Tees the leader body into the shared buffer. Closing it before the end keeps reading, so
+         * the followers still get the whole body, unless it's no longer shared.
+         */
+        private final class SharingInputStream extends FilterInputStream {
+            private boolean ended;
+            private boolean sharing = true;
+
+            SharingInputStream(InputStream body) {
+                super(body);
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int read = read(single, 0, 1);
+                return read == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (ended)
+                    return -1;
+                int read;
+                try {
+                    read = super.read(buffer, offset, count);
+                } catch (IOException e) {
+                    ended = true;
+                    end(e);
+                    throw e;
+                }
+                if (read == -1) {
+                    ended = true;
+                    end(null);
+                } else if (sharing) {
+                    sharing = append(buffer, offset, read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(count, 4096)];
+                int read = read(buffer, 0, buffer.length);
+                return read < 0 ? 0 : read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return ended ? 0 : super.available();
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                byte[] buffer = new byte[4096];
+                try {
+                    while (sharing && read(buffer, 0, buffer.length) != -1) {
+                        // pumps the rest of the body for the followers
+                    }
+                } finally {
+                    super.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+/***
+ * Represents the lane a request is queued on by the {@link RequestScheduler}.
+ * Lanes are drained in declaration order, so a queued {@link #INTERACTIVE} request is always
+ * dispatched before any {@link #BACKGROUND} or {@link #PREFETCH} one.
+ */
+public enum RequestPriority {
+    /***
+     * Requests the user is actively waiting for, like the content of the screen being shown.
+     */
+    INTERACTIVE,
+    /***
+     * Requests that must complete but nobody is looking at, like syncs and uploads.
+     */
+    BACKGROUND,
+    /***
+     * Speculative requests that may be useful later. Only dispatched when nothing else is waiting.
+     */
+    PREFETCH
+}
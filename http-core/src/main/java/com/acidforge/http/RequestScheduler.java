@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Dispatches {@link HttpCall}s on a bounded pool of worker threads, or on a virtual thread per
+ * request, see {@link #newVirtualThreadScheduler(int, int)}.
+ * Queued requests wait on a {@link RequestPriority} lane and are only handed to a worker when both
+ * the global limit and the per host limit allow it, so a slow host cannot starve the others.
+ */
+public final class RequestScheduler {
+
+    /***
+     * Default maximum of requests running at once.
+     */
+    public static final int DEFAULT_MAX_REQUESTS = 8;
+    /***
+     * Default maximum of requests running at once against a single host.
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    /***
+     * Notified on the worker thread as soon as a scheduled request finishes.
+     */
+    public interface Callback {
+        /***
+         * @param call The finished request.
+         * @param responseCode The http status code, 0 if the request failed before receiving one or
+         *                     was cancelled.
+         */
+        void onComplete(HttpCall call, int responseCode);
+    }
+
+    private static RequestScheduler defaultScheduler;
+
+    private final Map<RequestPriority, Deque<ScheduledRequest>> lanes = new EnumMap<>(RequestPriority.class);
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final ExecutorService executor;
+    private int maxRequests;
+    private int maxRequestsPerHost;
+    private int running;
+
+    /***
+     * Creates a scheduler with its own worker pool.
+     * @param maxRequests Maximum of requests running at once, also the size of the worker pool.
+     * @param maxRequestsPerHost Maximum of requests running at once against a single host.
+     */
+    public RequestScheduler(int maxRequests, int maxRequestsPerHost) {
+        this(maxRequests, maxRequestsPerHost, newWorkerPool(maxRequests));
+    }
+
+    private RequestScheduler(int maxRequests, int maxRequestsPerHost, ExecutorService executor) {
+        if (maxRequests < 1 || maxRequestsPerHost < 1)
+            throw new IllegalArgumentException("Request limits must be positive");
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        for (RequestPriority priority : RequestPriority.values())
+            lanes.put(priority, new ArrayDeque<ScheduledRequest>());
+        this.executor = executor;
+    }
+
+    /***
+     * Creates a scheduler starting a virtual thread for every request it dispatches, so a request
+     * blocked on the network holds no platform thread and the limits may go to tens of thousands.
+     * Pair it with an engine whose blocking calls release the carrier thread, such as
+     * {@link HttpEngine#URL_CONNECTION} on the JVM. The waits of the calls themselves, between
+     * retries, for a hedge, a host slot or a coalesced response, use locks rather than monitors,
+     * so they don't pin the carrier either.
+     * @param maxRequests Maximum of requests running at once.
+     * @param maxRequestsPerHost Maximum of requests running at once against a single host.
+     * @throws UnsupportedOperationException If the runtime has no virtual threads, they need Java 21
+     * and aren't available on Android.
+     */
+    public static RequestScheduler newVirtualThreadScheduler(int maxRequests, int maxRequestsPerHost) {
+        ExecutorService executor;
+        try {
+            // Thread.ofVirtual().name("HttpRequest #", 1).factory(), through the public interface
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualBuilder = builder.getMethod("name", String.class, long.class).invoke(virtualBuilder, "HttpRequest #", 1L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(virtualBuilder);
+            executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21", e);
+        }
+        return new RequestScheduler(maxRequests, maxRequestsPerHost, executor);
+    }
+
+    /***
+     * The process wide scheduler used by {@link HttpCall#enqueue()}.
+     */
+    public static synchronized RequestScheduler getDefault() {
+        if (defaultScheduler == null)
+            defaultScheduler = new RequestScheduler(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+        return defaultScheduler;
+    }
+
+    /***
+     * Queues a request on the lane defined by {@link HttpCall#getPriority()}.
+     * @param call The request to be dispatched.
+     * @return A future holding the http status code. Cancelling it removes the request from the
+     * queue, or aborts it once running, see {@link HttpCall#cancel()}. It fails with a
+     * RejectedExecutionException once the scheduler is shut down.
+     */
+    public Future<Integer> submit(HttpCall call) {
+        return submit(call, null);
+    }
+
+    /***
+     * Queues a request on the lane defined by {@link HttpCall#getPriority()}.
+     * @param call The request to be dispatched.
+     * @param callback Notified on the worker thread once the request finishes, may be null.
+     * @return A future holding the http status code. Cancelling it removes the request from the
+     * queue, or aborts it once running, see {@link HttpCall#cancel()}. It fails with a
+     * RejectedExecutionException once the scheduler is shut down.
+     */
+    public Future<Integer> submit(HttpCall call, Callback callback) {
+        ScheduledRequest scheduledRequest = new ScheduledRequest(call, callback);
+        synchronized (this) {
+            lanes.get(call.getPriority()).addLast(scheduledRequest);
+        }
+        promote();
+        return scheduledRequest;
+    }
+
+    /***
+     * Overrides the maximum of requests running at once, also resizing the worker pool.
+     * @param maxRequests The new limit, must be positive.
+     */
+    public void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1)
+            throw new IllegalArgumentException("Request limits must be positive");
+        synchronized (this) {
+            if (executor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor workerPool = (ThreadPoolExecutor) executor;
+                if (maxRequests > this.maxRequests) {
+                    workerPool.setMaximumPoolSize(maxRequests);
+                    workerPool.setCorePoolSize(maxRequests);
+                } else {
+                    workerPool.setCorePoolSize(maxRequests);
+                    workerPool.setMaximumPoolSize(maxRequests);
+                }
+            }
+            this.maxRequests = maxRequests;
+        }
+        promote();
+    }
+
+    /***
+     * Overrides the maximum of requests running at once against a single host.
+     * @param maxRequestsPerHost The new limit, must be positive.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1)
+            throw new IllegalArgumentException("Request limits must be positive");
+        synchronized (this) {
+            this.maxRequestsPerHost = maxRequestsPerHost;
+        }
+        promote();
+    }
+
+    /***
+     * @return The number of requests waiting on any lane.
+     */
+    public synchronized int getQueuedCount() {
+        int queued = 0;
+        for (Deque<ScheduledRequest> lane : lanes.values())
+            queued += lane.size();
+        return queued;
+    }
+
+    /***
+     * @return The number of requests currently running on a worker.
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /***
+     * Cancels every queued request and stops the workers once the running ones finish.
+     */
+    public void shutdown() {
+        List<ScheduledRequest> queued = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<ScheduledRequest> lane : lanes.values()) {
+                queued.addAll(lane);
+                lane.clear();
+            }
+        }
+        for (ScheduledRequest scheduledRequest : queued)
+            scheduledRequest.cancel(false);
+        executor.shutdown();
+    }
+
+    /***
+     * Moves as many queued requests as the limits allow to the worker pool, highest lane first.
+     * Requests the executor refuses, once it's shut down, fail right away.
+     */
+    private void promote() {
+        List<ScheduledRequest> rejected = null;
+        RejectedExecutionException rejection = null;
+        synchronized (this) {
+            for (Deque<ScheduledRequest> lane : lanes.values()) {
+                Iterator<ScheduledRequest> iterator = lane.iterator();
+                while (iterator.hasNext() && running < maxRequests) {
+                    ScheduledRequest scheduledRequest = iterator.next();
+                    if (scheduledRequest.isCancelled()) {
+                        iterator.remove();
+                        continue;
+                    }
+                    Integer hostRunning = runningPerHost.get(scheduledRequest.host);
+                    if (hostRunning != null && hostRunning >= maxRequestsPerHost)
+                        continue;
+                    iterator.remove();
+                    runningPerHost.put(scheduledRequest.host, hostRunning == null ? 1 : hostRunning + 1);
+                    running++;
+                    try {
+                        executor.execute(scheduledRequest);
+                    } catch (RejectedExecutionException e) {
+                        release(scheduledRequest);
+                        if (rejected == null)
+                            rejected = new ArrayList<>();
+                        rejected.add(scheduledRequest);
+                        rejection = e;
+                    }
+                }
+                if (running >= maxRequests)
+                    break;
+            }
+        }
+        if (rejected != null) {
+            for (ScheduledRequest scheduledRequest : rejected)
+                scheduledRequest.reject(rejection);
+        }
+    }
+
+    private void finished(ScheduledRequest scheduledRequest) {
+        synchronized (this) {
+            release(scheduledRequest);
+        }
+        promote();
+    }
+
+    /***
+     * Gives back the slots of a request, called holding the lock.
+     */
+    private void release(ScheduledRequest scheduledRequest) {
+        running--;
+        Integer hostRunning = runningPerHost.get(scheduledRequest.host);
+        if (hostRunning == null || hostRunning <= 1)
+            runningPerHost.remove(scheduledRequest.host);
+        else
+            runningPerHost.put(scheduledRequest.host, hostRunning - 1);
+    }
+
+    private static ThreadPoolExecutor newWorkerPool(int maxRequests) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxRequests, maxRequests, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static String hostOf(HttpCall call) {
+        URL url = call.getUrl();
+        if (url == null || url.getHost() == null)
+            return "";
+        return url.getHost().toLowerCase(Locale.ENGLISH);
+    }
+
+    private final class ScheduledRequest extends FutureTask<Integer> {
+        private final HttpCall call;
+        private final Callback callback;
+        private final String host;
+
+        ScheduledRequest(final HttpCall call, Callback callback) {
+            super(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return call.execute();
+                }
+            });
+            this.call = call;
+            this.callback = callback;
+            this.host = hostOf(call);
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                finished(this);
+            }
+        }
+
+        /***
+         * Fails a request the executor refused to run.
+         */
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+
+        /***
+         * Cancels the request as well, aborting it if it's running.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            if (cancelled)
+                call.cancel();
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (callback != null)
+                    callback.onComplete(call, 0);
+                return;
+            }
+            Integer result;
+            try {
+                result = get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                HttpLog.e("RequestScheduler", e.getLocalizedMessage(), e);
+                if (callback != null)
+                    callback.onComplete(call, 0);
+                return;
+            }
+            if (callback != null)
+                callback.onComplete(call, result);
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HttpRequest #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.net.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/***
+ * Turns response bodies into objects. A decoder is shared by every request of its media type, see
+ * {@link ResponseDecoders}, so it must be thread-safe and hold no state for a single body.
+ */
+public interface ResponseDecoder {
+
+    /***
+     * Receives the elements of a body as they're decoded.
+     */
+    interface ElementCallback<T> {
+        void onElement(T element) throws IOException;
+    }
+
+    /***
+     * Decodes a whole body.
+     * @param stream The response body, read to its end.
+     * @param mediaType The media type the body was requested in, for its charset.
+     * @param type The class of the result.
+     */
+    <T> T decode(InputStream stream, MediaType mediaType, Class<T> type) throws IOException;
+
+    /***
+     * Decodes the elements of a body one by one, handing each to the callback before the next one
+     * is read, so only one element is held in memory at a time.
+     * @param stream The response body, read to its end.
+     * @param mediaType The media type the body was requested in, for its charset.
+     * @param elementType The class of the elements.
+     * @param callback Receives every element in order.
+     * @return The number of elements decoded.
+     */
+    <T> long decodeElements(InputStream stream, MediaType mediaType, Class<T> elementType,
+                            ElementCallback<? super T> callback) throws IOException;
+}
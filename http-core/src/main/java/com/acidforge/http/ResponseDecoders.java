@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.MediaType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * The decoders for response bodies, by media type. A registry is shared by the requests using it
+ * and the decoders are built once, instead of once per request.
+ * <p>
+ * A media type finds the decoder registered for its type and subtype, ignoring parameters such
+ * as the charset. Structured syntax suffixes fall back to their base type, so
+ * {@code application/vnd.api+json} finds the {@code application/json} decoder, then the
+ * {@code type/*} and {@code *}{@code /*} wildcards are tried.
+ */
+public final class ResponseDecoders {
+
+    /***
+     * Decodes text bodies into a {@link String}, or a {@code byte[]}, and their elements as lines.
+     */
+    public static final ResponseDecoder TEXT = new ResponseDecoder() {
+        @Override
+        public <T> T decode(InputStream stream, MediaType mediaType, Class<T> type) throws IOException {
+            byte[] bytes = ByteStreams.toByteArray(stream);
+            if (type == byte[].class)
+                return type.cast(bytes);
+            if (type.isAssignableFrom(String.class))
+                return type.cast(new String(bytes, charset(mediaType)));
+            throw new IllegalArgumentException("Text bodies can't be decoded as " + type.getName());
+        }
+
+        @Override
+        public <T> long decodeElements(InputStream stream, MediaType mediaType, Class<T> elementType,
+                                       ElementCallback<? super T> callback) throws IOException {
+            if (!elementType.isAssignableFrom(String.class))
+                throw new IllegalArgumentException("Text lines can't be decoded as " + elementType.getName());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset(mediaType)));
+            long count = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                callback.onElement(elementType.cast(line));
+                count++;
+            }
+            return count;
+        }
+    };
+
+    private static ResponseDecoders defaultDecoders;
+
+    private final Map<String, ResponseDecoder> decoders = new ConcurrentHashMap<>();
+
+    /***
+     * @return The registry requests use unless given another, with a {@link JsonDecoder} for
+     * {@code application/json} and {@link #TEXT} for {@code text/*}.
+     */
+    public static synchronized ResponseDecoders getDefault() {
+        if (defaultDecoders == null) {
+            defaultDecoders = new ResponseDecoders()
+                    .register(MediaType.JSON_UTF_8, new JsonDecoder())
+                    .register(MediaType.ANY_TEXT_TYPE, TEXT);
+        }
+        return defaultDecoders;
+    }
+
+    /***
+     * Registers the decoder of a media type, replacing any previous one. Parameters of the media
+     * type are ignored, its subtype may be a wildcard.
+     * @return This registry, for chaining.
+     */
+    public ResponseDecoders register(MediaType mediaType, ResponseDecoder decoder) {
+        decoders.put(mediaType.type() + "/" + mediaType.subtype(), decoder);
+        return this;
+    }
+
+    /***
+     * @return The decoder for a media type.
+     * @throws IllegalArgumentException If no decoder was registered for it.
+     */
+    public ResponseDecoder forMediaType(MediaType mediaType) {
+        String type = mediaType.type();
+        String subtype = mediaType.subtype();
+        ResponseDecoder decoder = decoders.get(type + "/" + subtype);
+        int suffix = subtype.lastIndexOf('+');
+        if (decoder == null && suffix >= 0)
+            decoder = decoders.get(type + "/" + subtype.substring(suffix + 1));
+        if (decoder == null)
+            decoder = decoders.get(type + "/*");
+        if (decoder == null)
+            decoder = decoders.get("*/*");
+        if (decoder == null)
+            throw new IllegalArgumentException("No decoder registered for " + mediaType);
+        return decoder;
+    }
+
+    private static Charset charset(MediaType mediaType) {
+        return mediaType == null ? Charsets.UTF_8 : mediaType.charset().or(Charsets.UTF_8);
+    }
+}
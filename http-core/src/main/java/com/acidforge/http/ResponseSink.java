@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/***
+ * Consumes a successful response body for a {@link DownloadCall}, or from an overriden
+ * {@link HttpCall#responseStream(InputStream)} through {@link HttpCall#transfer(InputStream, ResponseSink)}.
+ * See {@link ResponseSinks} for the built-in ones.
+ */
+public interface ResponseSink {
+
+    /***
+     * Receives the number of bytes consumed so far.
+     */
+    interface Progress {
+        void onProgress(long bytesTransferred);
+    }
+
+    /***
+     * Reads the body to its end.
+     * @param stream The response body.
+     * @param bufferPool The pool to take copy buffers from.
+     * @param progress Notified as bytes are consumed.
+     * @return The number of bytes consumed.
+     */
+    long consume(InputStream stream, BufferPool bufferPool, Progress progress) throws IOException;
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/***
+ * The built-in {@link ResponseSink}s. Every copy goes through a pooled buffer, so downloads don't
+ * allocate per request.
+ */
+public final class ResponseSinks {
+
+    private ResponseSinks() {
+    }
+
+    /***
+     * Writes the body to a file, replacing its content.
+     */
+    public static ResponseSink toFile(File file) {
+        return toFile(file, false);
+    }
+
+    /***
+     * Writes the body to a file.
+     * @param append True to write after the current end of the file instead of replacing it.
+     */
+    public static ResponseSink toFile(final File file, final boolean append) {
+        return new ResponseSink() {
+            @Override
+            public long consume(InputStream stream, BufferPool bufferPool, Progress progress) throws IOException {
+                FileOutputStream fileStream = new FileOutputStream(file, append);
+                try {
+                    FileChannel channel = fileStream.getChannel();
+                    return transfer(stream, channel, channel.position(), bufferPool, progress);
+                } finally {
+                    fileStream.close();
+                }
+            }
+        };
+    }
+
+    /***
+     * Writes the body to a channel at a given position, without moving the channel position.
+     * The channel is left open, so several requests can fill parts of the same file.
+     */
+    public static ResponseSink toChannel(final FileChannel channel, final long position) {
+        return new ResponseSink() {
+            @Override
+            public long consume(InputStream stream, BufferPool bufferPool, Progress progress) throws IOException {
+                return transfer(stream, channel, position, bufferPool, progress);
+            }
+        };
+    }
+
+    /***
+     * Reads the body into a buffer, starting at its position. Heap buffers are filled without any
+     * intermediate copy.
+     * @throws IOException If the body doesn't fit the remaining space.
+     */
+    public static ResponseSink toByteBuffer(final ByteBuffer buffer) {
+        return new ResponseSink() {
+            @Override
+            public long consume(InputStream stream, BufferPool bufferPool, Progress progress) throws IOException {
+                long total = 0;
+                if (buffer.hasArray()) {
+                    int read;
+                    while (buffer.hasRemaining()
+                            && (read = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())) != -1) {
+                        buffer.position(buffer.position() + read);
+                        total += read;
+                        progress.onProgress(total);
+                    }
+                } else {
+                    byte[] copyBuffer = bufferPool.acquire();
+                    try {
+                        int read;
+                        while (buffer.hasRemaining()
+                                && (read = stream.read(copyBuffer, 0, Math.min(copyBuffer.length, buffer.remaining()))) != -1) {
+                            buffer.put(copyBuffer, 0, read);
+                            total += read;
+                            progress.onProgress(total);
+                        }
+                    } finally {
+                        bufferPool.release(copyBuffer);
+                    }
+                }
+                if (!buffer.hasRemaining() && stream.read() != -1)
+                    throw new IOException("The response body is larger than the buffer");
+                return total;
+            }
+        };
+    }
+
+    /***
+     * Reads the body and throws it away, for requests that only matter for their status.
+     */
+    public static ResponseSink discard() {
+        return new ResponseSink() {
+            @Override
+            public long consume(InputStream stream, BufferPool bufferPool, Progress progress) throws IOException {
+                byte[] copyBuffer = bufferPool.acquire();
+                try {
+                    long total = 0;
+                    int read;
+                    while ((read = stream.read(copyBuffer)) != -1) {
+                        total += read;
+                        progress.onProgress(total);
+                    }
+                    return total;
+                } finally {
+                    bufferPool.release(copyBuffer);
+                }
+            }
+        };
+    }
+
+    private static long transfer(InputStream stream, FileChannel channel, long position, BufferPool bufferPool,
+                                 ResponseSink.Progress progress) throws IOException {
+        byte[] copyBuffer = bufferPool.acquire();
+        try {
+            ByteBuffer wrapper = ByteBuffer.wrap(copyBuffer);
+            long total = 0;
+            int read;
+            while ((read = stream.read(copyBuffer)) != -1) {
+                wrapper.clear().limit(read);
+                while (wrapper.hasRemaining())
+                    total += channel.write(wrapper, position + total);
+                progress.onProgress(total);
+            }
+            return total;
+        } finally {
+            bufferPool.release(copyBuffer);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Retries idempotent requests that failed before getting a response, or got a transient status
+ * (408, 429, 502, 503 and 504), waiting a jittered exponential backoff between attempts.
+ * Retries draw from a budget refilled by a fraction of the requests made, so an outage doesn't
+ * turn into a retry storm. Optionally hedges GET and HEAD requests: when an attempt hasn't received
+ * its headers after the 95th percentile of the recent latencies of its host, a second one is sent
+ * and the first to answer wins, the other one being aborted. Hedges draw from the same budget.
+ * Share a single policy among the requests to the same backend.
+ */
+public final class RetryPolicy {
+
+    /***
+     * Default maximum of attempts, the first one included.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /***
+     * Default backoff before the first retry, doubled on every further one.
+     */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 250;
+    /***
+     * Default cap of the backoff.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000;
+    /***
+     * Default fraction of the requests that may be retried or hedged.
+     */
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    /***
+     * Default number of retries allowed in a burst, before the ratio kicks in.
+     */
+    public static final int DEFAULT_BUDGET_BURST = 10;
+
+    private static final int LATENCY_SAMPLES = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong budgetExhaustedCount = new AtomicLong();
+    private final Random random = new Random();
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int budgetBurst = DEFAULT_BUDGET_BURST;
+    private double budgetTokens = DEFAULT_BUDGET_BURST;
+    private volatile boolean hedging;
+    private volatile long minHedgeDelayMillis = 50;
+    private ExecutorService hedgeExecutor;
+
+    /***
+     * Creates a policy with {@link #DEFAULT_MAX_ATTEMPTS}, {@link #DEFAULT_BASE_DELAY_MILLIS} and
+     * {@link #DEFAULT_MAX_DELAY_MILLIS}.
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /***
+     * @param maxAttempts Maximum of attempts per request, the first one included.
+     * @param baseDelayMillis Upper bound of the backoff before the first retry.
+     * @param maxDelayMillis Cap of the backoff however many attempts were made.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis)
+            throw new IllegalArgumentException("Invalid retry limits");
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /***
+     * Bounds the extra load retries and hedges may cause.
+     * @param ratio Tokens earned per request, a retry or a hedge costs one.
+     * @param burst Maximum of tokens saved up, also the initial amount.
+     */
+    public synchronized void setRetryBudget(double ratio, int burst) {
+        if (ratio < 0 || burst < 0)
+            throw new IllegalArgumentException("The retry budget must be positive");
+        this.budgetRatio = ratio;
+        this.budgetBurst = burst;
+        this.budgetTokens = Math.min(budgetTokens, burst);
+    }
+
+    /***
+     * @param hedging True to hedge slow GET and HEAD requests with a second attempt.
+     */
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /***
+     * @param minHedgeDelayMillis Lower bound of the delay before hedging, whatever the latencies.
+     */
+    public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /***
+     * @return How many retries or hedges were given up because the budget was empty.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhaustedCount.get();
+    }
+
+    /***
+     * Earns the budget share of a new request.
+     */
+    synchronized void onRequest() {
+        budgetTokens = Math.min(budgetBurst, budgetTokens + budgetRatio);
+    }
+
+    /***
+     * @return True if a request with this method and body may be sent again.
+     */
+    static boolean isRepeatable(HttpMethod method, RequestBody body) {
+        return method.isIdempotent() && (body == null || !body.isOneShot());
+    }
+
+    /***
+     * @return True for the status codes worth another attempt, 0 standing for a failure before
+     * any response.
+     */
+    static boolean isTransient(int responseCode) {
+        return responseCode == 0 || responseCode == 408 || responseCode == 429
+                || responseCode == 502 || responseCode == 503 || responseCode == 504;
+    }
+
+    /***
+     * Decides whether an attempt is retried, spending a budget token if it is.
+     * @param responseCode The status of the attempt, 0 if it got no response.
+     * @param attempt The number of attempts made so far.
+     */
+    boolean retry(int responseCode, int attempt) {
+        if (attempt >= maxAttempts || !isTransient(responseCode))
+            return false;
+        if (!spendToken())
+            return false;
+        retryCount.incrementAndGet();
+        return true;
+    }
+
+    /***
+     * @param attempt The number of attempts made so far.
+     * @param retryAfter The Retry-After header of the failed attempt, may be null.
+     * @return A random delay up to the exponential bound of the attempt, at least Retry-After if
+     * the server sent one within the cap.
+     */
+    long backoffMillis(int attempt, String retryAfter) {
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        long delay;
+        synchronized (random) {
+            delay = bound <= 0 ? 0 : (long) (random.nextDouble() * bound);
+        }
+        if (retryAfter != null) {
+            try {
+                long serverDelay = Long.parseLong(retryAfter.trim()) * 1000;
+                if (serverDelay <= maxDelayMillis)
+                    delay = Math.max(delay, serverDelay);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return delay;
+    }
+
+    /***
+     * Records the time an attempt took to get its headers.
+     */
+    void recordLatency(String host, long millis) {
+        LatencyWindow window = latencies.get(host);
+        if (window == null) {
+            window = new LatencyWindow();
+            LatencyWindow existing = latencies.putIfAbsent(host, window);
+            if (existing != null)
+                window = existing;
+        }
+        window.add(millis);
+    }
+
+    /***
+     * @return The delay after which a request to the host is hedged, or -1 if hedging is off or
+     * there aren't enough latency samples yet.
+     */
+    long hedgeDelayMillis(String host) {
+        if (!hedging)
+            return -1;
+        LatencyWindow window = latencies.get(host);
+        long percentile = window == null ? -1 : window.percentile(0.95);
+        return percentile < 0 ? -1 : Math.max(minHedgeDelayMillis, percentile);
+    }
+
+    /***
+     * Spends a budget token on a hedge.
+     * @return True if the hedge may be sent.
+     */
+    boolean hedge() {
+        if (!spendToken())
+            return false;
+        hedgeCount.incrementAndGet();
+        return true;
+    }
+
+    synchronized ExecutorService hedgeExecutor() {
+        if (hedgeExecutor == null)
+            hedgeExecutor = Executors.newCachedThreadPool(new HedgeThreadFactory());
+        return hedgeExecutor;
+    }
+
+    private synchronized boolean spendToken() {
+        if (budgetTokens < 1) {
+            budgetExhaustedCount.incrementAndGet();
+            return false;
+        }
+        budgetTokens--;
+        return true;
+    }
+
+    /***
+     * The latest latencies of a host, in a ring.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count;
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        synchronized long percentile(double fraction) {
+            if (count < MIN_LATENCY_SAMPLES)
+                return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+        }
+    }
+
+    private static final class HedgeThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HttpRequest hedge #" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
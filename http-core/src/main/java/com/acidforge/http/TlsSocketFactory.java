@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/***
+ * The socket factory shared by every request using the same {@link SSLContext}.
+ * {@link SSLContext#getSocketFactory()} may return a new factory on every call, and the platform
+ * only reuses a kept alive https socket for a request holding the same factory, so a factory per
+ * request means a socket and a full handshake per request. The factory also bounds the client
+ * session cache of its context, which keeps the session ids and tickets used to resume handshakes,
+ * and counts how many handshakes were resumed.
+ * A factory is only held weakly, by the requests and kept alive sockets using it, so the factory
+ * and its context are collected once neither is in use. Create a context once and share it all the
+ * same, a new context starts with an empty session cache.
+ */
+public final class TlsSocketFactory extends SSLSocketFactory {
+
+    /***
+     * Default maximum of TLS sessions kept for resumption, one per host and port.
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 64;
+    /***
+     * Default time a TLS session may be resumed, 12 hours. Servers usually accept tickets for
+     * less, in which case they fall back to a full handshake.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+    /***
+     * Maximum of session ids remembered to tell resumed handshakes apart, the least recently
+     * resumed forgotten first.
+     */
+    private static final int MAX_KNOWN_SESSIONS = 256;
+
+    // the factories reference their context, so they're held weakly for the context to be collected
+    private static final Map<SSLContext, WeakReference<TlsSocketFactory>> factories = new WeakHashMap<>();
+
+    private final SSLSocketFactory delegate;
+    private final SSLContext sslContext;
+    private final AtomicLong handshakeCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+    // guarded by itself
+    private final Map<ByteBuffer, Boolean> knownSessions = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+            return size() > MAX_KNOWN_SESSIONS;
+        }
+    };
+
+    private TlsSocketFactory(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        this.delegate = sslContext.getSocketFactory();
+        setSessionCache(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+
+    /***
+     * @param sslContext The context of the requests.
+     * @return The factory of the context, created on first use with {@link #DEFAULT_SESSION_CACHE_SIZE}
+     * and {@link #DEFAULT_SESSION_TIMEOUT_SECONDS}. The same factory is returned as long as it's
+     * in use, its counters starting over once it was collected.
+     */
+    public static synchronized TlsSocketFactory forContext(SSLContext sslContext) {
+        WeakReference<TlsSocketFactory> reference = factories.get(sslContext);
+        TlsSocketFactory factory = reference == null ? null : reference.get();
+        if (factory == null) {
+            factory = new TlsSocketFactory(sslContext);
+            factories.put(sslContext, new WeakReference<>(factory));
+        }
+        return factory;
+    }
+
+    /***
+     * Sizes the client session cache of the context.
+     * @param size Maximum of sessions kept, 0 for no limit.
+     * @param timeoutSeconds Time a session may be resumed, 0 for no limit.
+     */
+    public void setSessionCache(int size, int timeoutSeconds) {
+        if (size < 0 || timeoutSeconds < 0)
+            throw new IllegalArgumentException("Session cache limits must be positive");
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(size);
+            sessionContext.setSessionTimeout(timeoutSeconds);
+        }
+    }
+
+    /***
+     * @return How many TLS handshakes completed on sockets of this factory.
+     */
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    /***
+     * @return How many of the handshakes resumed a cached session instead of a full key exchange.
+     * A handshake counts as resumed when its session id was seen on an earlier handshake, which is
+     * how TLS 1.2 resumes. TLS 1.3 resumes a session under a new id, so those handshakes count as
+     * full ones.
+     */
+    public long getResumedHandshakeCount() {
+        return resumedCount.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        return track(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    /***
+     * Counts the handshake of a new socket.
+     */
+    private Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    handshakeCount.incrementAndGet();
+                    if (isKnown(event.getSession().getId()))
+                        resumedCount.incrementAndGet();
+                }
+            });
+        }
+        return socket;
+    }
+
+    /***
+     * Remembers a session id.
+     * @return True if it was seen before, an empty id never is.
+     */
+    private boolean isKnown(byte[] sessionId) {
+        if (sessionId == null || sessionId.length == 0)
+            return false;
+        synchronized (knownSessions) {
+            return knownSessions.put(ByteBuffer.wrap(sessionId.clone()), Boolean.TRUE) != null;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * The {@link HttpURLConnection} api over an exchange of one of the library engines, so
+ * {@link HttpCall} drives it like the platform connection. The request body is buffered until
+ * the response is asked for. The transport pushes the response in, its body being queued for the
+ * reader.
+ * The state shared between the reader and the transport is guarded by this object.
+ */
+abstract class TransportConnection extends HttpURLConnection {
+
+    private ByteArrayOutputStream requestBody;
+    private boolean requestReady;
+    private IOException failure;
+    private boolean headersReceived;
+    private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final List<String[]> headerLines = new ArrayList<>();
+    private final Body body = new Body();
+
+    TransportConnection(URL url) {
+        super(url);
+    }
+
+    /***
+     * Hands the request to the transport, once all of it is known.
+     */
+    abstract void sendRequest() throws IOException;
+
+    /***
+     * Gives up the exchange before the end of its response.
+     */
+    abstract void abort();
+
+    /***
+     * Called after the reader took bytes off the body queue.
+     * @param count The bytes just read.
+     * @param buffered The bytes left in the queue.
+     */
+    void onBodyRead(int count, int buffered) {
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (!getDoOutput())
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        if (requestReady)
+            throw new ProtocolException("Cannot write output after reading input.");
+        if (requestBody == null)
+            requestBody = new ByteArrayOutputStream();
+        return requestBody;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        awaitHeaders();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        awaitHeaders();
+        return responseMessage;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        awaitHeaders();
+        if (responseCode >= HTTP_BAD_REQUEST) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE)
+                throw new FileNotFoundException(url.toString());
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return body;
+    }
+
+    @Override
+    public synchronized InputStream getErrorStream() {
+        return headersReceived && responseCode >= HTTP_BAD_REQUEST ? body : null;
+    }
+
+    @Override
+    public synchronized String getHeaderField(String name) {
+        if (name == null)
+            return getHeaderField(0);
+        List<String> values = headers.get(name);
+        return values == null ? null : values.get(values.size() - 1);
+    }
+
+    @Override
+    public synchronized Map<String, List<String>> getHeaderFields() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public synchronized String getHeaderFieldKey(int n) {
+        return n > 0 && n < headerLines.size() ? headerLines.get(n)[0] : null;
+    }
+
+    @Override
+    public synchronized String getHeaderField(int n) {
+        return n >= 0 && n < headerLines.size() ? headerLines.get(n)[1] : null;
+    }
+
+    @Override
+    public void disconnect() {
+        abort();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    /***
+     * Marks the request as complete, the request properties and body can no longer change.
+     * @return False if it was already.
+     */
+    final synchronized boolean freezeRequest() {
+        if (requestReady)
+            return false;
+        requestReady = true;
+        return true;
+    }
+
+    final synchronized boolean isRequestReady() {
+        return requestReady;
+    }
+
+    /***
+     * @return The buffered request body, null if none was written.
+     */
+    final synchronized byte[] requestBody() {
+        return requestBody == null ? null : requestBody.toByteArray();
+    }
+
+    final synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    /***
+     * Waits for a condition the transport notifies on this object, at most the read timeout.
+     * @throws SocketTimeoutException If the read timeout elapsed, after aborting the exchange.
+     */
+    final void await(Condition condition) throws IOException {
+        boolean timedOut = false;
+        synchronized (this) {
+            int readTimeout = getReadTimeout();
+            long deadline = System.currentTimeMillis() + readTimeout;
+            try {
+                while (!condition.met() && failure == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (readTimeout > 0 && remaining <= 0) {
+                        timedOut = true;
+                        break;
+                    }
+                    wait(readTimeout > 0 ? remaining : 0);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (!timedOut && !condition.met())
+                throw failure;
+        }
+        if (timedOut) {
+            abort();
+            throw new SocketTimeoutException("Read timed out");
+        }
+    }
+
+    /***
+     * A condition checked holding the lock of the connection.
+     */
+    interface Condition {
+        boolean met();
+    }
+
+    private void awaitHeaders() throws IOException {
+        sendRequest();
+        await(new Condition() {
+            @Override
+            public boolean met() {
+                return headersReceived;
+            }
+        });
+    }
+
+    /***
+     * Records the status of the response.
+     * @param statusLine The status line of HTTP/1.x responses, the value of header field 0.
+     */
+    final synchronized void receiveStatus(int code, String message, String statusLine) {
+        responseCode = code;
+        responseMessage = message;
+        headerLines.add(new String[]{null, statusLine});
+    }
+
+    final synchronized void receiveHeader(String name, String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+        headerLines.add(new String[]{name, value});
+    }
+
+    final synchronized void receiveHeadersEnd() {
+        headersReceived = true;
+        notifyAll();
+    }
+
+    final void receiveBody(byte[] chunk) {
+        body.write(chunk);
+    }
+
+    final void receiveBodyEnd() {
+        body.finish();
+    }
+
+    /***
+     * Fails the exchange, the reader getting the error unless the whole body arrived.
+     * @return False if it had already failed.
+     */
+    final boolean receiveFailure(IOException e) {
+        synchronized (this) {
+            if (failure != null)
+                return false;
+            failure = e;
+            notifyAll();
+        }
+        body.fail(e);
+        return true;
+    }
+
+    final synchronized int getBufferedBodySize() {
+        return body.buffered;
+    }
+
+    final synchronized boolean isBodyComplete() {
+        return body.finished;
+    }
+
+    /***
+     * The response body as the reader sees it, a queue of the chunks received.
+     */
+    private final class Body extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        private int buffered;
+        private boolean finished;
+        private boolean closed;
+        private IOException error;
+
+        void write(byte[] chunk) {
+            synchronized (TransportConnection.this) {
+                if (closed || chunk.length == 0)
+                    return;
+                chunks.addLast(chunk);
+                buffered += chunk.length;
+                TransportConnection.this.notifyAll();
+            }
+        }
+
+        void finish() {
+            synchronized (TransportConnection.this) {
+                finished = true;
+                TransportConnection.this.notifyAll();
+            }
+        }
+
+        void fail(IOException e) {
+            synchronized (TransportConnection.this) {
+                error = e;
+                TransportConnection.this.notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            await(new Condition() {
+                @Override
+                public boolean met() {
+                    return !chunks.isEmpty() || finished || closed;
+                }
+            });
+            int count;
+            int left;
+            synchronized (TransportConnection.this) {
+                if (chunks.isEmpty()) {
+                    if (error != null && !finished)
+                        throw error;
+                    return -1;
+                }
+                byte[] chunk = chunks.peekFirst();
+                count = Math.min(len, chunk.length - offset);
+                System.arraycopy(chunk, offset, buffer, off, count);
+                offset += count;
+                if (offset == chunk.length) {
+                    chunks.pollFirst();
+                    offset = 0;
+                }
+                buffered -= count;
+                left = buffered;
+            }
+            onBodyRead(count, left);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            synchronized (TransportConnection.this) {
+                return buffered;
+            }
+        }
+
+        /***
+         * Closing before the end of the body gives the exchange up, like the platform connection.
+         */
+        @Override
+        public void close() {
+            boolean abort;
+            synchronized (TransportConnection.this) {
+                if (closed)
+                    return;
+                closed = true;
+                abort = !finished;
+                chunks.clear();
+                buffered = 0;
+                TransportConnection.this.notifyAll();
+            }
+            if (abort)
+                abort();
+        }
+    }
+}
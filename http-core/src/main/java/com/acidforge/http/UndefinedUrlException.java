@@ -13,16 +13,12 @@
  */
 package com.acidforge.http;
 
-import android.content.res.Resources;
-
-import net.acidforge.http.R;
-
 /**
  * Created by Moises on 25/05/2017.
  */
 
 public class UndefinedUrlException extends Exception {
     public UndefinedUrlException() {
-        super(Resources.getSystem().getString(R.string.exception_undefined_url));
+        super("The URL was undefined or there was a failure decoding it.");
     }
 }
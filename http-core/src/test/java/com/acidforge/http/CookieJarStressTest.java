@@ -0,0 +1,277 @@
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers a single {@link CookieJar} from many threads, the same way parallel requests do when
+ * attaching and reading cookies, and replays its {@link CookieJournal}.
+ */
+public class CookieJarStressTest {
+    private static final int WRITERS = 8;
+    private static final int READERS = 8;
+    private static final int ITERATIONS = 2000;
+    private static final int NAMES_PER_WRITER = 50;
+    private static final String[] HOSTS = {"api.example.com", "www.example.com", "cdn.example.org", "127.0.0.1"};
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void parallelWritersAndReadersKeepExactlyTheLastCookies() throws Exception {
+        final CookieJar jar = new CookieJar(CookiePersistence.NONE);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<Void>> writers = new ArrayList<>();
+        List<Future<Void>> readers = new ArrayList<>();
+        for (int t = 0; t < WRITERS; t++) {
+            final int writer = t;
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        int name = i % NAMES_PER_WRITER;
+                        URI uri = uriOf(name);
+                        HttpCookie cookie = new HttpCookie("w" + writer + "n" + name, String.valueOf(i));
+                        if (i % 7 == 3)
+                            jar.remove(uri, cookie);
+                        else
+                            jar.add(uri, cookie);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int t = 0; t < READERS; t++) {
+            final int reader = t;
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; writing.get(); i++) {
+                        URI uri = uriOf(reader + i);
+                        jar.getCookieHeader(uri);
+                        jar.get(uri);
+                        if (i % 100 == 0) {
+                            jar.getCookies();
+                            jar.getURIs();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : writers)
+            future.get(2, TimeUnit.MINUTES);
+        writing.set(false);
+        for (Future<Void> future : readers)
+            future.get(2, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        // every writer owns its names, so the jar must hold exactly its own last operations
+        Map<String, Map<String, String>> expected = new TreeMap<>();
+        for (String host : HOSTS)
+            expected.put(host, new TreeMap<String, String>());
+        for (int writer = 0; writer < WRITERS; writer++) {
+            for (int i = 0; i < ITERATIONS; i++) {
+                int name = i % NAMES_PER_WRITER;
+                Map<String, String> cookies = expected.get(HOSTS[name % HOSTS.length]);
+                if (i % 7 == 3)
+                    cookies.remove("w" + writer + "n" + name);
+                else
+                    cookies.put("w" + writer + "n" + name, String.valueOf(i));
+            }
+        }
+        for (String host : HOSTS) {
+            URI uri = new URI("https://" + host + "/");
+            List<HttpCookie> cookies = jar.get(uri);
+            Map<String, String> actual = new TreeMap<>();
+            for (HttpCookie cookie : cookies)
+                actual.put(cookie.getName(), cookie.getValue());
+            assertEquals("duplicated cookies for " + host, actual.size(), cookies.size());
+            assertEquals(expected.get(host), actual);
+            String header = jar.getCookieHeader(uri);
+            List<String> pairs = Arrays.asList(header.split("; "));
+            assertEquals(actual.size(), pairs.size());
+            for (Map.Entry<String, String> cookie : actual.entrySet())
+                assertTrue(pairs.contains(cookie.getKey() + "=" + cookie.getValue()));
+        }
+        int total = 0;
+        for (Map<String, String> cookies : expected.values())
+            total += cookies.size();
+        assertEquals(total, jar.getCookies().size());
+    }
+
+    @Test
+    public void writerInvalidatesCachedHeaderSeenByReaders() throws Exception {
+        final CookieJar jar = new CookieJar(CookiePersistence.NONE);
+        final URI uri = new URI("https://api.example.com/v1/session");
+        final int updates = 5000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i <= updates; i++)
+                    jar.add(uri, new HttpCookie("sid", String.valueOf(i)));
+            }
+        });
+        writer.start();
+        while (writer.isAlive())
+            jar.getCookieHeader(uri);
+        writer.join();
+        assertEquals("sid=" + updates, jar.getCookieHeader(uri));
+    }
+
+    @Test
+    public void journalReplayAndCompactionRestoreTheSameJar() throws Exception {
+        File file = new File(directory, "cookies.journal");
+        CookieJar jar = new CookieJar(CookieJournal.forFile(file));
+        for (int i = 0; i < 300; i++) {
+            URI uri = uriOf(i);
+            HttpCookie cookie = persistent("c" + i % 20, String.valueOf(i));
+            if (i % 5 == 0)
+                cookie.setPath("/v1");
+            if (i % 11 == 0)
+                jar.remove(uri, cookie);
+            else
+                jar.add(uri, cookie);
+        }
+        HttpCookie shared = persistent("shared", "1");
+        shared.setDomain(".example.com");
+        jar.add(new URI("https://api.example.com/"), shared);
+        jar.flush();
+
+        List<String> expected = contentOf(jar);
+        assertEquals("the journal was not compacted to the live cookies",
+                jar.getCookies().size(), Files.readLines(file, Charsets.UTF_8).size());
+
+        CookieJar replayed = new CookieJar(CookieJournal.forFile(file));
+        assertEquals(expected, contentOf(replayed));
+    }
+
+    @Test
+    public void tornLastRecordIsIgnored() throws Exception {
+        File file = new File(directory, "torn.journal");
+        URI uri = new URI("https://api.example.com/");
+        CookieJar jar = new CookieJar(CookieJournal.forFile(file));
+        jar.add(uri, persistent("sid", "complete"));
+        jar.flush();
+        String record = Files.readFirstLine(file, Charsets.UTF_8);
+        String torn = record.replace("sid=complete", "sid=truncated-by-a-crash");
+        torn = torn.substring(0, torn.indexOf("truncated") + "trunc".length());
+        Files.append(torn, file, Charsets.UTF_8);
+
+        CookieJar replayed = new CookieJar(CookieJournal.forFile(file));
+        assertEquals("sid=complete", replayed.getCookieHeader(uri));
+
+        replayed.add(uri, persistent("lang", "en"));
+        replayed.flush();
+        CookieJar again = new CookieJar(CookieJournal.forFile(file));
+        assertEquals(new TreeSet<>(Arrays.asList("sid=complete", "lang=en")),
+                new TreeSet<>(Arrays.asList(again.getCookieHeader(uri).split("; "))));
+    }
+
+    @Test
+    public void sessionCookiesAreNotJournaled() throws Exception {
+        File file = new File(directory, "session.journal");
+        URI uri = new URI("https://api.example.com/");
+        CookieJar jar = new CookieJar(CookieJournal.forFile(file));
+        jar.add(uri, persistent("sid", "persistent"));
+        jar.add(uri, new HttpCookie("session", "1"));
+        jar.flush();
+        assertEquals("sid=persistent; session=1", jar.getCookieHeader(uri));
+
+        // a session cookie replacing a persistent one removes it from the journal
+        jar.add(uri, new HttpCookie("sid", "session"));
+        jar.flush();
+        CookieJar replayed = new CookieJar(CookieJournal.forFile(file));
+        assertEquals(null, replayed.getCookieHeader(uri));
+    }
+
+    @Test
+    public void expiredCookiesLeaveTheJournal() throws Exception {
+        File file = new File(directory, "expired.journal");
+        URI uri = new URI("https://api.example.com/");
+        CookieJar jar = new CookieJar(CookieJournal.forFile(file));
+        HttpCookie shortLived = new HttpCookie("short", "1");
+        shortLived.setMaxAge(1);
+        jar.add(uri, shortLived);
+        jar.add(uri, persistent("long", "1"));
+        jar.flush();
+        assertEquals(2, Files.readLines(file, Charsets.UTF_8).size());
+
+        Thread.sleep(1100);
+        // loading skips the expired record and compacts it away
+        CookieJar replayed = new CookieJar(CookieJournal.forFile(file));
+        assertEquals("long=1", replayed.getCookieHeader(uri));
+        assertEquals(1, Files.readLines(file, Charsets.UTF_8).size());
+
+        // a snapshot dropping an expired cookie journals its removal
+        HttpCookie again = new HttpCookie("again", "1");
+        again.setMaxAge(1);
+        replayed.add(uri, again);
+        Thread.sleep(1100);
+        replayed.add(uri, persistent("other", "1"));
+        replayed.flush();
+        List<String> records = Files.readLines(file, Charsets.UTF_8);
+        assertTrue(records.toString(), records.get(records.size() - 2).startsWith("R\tagain\t"));
+    }
+
+    private static HttpCookie persistent(String name, String value) {
+        HttpCookie cookie = new HttpCookie(name, value);
+        cookie.setMaxAge(3600);
+        return cookie;
+    }
+
+    private static URI uriOf(int index) {
+        return URI.create("https://" + HOSTS[index % HOSTS.length] + "/");
+    }
+
+    private static List<String> contentOf(CookieJar jar) throws Exception {
+        TreeSet<String> content = new TreeSet<>();
+        for (String host : HOSTS) {
+            for (String path : new String[]{"/", "/v1"}) {
+                for (HttpCookie cookie : jar.get(new URI("https://" + host + path)))
+                    content.add(host + path + " " + cookie.getName() + "=" + cookie.getValue());
+            }
+        }
+        return new ArrayList<>(content);
+    }
+}
@@ -0,0 +1,224 @@
+package com.acidforge.http;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives a {@link HostLimiter} through the growth and the decrease of its limit, the transitions
+ * of its circuit and its line of attempts that can't block.
+ */
+public class HostLimiterTest {
+    private static final String HOST = "api.example.com";
+
+    private final List<String> transitions = new ArrayList<>();
+    private HostLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new HostLimiter(4, 1, 16);
+        limiter.setBackoff(0.5, 0);
+        limiter.setCircuit(50, 200, 2);
+        limiter.setListener(new HostLimiter.Listener() {
+            @Override
+            public void onStateChanged(String host, HostLimiter.State from, HostLimiter.State to) {
+                transitions.add(from + ">" + to);
+            }
+        });
+    }
+
+    @Test
+    public void limitGrowsOnlyWhileInUse() throws IOException {
+        for (int i = 0; i < 50; i++)
+            limiter.acquire(HOST, call(), 0).release(200);
+        assertEquals(4, limiter.getLimit(HOST));
+
+        for (int round = 0; round < 10; round++) {
+            List<HostLimiter.Permit> permits = new ArrayList<>();
+            for (int i = 0; i < limiter.getLimit(HOST); i++)
+                permits.add(limiter.acquire(HOST, call(), 0));
+            for (HostLimiter.Permit permit : permits)
+                permit.release(200);
+        }
+
+        assertTrue(limiter.getLimit(HOST) > 4);
+        assertTrue(limiter.getLimit(HOST) <= 16);
+        assertEquals(0, limiter.getInFlight(HOST));
+    }
+
+    @Test
+    public void limitShrinksOnFailuresDownToItsMinimum() throws IOException {
+        limiter.acquire(HOST, call(), 0).release(503);
+        assertEquals(2, limiter.getLimit(HOST));
+        limiter.acquire(HOST, call(), 0).release(0);
+        limiter.acquire(HOST, call(), 0).release(429);
+        assertEquals(1, limiter.getLimit(HOST));
+
+        // cancelled attempts tell nothing about the host
+        limiter.acquire(HOST, call(), 0).abandon();
+        assertEquals(1, limiter.getLimit(HOST));
+        assertEquals(HostLimiter.State.CLOSED, limiter.getState(HOST));
+    }
+
+    @Test
+    public void attemptsBeyondTheLimitWaitWithinTheirTimeout() throws IOException {
+        limiter = new HostLimiter(1, 1, 1);
+        HostLimiter.Permit permit = limiter.acquire(HOST, call(), 0);
+        long start = System.currentTimeMillis();
+        try {
+            limiter.acquire(HOST, call(), 50);
+            fail();
+        } catch (SocketTimeoutException expected) {
+            assertTrue(System.currentTimeMillis() - start >= 50);
+        }
+        assertEquals(1, limiter.getTimedOutCount());
+        permit.release(200);
+        assertNotNull(limiter.acquire(HOST, call(), 0));
+    }
+
+    @Test
+    public void circuitOpensOnceHalfTheWindowFailedThenProbesAndCloses() throws Exception {
+        openCircuit();
+        assertEquals(1, transitions.size());
+        try {
+            limiter.acquire(HOST, call(), 0);
+            fail();
+        } catch (CircuitOpenException expected) {
+            assertTrue(expected.getRetryAfterMillis() > 0);
+        }
+        assertEquals(1, limiter.getRejectedCount());
+
+        Thread.sleep(60);
+        HostLimiter.Permit probe = limiter.acquire(HOST, call(), 0);
+        assertEquals(HostLimiter.State.HALF_OPEN, limiter.getState(HOST));
+        try {
+            limiter.acquire(HOST, call(), 0);
+            fail();
+        } catch (CircuitOpenException expected) {
+            assertEquals(0, expected.getRetryAfterMillis());
+        }
+        probe.release(200);
+        assertEquals(HostLimiter.State.HALF_OPEN, limiter.getState(HOST));
+        limiter.acquire(HOST, call(), 0).release(204);
+
+        assertEquals(HostLimiter.State.CLOSED, limiter.getState(HOST));
+        assertEquals("[CLOSED>OPEN, OPEN>HALF_OPEN, HALF_OPEN>CLOSED]", transitions.toString());
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitForTwiceAsLong() throws Exception {
+        openCircuit();
+        Thread.sleep(60);
+        limiter.acquire(HOST, call(), 0).release(503);
+
+        assertEquals(HostLimiter.State.OPEN, limiter.getState(HOST));
+        try {
+            limiter.acquire(HOST, call(), 0);
+            fail();
+        } catch (CircuitOpenException expected) {
+            assertTrue(expected.getRetryAfterMillis() > 50);
+        }
+        limiter.reset(HOST);
+        assertEquals(HostLimiter.State.CLOSED, limiter.getState(HOST));
+    }
+
+    @Test
+    public void attemptsThatCantBlockWaitInLine() throws IOException {
+        limiter = new HostLimiter(1, 1, 1);
+        HostLimiter.Permit permit = limiter.acquire(HOST, call(), 0);
+        Admission first = new Admission();
+        Admission second = new Admission();
+        HttpCall cancelled = call();
+        Admission third = new Admission();
+
+        assertNull(limiter.acquire(HOST, call(), 10000, first));
+        assertNull(limiter.acquire(HOST, call(), 10000, second));
+        assertNull(limiter.acquire(HOST, cancelled, 10000, third));
+        cancelled.cancel();
+        limiter.wake(HOST);
+        assertTrue(third.rejection instanceof RequestCancelledException);
+        assertNull(first.permit);
+
+        permit.release(200);
+        assertNotNull(first.permit);
+        assertNull(second.permit);
+        first.permit.abandon();
+        assertNotNull(second.permit);
+        assertEquals(1, limiter.getInFlight(HOST));
+    }
+
+    @Test
+    public void attemptsInLineGiveUpAfterTheirTimeout() throws Exception {
+        limiter = new HostLimiter(1, 1, 1);
+        limiter.acquire(HOST, call(), 0);
+        Admission admission = new Admission();
+        assertNull(limiter.acquire(HOST, call(), 20, admission));
+
+        Thread.sleep(30);
+        limiter.wake(HOST);
+
+        assertTrue(admission.rejection instanceof SocketTimeoutException);
+        assertEquals(1, limiter.getTimedOutCount());
+    }
+
+    @Test
+    public void openingCircuitFailsTheLine() throws IOException {
+        limiter = new HostLimiter(1, 1, 1);
+        limiter.setCircuit(50, 200, 2);
+        for (int i = 0; i < HostLimiter.DEFAULT_WINDOW_SIZE - 1; i++)
+            limiter.acquire(HOST, call(), 0).release(503);
+        HostLimiter.Permit last = limiter.acquire(HOST, call(), 0);
+        Admission admission = new Admission();
+        assertNull(limiter.acquire(HOST, call(), 10000, admission));
+
+        last.release(503);
+
+        assertEquals(HostLimiter.State.OPEN, limiter.getState(HOST));
+        assertTrue(admission.rejection instanceof CircuitOpenException);
+        assertEquals(0, limiter.getInFlight(HOST));
+    }
+
+    private void openCircuit() throws IOException {
+        for (int i = 0; i < HostLimiter.DEFAULT_WINDOW_SIZE; i++) {
+            assertSame(HostLimiter.State.CLOSED, limiter.getState(HOST));
+            limiter.acquire(HOST, call(), 0).release(i % 2 == 0 ? 500 : 200);
+        }
+        assertEquals(HostLimiter.State.OPEN, limiter.getState(HOST));
+    }
+
+    private static HttpCall call() throws IOException {
+        return new HttpCall(new URL("http://" + HOST + "/"), HttpMethod.GET) {
+            @Override
+            public void responseStream(InputStream stream) {
+            }
+        };
+    }
+
+    private static final class Admission implements HostLimiter.Admission {
+        HostLimiter.Permit permit;
+        IOException rejection;
+
+        @Override
+        public void onAdmitted(HostLimiter.Permit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onRejected(IOException e) {
+            rejection = e;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.acidforge.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs {@link Hpack} against the examples of RFC 7541 appendix C, each sequence decoded by a single
+ * decoder so the dynamic table carries over from one block to the next.
+ */
+public class HpackTest {
+
+    private static final String DATE_21 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_22 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    private static final String[][] REQUEST_1 = {
+            {":method", "GET"}, {":scheme", "http"}, {":path", "/"}, {":authority", "www.example.com"}
+    };
+    private static final String[][] REQUEST_2 = {
+            {":method", "GET"}, {":scheme", "http"}, {":path", "/"}, {":authority", "www.example.com"},
+            {"cache-control", "no-cache"}
+    };
+    private static final String[][] REQUEST_3 = {
+            {":method", "GET"}, {":scheme", "https"}, {":path", "/index.html"}, {":authority", "www.example.com"},
+            {"custom-key", "custom-value"}
+    };
+    private static final String[][] RESPONSE_1 = {
+            {":status", "302"}, {"cache-control", "private"}, {"date", DATE_21},
+            {"location", "https://www.example.com"}
+    };
+    private static final String[][] RESPONSE_2 = {
+            {":status", "307"}, {"cache-control", "private"}, {"date", DATE_21},
+            {"location", "https://www.example.com"}
+    };
+    private static final String[][] RESPONSE_3 = {
+            {":status", "200"}, {"cache-control", "private"}, {"date", DATE_22},
+            {"location", "https://www.example.com"}, {"content-encoding", "gzip"}, {"set-cookie", COOKIE}
+    };
+
+    // C.3, requests without Huffman coding
+    private static final String C_3_1 = "828684410f7777772e6578616d706c652e636f6d";
+    private static final String C_3_2 = "828684be58086e6f2d6361636865";
+    private static final String C_3_3 = "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565";
+
+    // C.4, requests with Huffman coding
+    private static final String C_4_1 = "828684418cf1e3c2e5f23a6ba0ab90f4ff";
+    private static final String C_4_2 = "828684be5886a8eb10649cbf";
+    private static final String C_4_3 = "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf";
+
+    // C.5, responses without Huffman coding
+    private static final String C_5_1 = "4803333032580770726976617465611d4d6f6e2c203231204f63742032303133"
+            + "2032303a31333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d";
+    private static final String C_5_2 = "4803333037c1c0bf";
+    private static final String C_5_3 = "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d"
+            + "54c05a04677a69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61"
+            + "782d6167653d333630303b2076657273696f6e3d31";
+
+    // C.6, responses with Huffman coding
+    private static final String C_6_1 = "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a6"
+            + "2d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3";
+    private static final String C_6_2 = "4883640effc1c0bf";
+    private static final String C_6_3 = "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab"
+            + "77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007";
+
+    @Test
+    public void decodesRequestsWithoutHuffmanCoding() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertHeaders(REQUEST_1, decoder.decode(bytes(C_3_1)));
+        assertHeaders(REQUEST_2, decoder.decode(bytes(C_3_2)));
+        assertHeaders(REQUEST_3, decoder.decode(bytes(C_3_3)));
+    }
+
+    @Test
+    public void decodesRequestsWithHuffmanCoding() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertHeaders(REQUEST_1, decoder.decode(bytes(C_4_1)));
+        assertHeaders(REQUEST_2, decoder.decode(bytes(C_4_2)));
+        assertHeaders(REQUEST_3, decoder.decode(bytes(C_4_3)));
+    }
+
+    @Test
+    public void decodesResponsesWithoutHuffmanCoding() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertHeaders(RESPONSE_1, decoder.decode(bytes(C_5_1)));
+        assertHeaders(RESPONSE_2, decoder.decode(bytes(C_5_2)));
+        assertHeaders(RESPONSE_3, decoder.decode(bytes(C_5_3)));
+    }
+
+    @Test
+    public void decodesResponsesWithHuffmanCoding() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertHeaders(RESPONSE_1, decoder.decode(bytes(C_6_1)));
+        assertHeaders(RESPONSE_2, decoder.decode(bytes(C_6_2)));
+        assertHeaders(RESPONSE_3, decoder.decode(bytes(C_6_3)));
+    }
+
+    /**
+     * The encoder prefers Huffman coding whenever it's shorter and indexes the authority and the
+     * new headers, which is what the examples of C.4 do.
+     */
+    @Test
+    public void encodesRequestsAsTheExamples() {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        assertArrayEquals(bytes(C_4_1), encode(encoder, REQUEST_1));
+        assertArrayEquals(bytes(C_4_2), encode(encoder, REQUEST_2));
+        assertArrayEquals(bytes(C_4_3), encode(encoder, REQUEST_3));
+    }
+
+    @Test
+    public void decodesWhatItEncodesAcrossTableSizeChanges() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        assertHeaders(RESPONSE_1, decoder.decode(encode(encoder, RESPONSE_1)));
+        // a 256 bytes table, as in C.5 and C.6, evicts the oldest entries
+        encoder.setMaxTableSize(256);
+        assertHeaders(RESPONSE_2, decoder.decode(encode(encoder, RESPONSE_2)));
+        assertHeaders(RESPONSE_3, decoder.decode(encode(encoder, RESPONSE_3)));
+        encoder.setMaxTableSize(0);
+        assertHeaders(RESPONSE_3, decoder.decode(encode(encoder, RESPONSE_3)));
+    }
+
+    @Test
+    public void neverIndexesCredentials() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        String[][] headers = {{"authorization", "Bearer secret"}};
+        byte[] first = encode(encoder, headers);
+        assertEquals(0x10, first[0] & 0xf0);
+        assertArrayEquals(first, encode(encoder, headers));
+        assertHeaders(headers, new Hpack.Decoder().decode(first));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsAnIndexBeyondTheTables() throws Exception {
+        new Hpack.Decoder().decode(bytes("be"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsATruncatedString() throws Exception {
+        new Hpack.Decoder().decode(bytes("410f7777"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsHuffmanPaddingOfZeros() throws Exception {
+        // "a" is 00011, padded with zeros instead of the most significant bits of EOS
+        Hpack.huffmanDecode(new byte[]{0x18}, 0, 1);
+    }
+
+    private static byte[] encode(Hpack.Encoder encoder, String[][] headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(Arrays.asList(headers), out);
+        return out.toByteArray();
+    }
+
+    private static void assertHeaders(String[][] expected, List<String[]> actual) {
+        List<List<String>> lists = new ArrayList<>();
+        for (String[] header : actual)
+            lists.add(Arrays.asList(header));
+        List<List<String>> expectedLists = new ArrayList<>();
+        for (String[] header : expected)
+            expectedLists.add(Arrays.asList(header));
+        assertEquals(expectedLists, lists);
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,205 @@
+package com.acidforge.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays the server of an {@link Http2Connection} over a loopback socket, and checks how much of a
+ * request body it lets through as the flow control windows change.
+ */
+public class Http2ConnectionTest {
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int PREFACE_LENGTH = 24;
+
+    private ServerSocket serverSocket;
+    private Socket server;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Http2Connection connection;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        server = serverSocket.accept();
+        server.setSoTimeout(5000);
+        in = new DataInputStream(server.getInputStream());
+        out = new DataOutputStream(server.getOutputStream());
+        connection = new Http2Connection(new Http2Engine(), "http://127.0.0.1", client);
+        in.readFully(new byte[PREFACE_LENGTH]);
+        assertEquals(TYPE_SETTINGS, readFrame().type);
+        assertEquals(TYPE_WINDOW_UPDATE, readFrame().type);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        connection.close(new IOException("Test done"));
+        server.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void streamWindowFollowsInitialWindowSizeChanges() throws Exception {
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 10);
+        Future<Void> request = send(100);
+        assertEquals(TYPE_HEADERS, readFrame().type);
+        assertData(10, false);
+
+        // growing the initial size grows the window of the open stream by the difference
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 30);
+        assertData(20, false);
+
+        // shrinking it below what was sent leaves the window negative
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 0);
+        windowUpdate(1, 25);
+        windowUpdate(1, 15);
+        assertData(10, false);
+
+        windowUpdate(1, 60);
+        assertData(60, true);
+        request.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void connectionWindowIgnoresInitialWindowSize() throws Exception {
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 1024 * 1024);
+        Future<Void> request = send(70000);
+        assertEquals(TYPE_HEADERS, readFrame().type);
+        int received = 0;
+        while (received < 65535)
+            received += assertData(-1, false);
+        assertEquals(65535, received);
+
+        // a larger initial size again doesn't open the connection window
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 2 * 1024 * 1024);
+        windowUpdate(0, 1000);
+        assertData(1000, false);
+
+        windowUpdate(0, 70000 - 65535 - 1000);
+        assertData(70000 - 65535 - 1000, true);
+        request.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void newStreamStartsWithTheCurrentInitialWindowSize() throws Exception {
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 5);
+        settings(SETTINGS_INITIAL_WINDOW_SIZE, 8);
+        Future<Void> request = send(8);
+        assertEquals(TYPE_HEADERS, readFrame().type);
+        assertData(8, true);
+        request.get(5, TimeUnit.SECONDS);
+    }
+
+    private Future<Void> send(final int bodyLength) {
+        final List<String[]> headers = Arrays.asList(new String[][]{
+                {":method", "POST"}, {":scheme", "http"}, {":authority", "127.0.0.1"}, {":path", "/"}
+        });
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Http2Stream stream = new Http2Stream(connection, new URL("http://127.0.0.1/"));
+                connection.newStream(stream, headers, new byte[bodyLength]);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sends a setting and waits for its acknowledgment, so it applies before the next frame.
+     */
+    private void settings(int id, int value) throws IOException {
+        byte[] payload = new byte[6];
+        payload[0] = (byte) (id >>> 8);
+        payload[1] = (byte) id;
+        putInt(payload, 2, value);
+        writeFrame(TYPE_SETTINGS, 0, 0, payload);
+        Frame ack = readFrame();
+        assertEquals(TYPE_SETTINGS, ack.type);
+        assertEquals(FLAG_ACK, ack.flags);
+    }
+
+    private void windowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    /**
+     * @param length The expected length of the frame, -1 for any.
+     * @return The length of the frame.
+     */
+    private int assertData(int length, boolean last) throws IOException {
+        Frame frame = readFrame();
+        assertEquals(TYPE_DATA, frame.type);
+        assertEquals(1, frame.streamId);
+        if (length >= 0)
+            assertEquals(length, frame.payload.length);
+        assertTrue(frame.payload.length > 0);
+        assertEquals(last, (frame.flags & FLAG_END_STREAM) != 0);
+        return frame.payload.length;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        out.write(payload.length >>> 16);
+        out.write(payload.length >>> 8);
+        out.write(payload.length);
+        out.write(type);
+        out.write(flags);
+        out.writeInt(streamId);
+        out.write(payload);
+        out.flush();
+    }
+
+    private Frame readFrame() throws IOException {
+        Frame frame = new Frame();
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        frame.type = in.readUnsignedByte();
+        frame.flags = in.readUnsignedByte();
+        frame.streamId = in.readInt() & 0x7fffffff;
+        frame.payload = new byte[length];
+        in.readFully(frame.payload);
+        return frame;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static final class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+}
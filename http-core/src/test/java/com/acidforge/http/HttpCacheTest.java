@@ -0,0 +1,172 @@
+package com.acidforge.http;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores responses in an {@link HttpCache} and checks their freshness, their revalidation and
+ * their eviction.
+ */
+public class HttpCacheTest {
+    private static final long NOW = 1500000000000L;
+    private static final long MINUTE = 60 * 1000;
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void freshnessFollowsMaxAgeThenExpiresThenLastModified() {
+        assertEquals(NOW + MINUTE, HttpCache.freshUntil(headers("Cache-Control", "public, max-age=60",
+                "Expires", HttpDate.format(NOW + 10 * MINUTE)), NOW));
+        assertEquals(NOW + 10 * MINUTE, HttpCache.freshUntil(headers("Date", HttpDate.format(NOW),
+                "Expires", HttpDate.format(NOW + 10 * MINUTE)), NOW));
+        // 10% of the time since the last modification
+        assertEquals(NOW + MINUTE, HttpCache.freshUntil(headers("Date", HttpDate.format(NOW),
+                "Last-Modified", HttpDate.format(NOW - 10 * MINUTE)), NOW));
+        assertEquals(0, HttpCache.freshUntil(headers("Date", HttpDate.format(NOW),
+                "Last-Modified", HttpDate.format(NOW - 10 * MINUTE), "Cache-Control", "must-revalidate"), NOW));
+        assertEquals(0, HttpCache.freshUntil(headers("Cache-Control", "no-cache, max-age=60"), NOW));
+        assertEquals(0, HttpCache.freshUntil(headers("Pragma", "no-cache"), NOW));
+        assertEquals(0, HttpCache.freshUntil(headers("Expires", "0"), NOW));
+    }
+
+    @Test
+    public void storesOnlyCompleteBodies() throws IOException {
+        HttpCache cache = new HttpCache(directory, 1024 * 1024, 64 * 1024);
+        URL url = new URL("http://example.com/partial");
+        InputStream stream = cache.put(url, headers("Cache-Control", "max-age=60"), new ByteArrayInputStream(body(100, 1)));
+        assertEquals(10, stream.read(new byte[10]));
+
+        assertNull(cache.get(url));
+        assertNull(cache.put(url, headers("Cache-Control", "max-age=60"), null));
+        assertNotStored(cache, new URL("http://example.com/no-store"), headers("Cache-Control", "no-store, max-age=60"));
+        assertNotStored(cache, new URL("http://example.com/vary"), headers("Cache-Control", "max-age=60", "Vary", "Cookie"));
+        assertNotStored(cache, new URL("http://example.com/stale"), headers("Cache-Control", "no-cache"));
+    }
+
+    @Test
+    public void revalidationWithoutFreshnessKeepsTheStoredLifetime() throws IOException {
+        HttpCache cache = new HttpCache(directory, 1024 * 1024, 0);
+        URL url = new URL("http://example.com/resource");
+        store(cache, url, body(100, 1), "Cache-Control", "max-age=60", "ETag", "\"1\"");
+        HttpCache.Entry entry = cache.get(url);
+        assertTrue(entry.isFresh());
+
+        InputStream body = cache.update(entry, headers("ETag", "\"2\"", "Date", HttpDate.format(System.currentTimeMillis())));
+
+        assertArrayEquals(body(100, 1), ByteStreams.toByteArray(body));
+        body.close();
+        assertEquals(1, cache.getRevalidationHitCount());
+        // the metadata is read again from the disk by a new cache
+        HttpCache.Entry updated = new HttpCache(directory, 1024 * 1024, 0).get(url);
+        assertEquals("\"2\"", updated.etag);
+        assertEquals(MINUTE, updated.lifetime);
+        assertTrue(updated.isFresh());
+        assertTrue(updated.freshUntil >= entry.freshUntil);
+    }
+
+    @Test
+    public void revalidationWithFreshnessReplacesTheStoredOne() throws IOException {
+        HttpCache cache = new HttpCache(directory, 1024 * 1024, 64 * 1024);
+        URL url = new URL("http://example.com/resource");
+        store(cache, url, body(100, 1), "Cache-Control", "max-age=60", "Last-Modified", HttpDate.format(NOW));
+
+        cache.update(cache.get(url), headers("Cache-Control", "no-cache")).close();
+        HttpCache.Entry entry = new HttpCache(directory, 1024 * 1024, 0).get(url);
+        assertFalse(entry.isFresh());
+        assertEquals(HttpDate.format(NOW), entry.lastModified);
+
+        cache.update(cache.get(url), headers("Cache-Control", "max-age=3600")).close();
+        assertEquals(60 * MINUTE, new HttpCache(directory, 1024 * 1024, 0).get(url).lifetime);
+    }
+
+    @Test
+    public void revalidationOfAnEvictedEntryReturnsNoBody() throws IOException {
+        HttpCache cache = new HttpCache(directory, 1024 * 1024, 0);
+        URL url = new URL("http://example.com/resource");
+        store(cache, url, body(100, 1), "Cache-Control", "max-age=60", "ETag", "\"1\"");
+        HttpCache.Entry entry = cache.get(url);
+        cache.remove(url);
+
+        assertNull(cache.update(entry, headers("ETag", "\"1\"")));
+        assertNull(cache.get(url));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() throws IOException {
+        HttpCache cache = new HttpCache(directory, 800, 0);
+        for (int i = 0; i < 8; i++)
+            store(cache, new URL("http://example.com/" + i), body(100, i), "Cache-Control", "max-age=60");
+        assertEquals(800, cache.getSize());
+        assertNotNull(cache.get(new URL("http://example.com/0")));
+
+        store(cache, new URL("http://example.com/8"), body(100, 8), "Cache-Control", "max-age=60");
+
+        assertEquals(800, cache.getSize());
+        assertArrayEquals(body(100, 0), ByteStreams.toByteArray(cache.get(new URL("http://example.com/0")).newInputStream()));
+        assertNull(cache.get(new URL("http://example.com/1")));
+        assertNotNull(cache.get(new URL("http://example.com/8")));
+        // bodies over an eighth of the cache are never stored
+        assertNotStored(cache, new URL("http://example.com/large"), headers("Cache-Control", "max-age=60"));
+        assertEquals(800, new HttpCache(directory, 800, 0).getSize());
+    }
+
+    private static void store(HttpCache cache, URL url, byte[] body, String... headers) throws IOException {
+        InputStream stream = cache.put(url, headers(headers), new ByteArrayInputStream(body));
+        assertArrayEquals(body, ByteStreams.toByteArray(stream));
+        stream.close();
+    }
+
+    private static void assertNotStored(HttpCache cache, URL url, Map<String, List<String>> headers) throws IOException {
+        InputStream stream = cache.put(url, headers, new ByteArrayInputStream(body(200, 0)));
+        ByteStreams.toByteArray(stream);
+        stream.close();
+        assertNull(cache.get(url));
+    }
+
+    private static Map<String, List<String>> headers(String... nameValues) {
+        Map<String, List<String>> headers = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2)
+            headers.put(nameValues[i], Arrays.asList(nameValues[i + 1]));
+        return headers;
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++)
+            body[i] = (byte) (seed + i);
+        return body;
+    }
+}
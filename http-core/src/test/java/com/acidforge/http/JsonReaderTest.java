@@ -0,0 +1,233 @@
+package com.acidforge.http;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads documents through {@link JsonReader}, whole and split at every position a slow network
+ * could split them, including the boundaries of its internal buffer.
+ */
+public class JsonReaderTest {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String DOCUMENT = "{\"escapes\":\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\","
+            + "\"unicode\":\"\\u00e9\\u4E2D\\ud83d\\ude00\","
+            + "\"nested\":[[1,[2,[3,[]]]],[],[[[]]],{\"a\":[true,false,null]}],"
+            + " \"numbers\" : [ 0 , -1, 1.5, -2.5e3, 1E2, 9223372036854775807 ],\n"
+            + "\t\"empty\":{}}";
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        assertEquals(expectedDocument(), new JsonReader(new StringReader(DOCUMENT)).readValue());
+    }
+
+    @Test
+    public void readsNestedArraysTokenByToken() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader("[[1,[2,[]]],[],[[\"x\"]]]"));
+        reader.beginArray();
+        reader.beginArray();
+        assertEquals(1, reader.nextInt());
+        reader.beginArray();
+        assertEquals(2L, reader.nextLong());
+        reader.beginArray();
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.endArray();
+        reader.endArray();
+        reader.beginArray();
+        assertEquals(JsonReader.Token.END_ARRAY, reader.peek());
+        reader.endArray();
+        reader.beginArray();
+        reader.beginArray();
+        assertEquals("x", reader.nextString());
+        reader.endArray();
+        reader.endArray();
+        reader.endArray();
+        assertEquals(JsonReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void readsDeeplyNestedArrays() throws IOException {
+        int depth = 1000;
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            document.append('[');
+        for (int i = 0; i < depth; i++)
+            document.append(']');
+        Object value = new JsonReader(new StringReader(document.toString())).readValue();
+        for (int i = 1; i < depth; i++)
+            value = ((List<?>) value).get(0);
+        assertEquals(Collections.emptyList(), value);
+    }
+
+    @Test
+    public void skipsNestedArrays() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader("[[1,[2,[3]],{\"a\":[4]}],5]"));
+        reader.beginArray();
+        reader.skipValue();
+        assertEquals(5, reader.nextInt());
+        reader.endArray();
+    }
+
+    @Test
+    public void readsTheSameWhereverTheInputIsSplit() throws IOException {
+        Object expected = expectedDocument();
+        for (int chunk = 1; chunk <= DOCUMENT.length(); chunk++)
+            assertEquals("chunks of " + chunk, expected, new JsonReader(new ChunkedReader(DOCUMENT, chunk)).readValue());
+    }
+
+    @Test
+    public void readsThroughEmptyReads() throws IOException {
+        assertEquals(expectedDocument(), new JsonReader(new ChunkedReader(DOCUMENT, 3, true)).readValue());
+    }
+
+    /**
+     * Moves an escape sequence across the end of the internal buffer one character at a time, so
+     * each of its characters in turn lands first in the next fill.
+     */
+    @Test
+    public void readsEscapesAcrossTheBufferBoundary() throws IOException {
+        String[] escapes = {"\\n", "\\\"", "\\u00e9", "\\ud83d\\ude00"};
+        String[] decoded = {"\n", "\"", "\u00e9", "\ud83d\ude00"};
+        for (int e = 0; e < escapes.length; e++) {
+            for (int shift = 0; shift <= escapes[e].length() + 1; shift++) {
+                StringBuilder padding = new StringBuilder();
+                // the opening bracket and quote come first
+                for (int i = 0; i < BUFFER_SIZE - 2 - shift; i++)
+                    padding.append('x');
+                String document = "[\"" + padding + escapes[e] + "tail\",12345]";
+                JsonReader reader = new JsonReader(new StringReader(document));
+                reader.beginArray();
+                assertEquals(escapes[e] + " shifted by " + shift, padding + decoded[e] + "tail", reader.nextString());
+                assertEquals(12345, reader.nextInt());
+                reader.endArray();
+            }
+        }
+    }
+
+    @Test
+    public void readsNumbersAcrossTheBufferBoundary() throws IOException {
+        for (int shift = 0; shift < 6; shift++) {
+            StringBuilder document = new StringBuilder("[");
+            for (int i = 0; i < BUFFER_SIZE - 2 - shift; i++)
+                document.append(' ');
+            document.append("-123.25e1]");
+            JsonReader reader = new JsonReader(new StringReader(document.toString()));
+            reader.beginArray();
+            assertEquals(-1232.5, reader.nextDouble(), 0);
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void rejectsInvalidEscapes() throws IOException {
+        assertSyntaxError("[\"a\\xb\"]", "Invalid escape sequence");
+        assertSyntaxError("[\"\\u00g9\"]", "Malformed unicode escape");
+        assertSyntaxError("[\"\\u00", "Unexpected end of document");
+        assertSyntaxError("[\"abc", "Unterminated string");
+    }
+
+    @Test
+    public void rejectsMalformedArrays() throws IOException {
+        assertSyntaxError("[1 2]", "Unterminated array");
+        assertSyntaxError("[1,", "Unexpected end of document");
+        JsonReader reader = new JsonReader(new StringReader("[1]]"));
+        reader.readValue();
+        try {
+            reader.peek();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Expected the end of the document"));
+        }
+    }
+
+    @Test
+    public void reportsTheOffsetOfErrorsAcrossFills() throws IOException {
+        JsonReader reader = new JsonReader(new ChunkedReader("[1,2,x]", 2));
+        reader.beginArray();
+        reader.nextInt();
+        reader.nextInt();
+        try {
+            reader.peek();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("at offset 6 of the JSON document"));
+        }
+    }
+
+    private static void assertSyntaxError(String document, String message) {
+        try {
+            new JsonReader(new ChunkedReader(document, 1)).readValue();
+            fail("Read " + document);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private static Map<String, Object> expectedDocument() {
+        Map<String, Object> document = new LinkedHashMap<>();
+        document.put("escapes", "a\"b\\c/d\b\f\n\r\t");
+        document.put("unicode", "\u00e9\u4e2d\ud83d\ude00");
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("a", Arrays.asList(true, false, null));
+        document.put("nested", Arrays.asList(
+                Arrays.asList(1L, Arrays.asList(2L, Arrays.asList(3L, new ArrayList<>()))),
+                new ArrayList<>(),
+                Arrays.asList(Arrays.asList(new ArrayList<>())),
+                object));
+        document.put("numbers", Arrays.<Object>asList(0L, -1L, 1.5, -2500.0, 100.0, Long.MAX_VALUE));
+        document.put("empty", new LinkedHashMap<>());
+        return document;
+    }
+
+    /**
+     * Hands the document out a few characters at a time, optionally with empty reads in between.
+     */
+    private static final class ChunkedReader extends Reader {
+        private final String document;
+        private final int chunk;
+        private final boolean emptyReads;
+        private int position;
+        private boolean empty;
+
+        ChunkedReader(String document, int chunk) {
+            this(document, chunk, false);
+        }
+
+        ChunkedReader(String document, int chunk, boolean emptyReads) {
+            this.document = document;
+            this.chunk = chunk;
+            this.emptyReads = emptyReads;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position == document.length())
+                return -1;
+            empty = emptyReads && !empty;
+            if (empty)
+                return 0;
+            int count = Math.min(Math.min(chunk, length), document.length() - position);
+            document.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.acidforge.http;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.net.MediaType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays {@link OutboundQueue} logs left by a crashed process and delivers them to a local
+ * server.
+ */
+public class OutboundQueueTest {
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    private File directory;
+    private HttpServer server;
+    private URL url;
+    private volatile int responseCode = 204;
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream body = exchange.getRequestBody();
+                received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + " "
+                        + exchange.getRequestHeaders().getFirst("Idempotency-Key") + " "
+                        + new String(ByteStreams.toByteArray(body), Charsets.UTF_8));
+                body.close();
+                exchange.sendResponseHeaders(responseCode, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void replaysTheLiveRequestsOfACrashedProcess() throws Exception {
+        File log = new File(directory, "queue.log");
+        Files.write(record("first", "PUT", "a", "one") + "\n"
+                + record("second", "POST", "b", "two") + "\n"
+                + "D\tfirst\n"
+                + record("third", "POST", "c", "three").substring(0, 20), log, Charsets.UTF_8);
+
+        OutboundQueue queue = OutboundQueue.forFile(log);
+        awaitDelivered(queue, 1);
+
+        assertEquals(1, received.size());
+        assertEquals("POST /b second two", received.get(0));
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void appendsAfterATornRecordTheRewriteCouldNotDrop() throws Exception {
+        responseCode = 503;
+        File log = new File(directory, "queue.log");
+        Files.write(record("first", "POST", "a", "one") + "\n"
+                + record("second", "POST", "b", "two").substring(0, 20), log, Charsets.UTF_8);
+        // the rewrite of the log on load fails, leaving the torn record in place
+        assertTrue(new File(directory, "queue.log.tmp").mkdir());
+
+        OutboundQueue queue = OutboundQueue.forFile(log);
+        queue.setMaxDelay(1, TimeUnit.HOURS);
+        queue.enqueue(HttpMethod.POST, new URL(url, "c"), MediaType.PLAIN_TEXT_UTF_8, bytes("three"));
+
+        List<String> lines = Files.readLines(log, Charsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).startsWith("A\tfirst\t"));
+        assertTrue(lines.get(1).startsWith("A\t"));
+        assertEquals(2, OutboundQueue.forFile(copy(log, "replayed.log")).getPendingCount());
+    }
+
+    @Test
+    public void newerRequestsReplaceTheWaitingOnes() throws Exception {
+        OutboundQueue queue = OutboundQueue.forFile(new File(directory, "queue.log"));
+        queue.setMaxDelay(1, TimeUnit.HOURS);
+        URL resource = new URL(url, "resource");
+        queue.enqueue(HttpMethod.PATCH, resource, MediaType.PLAIN_TEXT_UTF_8, bytes("patch"));
+        queue.enqueue(HttpMethod.PUT, resource, MediaType.PLAIN_TEXT_UTF_8, bytes("old"));
+        String put = queue.enqueue(HttpMethod.PUT, resource, MediaType.PLAIN_TEXT_UTF_8, bytes("new"));
+        queue.enqueue(HttpMethod.POST, new URL(url, "state"), MediaType.PLAIN_TEXT_UTF_8, bytes("1"), "state");
+        String state = queue.enqueue(HttpMethod.POST, new URL(url, "state"), MediaType.PLAIN_TEXT_UTF_8, bytes("2"), "state");
+        queue.enqueue(HttpMethod.PATCH, resource, MediaType.PLAIN_TEXT_UTF_8, bytes("kept"));
+
+        assertEquals(3, queue.getCoalescedCount());
+        assertEquals(3, queue.getPendingCount());
+
+        queue.setMethodOverride(true);
+        queue.flush();
+        awaitDelivered(queue, 3);
+
+        assertTrue(received.contains("PUT /resource " + put + " new"));
+        assertTrue(received.contains("POST /state " + state + " 2"));
+    }
+
+    @Test
+    public void deliveredRequestsLeaveTheLog() throws Exception {
+        File log = new File(directory, "queue.log");
+        OutboundQueue queue = OutboundQueue.forFile(log);
+        queue.setMaxDelay(1, TimeUnit.HOURS);
+        queue.enqueue(HttpMethod.POST, new URL(url, "a"), MediaType.PLAIN_TEXT_UTF_8, bytes("one"));
+        queue.enqueue(HttpMethod.POST, new URL(url, "b"), MediaType.PLAIN_TEXT_UTF_8, bytes("two"));
+        queue.flush();
+        awaitDelivered(queue, 2);
+
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(0, OutboundQueue.forFile(copy(log, "replayed.log")).getPendingCount());
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void failedRequestsStayInTheLog() throws Exception {
+        responseCode = 503;
+        File log = new File(directory, "queue.log");
+        OutboundQueue queue = OutboundQueue.forFile(log);
+        queue.setMaxDelay(1, TimeUnit.HOURS);
+        queue.enqueue(HttpMethod.POST, new URL(url, "a"), MediaType.PLAIN_TEXT_UTF_8, bytes("one"));
+        queue.flush();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (received.isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals(1, received.size());
+        assertEquals(0, queue.getDeliveredCount());
+        assertEquals(1, queue.getPendingCount());
+    }
+
+    private String record(String id, String method, String path, String body) throws IOException {
+        return "A\t" + id + "\t" + method + "\t" + new URL(url, path) + "\ttext/plain\t-\t"
+                + BaseEncoding.base64().encode(bytes(body));
+    }
+
+    private File copy(File log, String name) throws IOException {
+        File copy = new File(directory, name);
+        Files.copy(log, copy);
+        return copy;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(Charsets.UTF_8);
+    }
+
+    private static void awaitDelivered(OutboundQueue queue, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (queue.getDeliveredCount() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(count, queue.getDeliveredCount());
+    }
+}
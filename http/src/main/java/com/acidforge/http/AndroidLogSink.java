@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.util.Log;
+
+/***
+ * Sends the {@link HttpLog} to logcat.
+ */
+final class AndroidLogSink implements HttpLog.Sink {
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable error) {
+        if (priority >= HttpLog.ERROR)
+            Log.e(tag, message, error);
+        else
+            Log.d(tag, message, error);
+    }
+}
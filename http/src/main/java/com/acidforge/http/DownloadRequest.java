@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.content.Context;
+
+import java.io.InputStream;
+import java.net.URL;
+
+/***
+ * A request whose successful response body goes to a {@link ResponseSink} instead of an overriden
+ * {@link #responseStream(InputStream)}. The bytes transferred are published to
+ * {@link #onProgressUpdate(Object[])}.
+ */
+public class DownloadRequest extends HttpRequest {
+    private final ResponseSink responseSink;
+
+    /***
+     * Creates a download with the default {@link HttpMethod#GET} method.
+     * @param context The Android @see{@link Context}, may be the application, a service or an activity context.
+     * @param url An arbitrary @see{@link URL}
+     * @param responseSink The sink consuming the body, see {@link ResponseSinks}.
+     */
+    public DownloadRequest(Context context, URL url, ResponseSink responseSink) {
+        this(context, url, HttpMethod.GET, responseSink);
+    }
+
+    /***
+     * Creates a download with the specified {@link HttpMethod}
+     * @param context The Android @see{@link Context}, may be the application, a service or an activity context.
+     * @param url An arbitrary @see{@link URL}
+     * @param httpMethod An @see{@link HttpMethod} for the underlying request.
+     * @param responseSink The sink consuming the body, see {@link ResponseSinks}.
+     */
+    public DownloadRequest(Context context, URL url, HttpMethod httpMethod, ResponseSink responseSink) {
+        super(context, url, httpMethod);
+        if (responseSink == null)
+            throw new IllegalArgumentException("A download needs a response sink");
+        this.responseSink = responseSink;
+    }
+
+    @Override
+    public void responseStream(InputStream stream) throws Exception {
+        transfer(stream, responseSink);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/***
+ * Resolves the uri parts of requests against the BASE_URL and BASE_PORT preferences of the
+ * application. The base address is read once and refreshed when either preference changes, so
+ * building a request doesn't touch the preferences. Paths used often can be compiled into a
+ * {@link Template} whose parameters are filled in per request.
+ */
+public final class EndpointRegistry {
+
+    public static final String BASE_URL = "BASE_URL";
+    public static final String BASE_PORT = "BASE_PORT";
+    private static final int DEFAULT_PORT = 80;
+
+    private static EndpointRegistry sharedInstance;
+
+    private final SharedPreferences sharedPreferences;
+    /***
+     * Kept in a field since the preferences only hold their listeners weakly.
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener listener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (BASE_URL.equals(key) || BASE_PORT.equals(key))
+                        refresh();
+                }
+            };
+    private volatile String baseAddress;
+
+    private EndpointRegistry(Context context) {
+        sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        sharedPreferences.registerOnSharedPreferenceChangeListener(listener);
+        refresh();
+    }
+
+    /***
+     * @return The registry of the process, reading the default preferences of the context.
+     */
+    public static synchronized EndpointRegistry getInstance(Context context) {
+        if (sharedInstance == null)
+            sharedInstance = new EndpointRegistry(context);
+        return sharedInstance;
+    }
+
+    /***
+     * @return The scheme, host and port requests are resolved against, null if BASE_URL is undefined.
+     */
+    public String getBaseAddress() {
+        return baseAddress;
+    }
+
+    /***
+     * @param uriPart The path of the endpoint, starting with a slash.
+     * @return The absolute url of the endpoint.
+     * @throws UndefinedBaseUrlException If the BASE_URL preference is undefined.
+     */
+    public URL resolve(String uriPart) throws UndefinedBaseUrlException, MalformedURLException {
+        String base = baseAddress;
+        if (base == null)
+            throw new UndefinedBaseUrlException();
+        return new URL(base + uriPart);
+    }
+
+    /***
+     * Compiles a path with named parameters between braces, such as /users/{id}/posts.
+     * @param pathTemplate The path of the endpoint, starting with a slash.
+     * @return The template, safe to keep in a constant and share among threads.
+     */
+    public Template compile(String pathTemplate) {
+        return new Template(this, pathTemplate);
+    }
+
+    private void refresh() {
+        String host = sharedPreferences.getString(BASE_URL, null);
+        int port = sharedPreferences.getInt(BASE_PORT, DEFAULT_PORT);
+        baseAddress = host == null ? null : "https://" + host + ":" + port;
+    }
+
+    /***
+     * A path split once into its literal parts and parameters. Parameter values are escaped as
+     * path segments, so they can't alter the structure of the url.
+     */
+    public static final class Template {
+        private static final Escaper ESCAPER = UrlEscapers.urlPathSegmentEscaper();
+
+        private final EndpointRegistry registry;
+        private final String pathTemplate;
+        private final String[] literals;
+        private final List<String> parameters;
+        private final int literalLength;
+
+        private Template(EndpointRegistry registry, String pathTemplate) {
+            List<String> literalParts = new ArrayList<>();
+            List<String> parameterNames = new ArrayList<>();
+            int length = 0;
+            int start = 0;
+            int open;
+            while ((open = pathTemplate.indexOf('{', start)) != -1) {
+                int close = pathTemplate.indexOf('}', open);
+                if (close == -1)
+                    throw new IllegalArgumentException("Unclosed parameter in " + pathTemplate);
+                literalParts.add(pathTemplate.substring(start, open));
+                length += open - start;
+                parameterNames.add(pathTemplate.substring(open + 1, close));
+                start = close + 1;
+            }
+            literalParts.add(pathTemplate.substring(start));
+            length += pathTemplate.length() - start;
+            this.registry = registry;
+            this.pathTemplate = pathTemplate;
+            this.literals = literalParts.toArray(new String[literalParts.size()]);
+            this.parameters = Collections.unmodifiableList(parameterNames);
+            this.literalLength = length;
+        }
+
+        /***
+         * @return The parameter names, in order of appearance.
+         */
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        /***
+         * @param values The value of each parameter, in order of appearance.
+         * @return The absolute url of the endpoint.
+         * @throws UndefinedBaseUrlException If the BASE_URL preference is undefined.
+         */
+        public URL expand(Object... values) throws UndefinedBaseUrlException, MalformedURLException {
+            if (values.length != parameters.size())
+                throw new IllegalArgumentException(String.format(Locale.ENGLISH, "%s takes %d parameters, got %d",
+                        pathTemplate, parameters.size(), values.length));
+            String base = registry.baseAddress;
+            if (base == null)
+                throw new UndefinedBaseUrlException();
+            StringBuilder builder = new StringBuilder(base.length() + literalLength + 16 * values.length);
+            builder.append(base).append(literals[0]);
+            for (int i = 0; i < values.length; i++)
+                builder.append(ESCAPER.escape(String.valueOf(values[i]))).append(literals[i + 1]);
+            return new URL(builder.toString());
+        }
+
+        @Override
+        public String toString() {
+            return pathTemplate;
+        }
+    }
+}
@@ -16,122 +16,92 @@ package com.acidforge.http;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.io.File;
 import java.net.HttpCookie;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public final class HttpCookieStore {
-    private Map<URI, List<HttpCookie>> mapCookies = new HashMap<>();
-    private final SharedPreferences spePreferences;
+/***
+ * The {@link CookieJar} of the application, kept in a {@link CookieJournal} in its files directory.
+ * Mutations are written behind in batches. Use {@link #getInstance(Context)} to share one jar
+ * among every request of the process.
+ */
+public final class HttpCookieStore extends CookieJar {
 
-    @SuppressWarnings("unchecked")
-    public HttpCookieStore(Context ctxContext) {
-        spePreferences = ctxContext.getSharedPreferences("CookiePrefsFile", 0);
-        Map<String, ?> prefsMap = spePreferences.getAll();
-        for (Map.Entry<String, ?> entry : prefsMap.entrySet()) {
-            for (String strCookie : (HashSet<String>) entry.getValue()) {
-                if (!mapCookies.containsKey(entry.getKey())) {
-                    List<HttpCookie> lstCookies = new ArrayList<>();
-                    lstCookies.addAll(HttpCookie.parse(strCookie));
-                    try {
-                        mapCookies.put(new URI(entry.getKey()), lstCookies);
-                    } catch (URISyntaxException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    List<HttpCookie> lstCookies = mapCookies.get(entry.getKey());
-                    lstCookies.addAll(HttpCookie.parse(strCookie));
-                    try {
-                        mapCookies.put(new URI(entry.getKey()), lstCookies);
-                    } catch (URISyntaxException e) {
-                        e.printStackTrace();
-                    }
+    private static final String JOURNAL_FILE = "http_cookies.journal";
+    private static HttpCookieStore sharedInstance;
 
-                }
-            }
-        }
-    }
+    private final Context ctxContext;
+    private final CookieJournal jouJournal;
 
-    /*
-     * @see java.net.CookieStore#add(java.net.URI, java.net.HttpCookie)
+    /***
+     * Creates a jar backed by the application journal. Nothing is read from disk until the jar is
+     * first used.
+     * @param ctxContext Any context of the application.
      */
-    public void add(URI uri, HttpCookie cookie) {
-        System.out.println("add");
-        System.out.println(cookie.toString());
-        List<HttpCookie> cookies = mapCookies.get(uri);
-        if (cookies == null) {
-            cookies = new ArrayList<HttpCookie>();
-            mapCookies.put(uri, cookies);
-        }
-        cookies.add(cookie);
-        SharedPreferences.Editor ediWriter = spePreferences.edit();
-        HashSet<String> setCookies = new HashSet<>();
-        setCookies.add(cookie.toString());
-        ediWriter.putStringSet(uri.toString(), spePreferences.getStringSet(uri.toString(), setCookies));
-        ediWriter.commit();
-
+    public HttpCookieStore(Context ctxContext) {
+        this(applicationContext(ctxContext), JOURNAL_FILE);
     }
 
-
-    /*
-     * @see java.net.CookieStore#get(java.net.URI)
-     */
-    public List<HttpCookie> get(URI uri) {
-        List<HttpCookie> lstCookies = mapCookies.get(uri);
-        if (lstCookies == null)
-            mapCookies.put(uri, new ArrayList<HttpCookie>());
-        return mapCookies.get(uri);
+    private HttpCookieStore(Context appContext, CookieJournal jouJournal) {
+        super(jouJournal);
+        this.ctxContext = appContext;
+        this.jouJournal = jouJournal;
     }
 
-    /*
-     * @see java.net.CookieStore#removeAll()
-     */
-    public boolean removeAll() {
-        SharedPreferences.Editor ediWriter = spePreferences.edit();
-        Map<String, ?> all = spePreferences.getAll();
-        for (String k : all.keySet())
-            ediWriter.remove(k);
-        ediWriter.commit();
-        mapCookies.clear();
-        return true;
+    private HttpCookieStore(Context appContext, String journalName) {
+        this(appContext, CookieJournal.forFile(new File(appContext.getFilesDir(), journalName)));
     }
 
-    /*
-     * @see java.net.CookieStore#getCookies()
+    /***
+     * @param ctxContext Any context of the application.
+     * @return The jar shared by every request of the process.
      */
-    public List<HttpCookie> getCookies() {
-        Collection<List<HttpCookie>> values = mapCookies.values();
-        List<HttpCookie> result = new ArrayList<>();
-        for (List<HttpCookie> value : values) {
-            result.addAll(value);
-        }
-
-        return result;
-
+    public static synchronized HttpCookieStore getInstance(Context ctxContext) {
+        if (sharedInstance == null)
+            sharedInstance = new HttpCookieStore(ctxContext);
+        return sharedInstance;
     }
 
-    /*
-     * @see java.net.CookieStore#getURIs()
-     */
-    public List<URI> getURIs() {
-        Set<URI> keys = mapCookies.keySet();
-        return new ArrayList<>(keys);
+    private static Context applicationContext(Context ctxContext) {
+        Context appContext = ctxContext.getApplicationContext();
+        return appContext != null ? appContext : ctxContext;
     }
 
-    /*
-     * @see java.net.CookieStore#remove(java.net.URI, java.net.HttpCookie)
+    /***
+     * Moves the cookies written by previous versions to the journal.
      */
-    public boolean remove(URI uri, HttpCookie cookie) {
-        List<HttpCookie> lstCookies = mapCookies.get(uri);
-        if (lstCookies == null)
-            return false;
-        return lstCookies.remove(cookie);
+    @Override
+    void importCookies() {
+        if (jouJournal.exists())
+            return;
+        SharedPreferences spePreferences = ctxContext.getSharedPreferences("CookiePrefsFile", 0);
+        Map<String, ?> prefsMap = spePreferences.getAll();
+        if (prefsMap.isEmpty())
+            return;
+        for (Map.Entry<String, ?> entry : prefsMap.entrySet()) {
+            if (!(entry.getValue() instanceof Set))
+                continue;
+            URI uriOrigin;
+            try {
+                uriOrigin = new URI(entry.getKey());
+            } catch (URISyntaxException e) {
+                e.printStackTrace();
+                continue;
+            }
+            for (Object strCookie : (Set<?>) entry.getValue()) {
+                try {
+                    for (HttpCookie cookie : HttpCookie.parse(strCookie.toString()))
+                        store(uriOrigin, cookie, true);
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        forget();
+        jouJournal.flush();
+        spePreferences.edit().clear().commit();
     }
 }
@@ -14,9 +14,9 @@
 package com.acidforge.http;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.AsyncTask;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.common.net.MediaType;
@@ -24,29 +24,34 @@ import com.google.common.net.MediaType;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpCookie;
 import java.net.HttpURLConnection;
-import java.net.ProtocolException;
-import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 
 /***
  * An enclosing HttpRequest to send and receive data through Http protocol.
- *
+ * The request itself is run by an {@link HttpCall}, this class adapts it to an {@link AsyncTask}
+ * so the result is delivered to {@link #onPostExecute(Integer)} and the progress to
+ * {@link #onProgressUpdate(Object[])} on the main thread, and shares the cookies of the
+ * application through the {@link HttpCookieStore}.
  */
 public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
 
     /***
      * User agent defined in the http header request.
      */
-    public static final String USER_AGENT = "AcidForge.Http/1.0";
+    public static final String USER_AGENT = HttpCall.USER_AGENT;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static {
+        HttpLog.setPlatformSink(new AndroidLogSink());
+    }
+
     /***
-     * The underlying connection.
+     * The underlying connection, set before the response callbacks run.
      */
     protected HttpURLConnection urlConnection;
     /***
@@ -59,16 +64,7 @@ public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
      */
     protected SSLContext sslContext;
     protected HttpCookieStore cookieStore;
-    private String address;
-    private MediaType requestMediaType = MediaType.JSON_UTF_8;
-    private MediaType responseMediaType = MediaType.JSON_UTF_8;
-
-    private int connectionTimeOut = 15000;
-    private int readTimeOut = 60 * 3 * 1000;
-
-    private String method = "get";
-    private HttpMethod httpMethod;
-    private URL url;
+    private final Call call;
 
     /***
      * Creates a request for Json IO with the default {@link HttpMethod#GET} method.
@@ -76,10 +72,7 @@ public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
      * @param url An arbitrary @see{@link URL}
      */
     public HttpRequest(Context context, URL url) {
-        this.context = context;
-        this.url = url;
-        this.httpMethod = HttpMethod.GET;
-        this.cookieStore = new HttpCookieStore(context);
+        this(context, url, HttpMethod.GET);
     }
 
     /***
@@ -91,8 +84,9 @@ public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
      *                   and the request won't go any further.
      */
     public HttpRequest(Context context, URL url, HttpMethod httpMethod) {
-        this(context, url);
-        this.httpMethod = httpMethod;
+        this.context = context;
+        this.call = new Call(url, httpMethod);
+        this.cookieStore = HttpCookieStore.getInstance(context);
     }
 
     /***
@@ -103,202 +97,335 @@ public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
      *                for the context in use.
      */
     public HttpRequest(Context context, String uriPart) {
-        this.context = context;
-        try {
-            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-            String baseAddress = sharedPreferences.getString("BASE_URL", null);
-            Integer port = sharedPreferences.getInt("BASE_PORT", 80);
-            if (baseAddress == null)
-                throw new UndefinedBaseUrlException();
-            this.url = new URL(String.format(Locale.ENGLISH, "%s://%s:%d%s", "https", baseAddress, port, uriPart));
-        } catch (Exception ex) {
-            Log.d("HttpRequest", ex.getLocalizedMessage());
-        }
-        this.httpMethod = HttpMethod.GET;
-        this.cookieStore = new HttpCookieStore(context);
+        this(context, uriPart, HttpMethod.GET);
     }
 
     /***
-     * Creates a request for Json IO with the default {@link HttpMethod#GET} method.
+     * Creates a request for Json IO with the specified {@link HttpMethod}
      * @param context The Android @see{@link Context}, may be the application, a service or an activity context.
      * @param uriPart The sub-part of uri address, usually a subdirectory or domain. To use
      *                this constructor you must define a BASE_URL and a BASE_PORT
-     *                for the context in use.
+     *                for the context in use, see {@link EndpointRegistry}.
+     * @param httpMethod An @see{@link HttpMethod} for the underlying request.
      */
     public HttpRequest(Context context, String uriPart, HttpMethod httpMethod) {
-        this.context = context;
+        this(context, resolve(context, uriPart), httpMethod);
+    }
+
+    private static URL resolve(Context context, String uriPart) {
         try {
-            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-            String baseAddress = sharedPreferences.getString("BASE_URL", null);
-            Integer port = sharedPreferences.getInt("BASE_PORT", 80);
-            if (baseAddress == null)
-                throw new UndefinedBaseUrlException();
-            this.url = new URL(String.format(Locale.ENGLISH, "%s://%s:%d%s", "https", baseAddress, port, uriPart));
+            return EndpointRegistry.getInstance(context).resolve(uriPart);
         } catch (Exception ex) {
             Log.d("HttpRequest", ex.getLocalizedMessage());
+            return null;
         }
-        this.httpMethod = HttpMethod.GET;
-        this.cookieStore = new HttpCookieStore(context);
     }
 
     /***
-     * Overrides the default request media type.
-     * @param requestType MimeType to be used upon the request
+     * @return The call running this request, with the ssl context and the cookie store of the request.
      */
-    public void setRequestMediaType(MediaType requestType) {
-        this.requestMediaType = requestType;
+    public HttpCall getCall() {
+        call.setSslContext(sslContext);
+        call.setCookieJar(cookieStore);
+        return call;
+    }
 
+    /***
+     * @see HttpCall#setRequestMediaType(MediaType)
+     */
+    public void setRequestMediaType(MediaType requestType) {
+        call.setRequestMediaType(requestType);
     }
 
     /***
-     * Overrides the default response media type.
-     * @param responseType MimeType to be used upon the response
+     * @see HttpCall#setResponseMediaType(MediaType)
      */
     public void setResponseMediaType(MediaType responseType) {
-        this.responseMediaType = responseType;
+        call.setResponseMediaType(responseType);
     }
 
     /***
-     * Overrides the default request time out that is 15seconds.
-     * @param connectionTimeOut Integer representing time in millis.
+     * @see HttpCall#setDecoders(ResponseDecoders)
+     */
+    public void setDecoders(ResponseDecoders decoders) {
+        call.setDecoders(decoders);
+    }
+
+    /***
+     * @see HttpCall#setConnectionTimeOut(int)
      */
     public void setConnectionTimeOut(int connectionTimeOut) {
-        this.connectionTimeOut = connectionTimeOut;
+        call.setConnectionTimeOut(connectionTimeOut);
     }
 
     /***
-     * Overrides the default read time out that is 3m.
-     * @param readTimeOut Integer representing time in millis.
+     * @see HttpCall#setReadTimeOut(int)
      */
     public void setReadTimeOut(int readTimeOut) {
-        this.readTimeOut = readTimeOut;
+        call.setReadTimeOut(readTimeOut);
     }
 
     /***
-     * Defines if the connection will be encrypted by a SSL layer.
-     * @see{@link SSLContext}
-     * @param sslContext
+     * @see HttpCall#setSslContext(SSLContext)
      */
     public void setSslContext(SSLContext sslContext) {
         this.sslContext = sslContext;
     }
 
-    @Override
-    protected Integer doInBackground(Void... params) {
-        //<editor-fold desc="Opens the underlying connection to start trading">
-        try {
-            if (url == null)
-                throw new UndefinedUrlException();
-            if (sslContext != null) {
-                urlConnection = (HttpsURLConnection) url.openConnection();
-                ((HttpsURLConnection) urlConnection).setSSLSocketFactory(sslContext.getSocketFactory());
-            } else {
-                urlConnection = (HttpURLConnection) url.openConnection();
-            }
-        } catch (Exception e) {
-            Log.e("HttpRequest", e.getLocalizedMessage(), e);
-            return 0;
-        }
-        //</editor-fold>
+    /***
+     * @see HttpCall#setConnectionPool(ConnectionPool)
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        call.setConnectionPool(connectionPool);
+    }
 
-        urlConnection.setRequestProperty("User-Agent", USER_AGENT);
-        urlConnection.setRequestProperty("Content-Type", requestMediaType.toString());
-        urlConnection.setConnectTimeout(connectionTimeOut);
-        urlConnection.setReadTimeout(readTimeOut);
-        try {
-            urlConnection.setRequestMethod(httpMethod.toString());
-        } catch (ProtocolException e) {
-            Log.e("HttpRequest", e.getLocalizedMessage(), e);
-            return 0;
-        } catch (Exception e) {
-            Log.e("HttpRequest", e.getLocalizedMessage(), e);
-            return 0;
-        }
-        int responseCode = 0;
-        try {
-            attachCookies(urlConnection);
-            urlConnection.setDoOutput(httpMethod.equals(HttpMethod.POST));
-            if (urlConnection.getDoOutput())
-                requestStream(urlConnection.getOutputStream());
-            responseCode = urlConnection.getResponseCode();
-            readCookies(urlConnection);
-            if (responseCode == 200)
-                responseStream(urlConnection.getInputStream());
-            else
-                errorStream(urlConnection.getErrorStream());
-        } catch (IOException e) {
-            Log.e("HttpRequest", e.getLocalizedMessage(), e);
-        } catch (Exception e) {
-            Log.e("HttpRequest", e.getLocalizedMessage(), e);
-        } finally {
-            urlConnection.disconnect();
-            return responseCode;
-        }
+    /***
+     * @see HttpCall#setCache(HttpCache)
+     */
+    public void setCache(HttpCache cache) {
+        call.setCache(cache);
     }
 
-    private void attachCookies(HttpURLConnection httpURLConnection) {
-        try {
-            List<HttpCookie> cookieList = cookieStore.getCookies();
-            if (cookieList != null && cookieList.size() > 0) {
-                StringBuilder sb = new StringBuilder();
-                for (HttpCookie cookie : cookieList) {
-                    sb.append(cookie.toString());
-                    sb.append(";");
-                }
-                httpURLConnection.setRequestProperty("Cookie", sb.toString());
-            }
-        } catch (Exception e) {
-            Log.e("HttpRequest", e.getLocalizedMessage());
-        }
+    /***
+     * @see HttpCall#setCoalescer(RequestCoalescer)
+     */
+    public void setCoalescer(RequestCoalescer coalescer) {
+        call.setCoalescer(coalescer);
+    }
+
+    /***
+     * @see HttpCall#setRequestBody(RequestBody)
+     */
+    public void setRequestBody(RequestBody requestBody) {
+        call.setRequestBody(requestBody);
+    }
+
+    /***
+     * @see HttpCall#setBufferPool(BufferPool)
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        call.setBufferPool(bufferPool);
+    }
+
+    /***
+     * @see HttpCall#setRetryPolicy(RetryPolicy)
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        call.setRetryPolicy(retryPolicy);
+    }
+
+    /***
+     * @see HttpCall#setHostLimiter(HostLimiter)
+     */
+    public void setHostLimiter(HostLimiter hostLimiter) {
+        call.setHostLimiter(hostLimiter);
+    }
+
+    /***
+     * Reports the phases of the request, see {@link HttpMetrics} for a built-in aggregator. The
+     * events carry the {@link #getCall()} of the request.
+     * @param eventListener The listener, null to stop reporting.
+     */
+    public void setEventListener(EventListener eventListener) {
+        call.setEventListener(eventListener);
+    }
+
+    /***
+     * Looks the host up before connecting. Only a pre-lookup, the engine connects to its own
+     * answer, see {@link HttpCall#setDns(Dns)}.
+     */
+    public void setDns(Dns dns) {
+        call.setDns(dns);
+    }
+
+    /***
+     * Defines the engine opening the connection, {@link HttpEngine#URL_CONNECTION} unless set. See
+     * {@link #submit(NioEngine)} to run the request without holding a thread.
+     * @param engine The engine, null for the platform connection.
+     */
+    public void setEngine(HttpEngine engine) {
+        call.setEngine(engine);
+    }
+
+    /***
+     * @see HttpCall#setRequestHeader(String, String)
+     */
+    public void setRequestHeader(String name, String value) {
+        call.setRequestHeader(name, value);
+    }
+
+    /***
+     * @see HttpCall#setRequestCompression(boolean)
+     */
+    public void setRequestCompression(boolean requestCompression) {
+        call.setRequestCompression(requestCompression);
+    }
+
+    /***
+     * @see HttpCall#setMethodOverride(boolean)
+     */
+    public void setMethodOverride(boolean methodOverride) {
+        call.setMethodOverride(methodOverride);
+    }
+
+    public long getBytesSent() {
+        return call.getBytesSent();
+    }
+
+    public long getBytesSentUncompressed() {
+        return call.getBytesSentUncompressed();
+    }
+
+    public long getBytesReceived() {
+        return call.getBytesReceived();
+    }
+
+    public long getBytesReceivedUncompressed() {
+        return call.getBytesReceivedUncompressed();
+    }
+
+    /***
+     * @see HttpCall#setPriority(RequestPriority)
+     */
+    public void setPriority(RequestPriority priority) {
+        call.setPriority(priority);
+    }
+
+    public RequestPriority getPriority() {
+        return call.getPriority();
+    }
+
+    public URL getUrl() {
+        return call.getUrl();
+    }
+
+    public HttpMethod getHttpMethod() {
+        return call.getHttpMethod();
+    }
+
+    /***
+     * @see HttpCall#setDeadline(long, TimeUnit)
+     */
+    public void setDeadline(long timeout, TimeUnit unit) {
+        call.setDeadline(timeout, unit);
+    }
+
+    /***
+     * @see HttpCall#setCancellationGroup(CancellationGroup)
+     */
+    public void setCancellationGroup(CancellationGroup cancellationGroup) {
+        call.setCancellationGroup(cancellationGroup);
+    }
+
+    /***
+     * Cancels the task and aborts its socket right away. {@link #cancel(boolean)} alone is only
+     * noticed between the phases of the request and while reading the response.
+     */
+    public void abort() {
+        cancel(false);
+        call.cancel();
+    }
+
+    /***
+     * Submits this request to the default {@link RequestScheduler} instead of the
+     * {@link android.os.AsyncTask} serial executor used by {@link #execute(Object[])}.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> enqueue() {
+        return enqueue(RequestScheduler.getDefault());
+    }
+
+    /***
+     * Submits this request to the given {@link RequestScheduler}.
+     * @param scheduler The scheduler that will dispatch the request.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> enqueue(RequestScheduler scheduler) {
+        return enqueue(scheduler, null);
+    }
+
+    Future<Integer> enqueue(RequestScheduler scheduler, RequestScheduler.Callback callback) {
+        return scheduler.submit(getCall(), postResult(callback));
+    }
+
+    /***
+     * Runs this request on a {@link NioEngine} without holding a thread while it's in flight, see
+     * {@link NioEngine#submit(HttpCall)}.
+     * @param engine The engine sending the request.
+     * @return A future holding the http status code.
+     */
+    public Future<Integer> submit(NioEngine engine) {
+        return engine.submit(getCall(), postResult(null));
     }
 
-    private void readCookies(HttpURLConnection httpURLConnection) {
-        List<HttpCookie> cookieList;
-        List<String> cookies = httpURLConnection.getHeaderFields().get("Set-Cookie");
-        if (cookies != null) {
-            for (String cookieHeader : cookies) {
-                try {
-                    cookieList = HttpCookie.parse(cookieHeader);
-                    if (cookieList != null) {
-                        for (HttpCookie cookie : cookieList) {
-                            cookieStore.add(httpURLConnection.getURL().toURI(), cookie);
-                        }
+    /***
+     * Posts the result to {@link #onPostExecute(Integer)} once the given callback is notified.
+     */
+    private RequestScheduler.Callback postResult(final RequestScheduler.Callback callback) {
+        return new RequestScheduler.Callback() {
+            @Override
+            public void onComplete(HttpCall call, final int responseCode) {
+                if (callback != null)
+                    callback.onComplete(call, responseCode);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPostExecute(responseCode);
                     }
-                } catch (NullPointerException e) {
-                    Log.e("HttpRequest", e.getLocalizedMessage(), e);
-                    continue;
-                } catch (URISyntaxException e) {
-                    Log.e("HttpRequest", e.getLocalizedMessage(), e);
-                    continue;
-                } catch (Exception e) {
-                    Log.e("HttpRequest", e.getLocalizedMessage(), e);
-                    continue;
-                }
+                });
             }
-        }
+        };
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        return getCall().execute();
     }
 
     /***
-     * The request output stream. Must be overriden for
+     * The request output stream. Writes the {@link RequestBody} if one was set, otherwise must be
+     * overriden for POST. PUT and PATCH send an empty body unless overriden.
      * @param stream
-     * @throws IOException
+     * @throws Exception
      */
     public void requestStream(OutputStream stream) throws Exception {
-        if (httpMethod.equals(HttpMethod.POST))
-            throw new NotOverridenException();
+        call.defaultRequestStream(stream);
     }
 
     /***
-     * Reads the content from the connection asynchronously if there are no errors.
+     * Reads the content from the connection asynchronously if there are no errors, that is for any
+     * 2xx status including 206 Partial Content. {@link DownloadRequest} implements it with a {@link ResponseSink}.
      * @param stream The connection response stream if the connection is successfull.
      */
     public abstract void responseStream(InputStream stream) throws Exception;
 
+    /***
+     * @see HttpCall#transfer(InputStream, ResponseSink)
+     */
+    protected long transfer(InputStream stream, ResponseSink sink) throws IOException {
+        return call.transfer(stream, sink);
+    }
+
+    /***
+     * @see HttpCall#decode(InputStream, Class)
+     */
+    protected <T> T decode(InputStream stream, Class<T> type) throws IOException {
+        return call.decode(stream, type);
+    }
+
+    /***
+     * @see HttpCall#decodeElements(InputStream, Class, ResponseDecoder.ElementCallback)
+     */
+    protected <T> long decodeElements(InputStream stream, Class<T> elementType,
+                                      ResponseDecoder.ElementCallback<? super T> callback) throws IOException {
+        return call.decodeElements(stream, elementType, callback);
+    }
+
     /***
      * Reads an error stream from the connection asynchronously if there are errors.
      * Override this if you intend to capture the @see{@link HttpURLConnection#getErrorStream()}.
      * @param stream The error stream from the response.
-     * @throws IOException
+     * @throws Exception
      */
     public void errorStream(InputStream stream) throws Exception {
 
@@ -313,4 +440,45 @@ public abstract class HttpRequest extends AsyncTask<Void, Integer, Integer> {
         super.onPostExecute(result);
         Log.d("HttpRequest", String.format("Reponse code %d", result));
     }
+
+    /***
+     * Runs the request, calling back the stream methods of the enclosing request.
+     */
+    private final class Call extends HttpCall {
+
+        Call(URL url, HttpMethod httpMethod) {
+            super(url, httpMethod);
+        }
+
+        @Override
+        public void requestStream(OutputStream stream) throws Exception {
+            HttpRequest.this.requestStream(stream);
+        }
+
+        @Override
+        public void responseStream(InputStream stream) throws Exception {
+            HttpRequest.this.urlConnection = urlConnection;
+            HttpRequest.this.responseStream(stream);
+        }
+
+        @Override
+        public void errorStream(InputStream stream) throws Exception {
+            HttpRequest.this.urlConnection = urlConnection;
+            HttpRequest.this.errorStream(stream);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return super.isCancelled() || HttpRequest.this.isCancelled();
+        }
+
+        @Override
+        protected void onProgress(int bytesTransferred) {
+            publishProgress(bytesTransferred);
+        }
+
+        void defaultRequestStream(OutputStream stream) throws Exception {
+            super.requestStream(stream);
+        }
+    }
 }
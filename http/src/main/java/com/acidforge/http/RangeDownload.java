@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+/***
+ * Downloads a resource to a file with byte ranges, so an interrupted download resumes where it
+ * stopped instead of starting over.
+ * The progress is checkpointed to a state file next to the target, and running the download again
+ * requests only the missing ranges, guarded by If-Range so a resource changed in the meantime is
+ * fetched from scratch. Large resources may be split in segments fetched in parallel through a
+ * {@link RequestScheduler} and written in place in the target file.
+ * The progress published is the number of bytes on disk. The result is 200 once the file is
+ * complete, otherwise the failing status code, or 0 if the transfer broke.
+ * Since the task waits for its segments, run it with {@link #start()} rather than on the serial
+ * executor.
+ */
+public class RangeDownload extends AsyncTask<Void, Integer, Integer> {
+
+    /***
+     * Default minimum size of a segment, 1MiB.
+     */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long CHECKPOINT_MILLIS = 1000;
+    private static final long PROGRESS_STEP = 64 * 1024;
+
+    private final Context context;
+    private final URL url;
+    private final File target;
+    private final File stateFile;
+    private int segmentCount = 1;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private RequestScheduler scheduler;
+    private ConnectionPool connectionPool;
+    private SSLContext sslContext;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private final CancellationGroup cancellationGroup = new CancellationGroup();
+
+    private String validator;
+    private long contentLength = -1;
+    private List<Segment> segments = new ArrayList<>();
+    private FileChannel channel;
+    private volatile boolean resourceChanged;
+    private long lastCheckpoint;
+    private long lastPublished;
+
+    /***
+     * @param context The Android @see{@link Context} the requests are made with.
+     * @param url The resource to download.
+     * @param target The file receiving the resource. Its state file is the same path ending with ".state".
+     */
+    public RangeDownload(Context context, URL url, File target) {
+        this.context = context;
+        this.url = url;
+        this.target = target;
+        this.stateFile = new File(target.getPath() + ".state");
+    }
+
+    /***
+     * Splits resources supporting ranges in up to the given number of segments fetched in
+     * parallel. The scheduler per host limit caps how many actually run together.
+     * @param segmentCount The number of segments, 1 by default.
+     */
+    public void setSegmentCount(int segmentCount) {
+        if (segmentCount < 1)
+            throw new IllegalArgumentException("At least one segment is needed");
+        this.segmentCount = segmentCount;
+    }
+
+    /***
+     * @param minSegmentSize Size under which a resource isn't split further.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    /***
+     * @param scheduler The scheduler running the segments, {@link RequestScheduler#getDefault()} unless set.
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /***
+     * @param connectionPool The pool shared by the segment requests.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    /***
+     * @param sslContext The SSL context of the segment requests.
+     */
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /***
+     * @param bufferPool The pool of copy buffers, {@link BufferPool#getDefault()} unless set.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool == null ? BufferPool.getDefault() : bufferPool;
+    }
+
+    /***
+     * @return The size of the resource, -1 until known.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /***
+     * @return Bytes of the resource written to the target so far, including the ones of previous runs.
+     */
+    public long getBytesDownloaded() {
+        long total = 0;
+        for (Segment segment : segments)
+            total += segment.written.get();
+        return total;
+    }
+
+    /***
+     * Runs the download on {@link AsyncTask#THREAD_POOL_EXECUTOR}.
+     */
+    public RangeDownload start() {
+        executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return this;
+    }
+
+    /***
+     * Cancels the download and aborts its segment requests right away. The progress made so far
+     * is checkpointed, so starting a new download of the same file resumes it.
+     */
+    public void abort() {
+        cancel(false);
+        cancellationGroup.cancel();
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        if (scheduler == null)
+            scheduler = RequestScheduler.getDefault();
+        try {
+            int result = download();
+            if (result == 0 && resourceChanged) {
+                Log.d("RangeDownload", "The resource changed, downloading it again");
+                discardState();
+                resourceChanged = false;
+                result = download();
+            }
+            return result;
+        } catch (IOException e) {
+            Log.e("RangeDownload", e.getLocalizedMessage(), e);
+            return 0;
+        }
+    }
+
+    private int download() throws IOException {
+        if (!loadState()) {
+            int probeCode = probe();
+            if (probeCode < 200 || probeCode >= 300)
+                return probeCode;
+            plan();
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            channel = file.getChannel();
+            if (contentLength >= 0 && file.length() != contentLength)
+                file.setLength(contentLength);
+            lastCheckpoint = System.currentTimeMillis();
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (!segment.isComplete())
+                    futures.add(new SegmentRequest(segment).enqueue(scheduler));
+            }
+            int failureCode = 0;
+            for (Future<Integer> future : futures) {
+                try {
+                    int code = future.get();
+                    if ((code < 200 || code >= 300) && failureCode == 0)
+                        failureCode = code;
+                } catch (ExecutionException e) {
+                    Log.e("RangeDownload", e.getLocalizedMessage(), e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            channel.force(false);
+            boolean complete = !resourceChanged;
+            for (Segment segment : segments)
+                complete &= segment.isComplete();
+            if (complete && contentLength < 0)
+                file.setLength(segments.get(0).written.get());
+            publishProgress((int) Math.min(getBytesDownloaded(), Integer.MAX_VALUE));
+            if (complete) {
+                discardState();
+                return HttpURLConnection.HTTP_OK;
+            }
+            if (!resourceChanged)
+                saveState();
+            return failureCode;
+        } finally {
+            channel = null;
+            file.close();
+        }
+    }
+
+    /***
+     * Asks the server for the size and validator of the resource.
+     * @return The status code of the probe.
+     */
+    private int probe() {
+        HttpRequest request = new HttpRequest(context, url, HttpMethod.HEAD) {
+            @Override
+            public void responseStream(InputStream stream) throws Exception {
+                String etag = urlConnection.getHeaderField("ETag");
+                validator = etag != null && !etag.startsWith("W/") ? etag : urlConnection.getHeaderField("Last-Modified");
+                contentLength = -1;
+                if ("bytes".equalsIgnoreCase(urlConnection.getHeaderField("Accept-Ranges"))) {
+                    try {
+                        contentLength = Long.parseLong(urlConnection.getHeaderField("Content-Length"));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        };
+        configure(request);
+        return request.getCall().execute();
+    }
+
+    /***
+     * Splits the resource in segments. Without a known size, or without range support, the whole
+     * resource is a single segment fetched from the start.
+     */
+    private void plan() {
+        segments = new ArrayList<>();
+        if (contentLength < 0) {
+            segments.add(new Segment(0, -1, 0));
+            return;
+        }
+        long count = Math.max(1, Math.min(segmentCount, contentLength / minSegmentSize));
+        for (int i = 0; i < count; i++) {
+            long start = contentLength * i / count;
+            long end = contentLength * (i + 1) / count - 1;
+            segments.add(new Segment(start, end, 0));
+        }
+    }
+
+    private void configure(HttpRequest request) {
+        request.setCancellationGroup(cancellationGroup);
+        request.setRequestHeader("Accept-Encoding", "identity");
+        request.setConnectionPool(connectionPool);
+        request.setBufferPool(bufferPool);
+        if (sslContext != null)
+            request.setSslContext(sslContext);
+    }
+
+    /***
+     * Publishes the progress and checkpoints the state at most every {@link #CHECKPOINT_MILLIS}.
+     */
+    private void onSegmentProgress() {
+        if (isCancelled())
+            throw new CancellationException("The download was cancelled");
+        long downloaded = getBytesDownloaded();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (downloaded - lastPublished >= PROGRESS_STEP) {
+                lastPublished = downloaded;
+                publishProgress((int) Math.min(downloaded, Integer.MAX_VALUE));
+            }
+            if (now - lastCheckpoint >= CHECKPOINT_MILLIS) {
+                lastCheckpoint = now;
+                try {
+                    channel.force(false);
+                    saveState();
+                } catch (IOException e) {
+                    Log.e("RangeDownload", e.getLocalizedMessage(), e);
+                }
+            }
+        }
+    }
+
+    /***
+     * Reads the state of a previous run, provided it matches this download and its target.
+     * @return True if the download resumes from the state.
+     */
+    private boolean loadState() {
+        if (!stateFile.exists() || !target.exists())
+            return false;
+        String stateUrl = null;
+        String stateValidator = null;
+        long stateLength = -1;
+        List<Segment> stateSegments = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), Charsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 2);
+                    if (fields.length < 2)
+                        continue;
+                    if (fields[0].equals("url")) {
+                        stateUrl = fields[1];
+                    } else if (fields[0].equals("validator")) {
+                        stateValidator = fields[1];
+                    } else if (fields[0].equals("length")) {
+                        stateLength = Long.parseLong(fields[1]);
+                    } else if (fields[0].equals("segment")) {
+                        String[] bounds = fields[1].split(" ");
+                        stateSegments.add(new Segment(Long.parseLong(bounds[0]), Long.parseLong(bounds[1]),
+                                Long.parseLong(bounds[2])));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d("RangeDownload", "Ignoring an unreadable download state");
+            return false;
+        }
+        if (!url.toString().equals(stateUrl) || stateValidator == null || stateLength < 0
+                || stateSegments.isEmpty() || target.length() != stateLength)
+            return false;
+        validator = stateValidator;
+        contentLength = stateLength;
+        segments = stateSegments;
+        return true;
+    }
+
+    /***
+     * Persists the progress, replacing the previous state atomically. Resuming needs a validator
+     * for If-Range, so downloads without one are never checkpointed.
+     */
+    private synchronized void saveState() throws IOException {
+        if (validator == null || contentLength < 0)
+            return;
+        File temporary = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporary);
+        try {
+            Writer writer = new OutputStreamWriter(stream, Charsets.UTF_8);
+            writer.write("url " + url + "\n");
+            writer.write("validator " + validator + "\n");
+            writer.write("length " + contentLength + "\n");
+            for (Segment segment : segments)
+                writer.write("segment " + segment.start + " " + segment.end + " " + segment.written.get() + "\n");
+            writer.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!temporary.renameTo(stateFile))
+            throw new IOException("Unable to save the download state to " + stateFile);
+    }
+
+    private synchronized void discardState() {
+        stateFile.delete();
+    }
+
+    /***
+     * A contiguous part of the resource, its bounds inclusive. An end of -1 stands for the end of
+     * a resource of unknown size.
+     */
+    private static final class Segment {
+        final long start;
+        final long end;
+        final AtomicLong written;
+        volatile boolean finished;
+
+        Segment(long start, long end, long written) {
+            this.start = start;
+            this.end = end;
+            this.written = new AtomicLong(written);
+        }
+
+        boolean isComplete() {
+            return end >= 0 ? start + written.get() > end : finished;
+        }
+    }
+
+    /***
+     * Fetches the missing part of a segment and writes it in place.
+     */
+    private final class SegmentRequest extends HttpRequest {
+        private final Segment segment;
+        private final long offset;
+
+        SegmentRequest(Segment segment) {
+            super(RangeDownload.this.context, RangeDownload.this.url);
+            this.segment = segment;
+            this.offset = segment.start + segment.written.get();
+            configure(this);
+            if (segment.end >= 0) {
+                setRequestHeader("Range", "bytes=" + offset + "-" + segment.end);
+                if (validator != null)
+                    setRequestHeader("If-Range", validator);
+            }
+        }
+
+        @Override
+        public void responseStream(InputStream stream) throws Exception {
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = urlConnection.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-"))
+                    throw new IOException("Unexpected range " + contentRange + " for offset " + offset);
+            } else if (offset != 0 || segment.end >= 0 && segments.size() > 1) {
+                // the resource changed or the server ignored the range, this content doesn't fit
+                resourceChanged = true;
+                return;
+            }
+            ResponseSinks.toChannel(channel, offset).consume(stream, bufferPool, new ResponseSink.Progress() {
+                @Override
+                public void onProgress(long bytesTransferred) {
+                    segment.written.set(offset - segment.start + bytesTransferred);
+                    onSegmentProgress();
+                }
+            });
+            segment.finished = true;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Acidforge Team
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.acidforge.http;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Runs a collection of {@link HttpRequest}s as a single job, for instance to sync a list of
+ * entities. The requests run on a scheduler of their own bounded by a global and a per host limit,
+ * share a {@link ConnectionPool}, and report to a single {@link Listener} on the main thread.
+ */
+public final class RequestBatch {
+
+    /***
+     * Receives the results of a batch on the main thread.
+     */
+    public interface Listener {
+        /***
+         * Called once per request, in submission order if the batch is ordered, otherwise as the
+         * requests complete.
+         * @param index The position of the request in the batch.
+         * @param request The finished request.
+         * @param responseCode The http status code, 0 if the request failed before receiving one.
+         */
+        void onResult(int index, HttpRequest request, int responseCode);
+
+        /***
+         * Called once after the last result.
+         */
+        void onComplete(Summary summary);
+    }
+
+    /***
+     * The outcome of a whole batch.
+     */
+    public static final class Summary {
+        private final int[] responseCodes;
+        private final long elapsedMillis;
+
+        Summary(int[] responseCodes, long elapsedMillis) {
+            this.responseCodes = responseCodes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getCount() {
+            return responseCodes.length;
+        }
+
+        /***
+         * @return How many requests got a 2xx status.
+         */
+        public int getSuccessCount() {
+            int count = 0;
+            for (int responseCode : responseCodes) {
+                if (responseCode >= 200 && responseCode < 300)
+                    count++;
+            }
+            return count;
+        }
+
+        public int getFailureCount() {
+            return responseCodes.length - getSuccessCount();
+        }
+
+        /***
+         * @param index The position of a request in the batch.
+         * @return Its status code, 0 if it failed before receiving one.
+         */
+        public int getResponseCode(int index) {
+            return responseCodes[index];
+        }
+
+        /***
+         * @return The number of requests per status code, in ascending code order.
+         */
+        public Map<Integer, Integer> getStatusCounts() {
+            Map<Integer, Integer> counts = new TreeMap<>();
+            for (int responseCode : responseCodes) {
+                Integer count = counts.get(responseCode);
+                counts.put(responseCode, count == null ? 1 : count + 1);
+            }
+            return counts;
+        }
+
+        /***
+         * @return Time from the start of the batch to its last result.
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format(Locale.ENGLISH, "%d requests in %d ms:",
+                    responseCodes.length, elapsedMillis));
+            for (Map.Entry<Integer, Integer> entry : getStatusCounts().entrySet())
+                builder.append(String.format(Locale.ENGLISH, " %d x%d", entry.getKey(), entry.getValue()));
+            return builder.toString();
+        }
+    }
+
+    private final List<HttpRequest> requests;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CountDownLatch completion = new CountDownLatch(1);
+    private int maxRequests = RequestScheduler.DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = RequestScheduler.DEFAULT_MAX_REQUESTS_PER_HOST;
+    private boolean ordered;
+    private ConnectionPool connectionPool;
+    private Listener listener;
+    private RequestScheduler scheduler;
+    private final CancellationGroup cancellationGroup = new CancellationGroup();
+    private int[] responseCodes;
+    private boolean[] finished;
+    private int nextDelivery;
+    private int remaining;
+    private long startTime;
+    private Summary summary;
+
+    /***
+     * @param requests The requests of the batch, each one runs once.
+     */
+    public RequestBatch(Collection<? extends HttpRequest> requests) {
+        this.requests = Collections.unmodifiableList(new ArrayList<>(requests));
+    }
+
+    /***
+     * @param maxRequests Maximum of requests of the batch running at once.
+     */
+    public void setMaxRequests(int maxRequests) {
+        if (maxRequests < 1)
+            throw new IllegalArgumentException("Request limits must be positive");
+        this.maxRequests = maxRequests;
+    }
+
+    /***
+     * @param maxRequestsPerHost Maximum of requests of the batch running at once against a single host.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1)
+            throw new IllegalArgumentException("Request limits must be positive");
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    /***
+     * @param ordered True to deliver the results in submission order, holding back the ones that
+     *                complete early. False by default.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /***
+     * Shares a pool among the requests of the batch, {@link ConnectionPool#getDefault()} unless set.
+     * @param connectionPool The pool, applied to every request on start.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public List<HttpRequest> getRequests() {
+        return requests;
+    }
+
+    /***
+     * Starts every request of the batch. A batch can only be started once.
+     * @return This batch, to wait on with {@link #await()}.
+     */
+    public RequestBatch start() {
+        synchronized (this) {
+            if (responseCodes != null)
+                throw new IllegalStateException("The batch was already started");
+            responseCodes = new int[requests.size()];
+            finished = new boolean[requests.size()];
+            remaining = requests.size();
+            startTime = System.currentTimeMillis();
+        }
+        if (requests.isEmpty()) {
+            complete();
+            return this;
+        }
+        if (connectionPool == null)
+            connectionPool = ConnectionPool.getDefault();
+        scheduler = new RequestScheduler(maxRequests, maxRequestsPerHost);
+        for (int i = 0; i < requests.size(); i++) {
+            final int index = i;
+            HttpRequest request = requests.get(i);
+            request.setConnectionPool(connectionPool);
+            request.setCancellationGroup(cancellationGroup);
+            request.enqueue(scheduler, new RequestScheduler.Callback() {
+                @Override
+                public void onComplete(HttpCall call, int responseCode) {
+                    finished(index, responseCode);
+                }
+            });
+        }
+        return this;
+    }
+
+    /***
+     * Aborts the running requests of the batch and fails the queued ones, which complete with a 0
+     * response code so the summary is still delivered.
+     */
+    public void cancel() {
+        cancellationGroup.cancel();
+    }
+
+    /***
+     * Blocks until every request of the batch finished.
+     */
+    public Summary await() throws InterruptedException {
+        completion.await();
+        return summary;
+    }
+
+    /***
+     * Blocks until every request of the batch finished or the timeout expires.
+     * @return The summary, or null on timeout.
+     */
+    public Summary await(long timeout, TimeUnit unit) throws InterruptedException {
+        return completion.await(timeout, unit) ? summary : null;
+    }
+
+    private void finished(int index, int responseCode) {
+        List<Integer> deliverable = new ArrayList<>();
+        boolean last;
+        synchronized (this) {
+            responseCodes[index] = responseCode;
+            finished[index] = true;
+            if (ordered) {
+                while (nextDelivery < finished.length && finished[nextDelivery])
+                    deliverable.add(nextDelivery++);
+            } else {
+                deliverable.add(index);
+            }
+            last = --remaining == 0;
+        }
+        for (Integer position : deliverable)
+            postResult(position);
+        if (last)
+            complete();
+    }
+
+    private void postResult(final int index) {
+        final Listener target = listener;
+        if (target == null)
+            return;
+        final int responseCode;
+        synchronized (this) {
+            responseCode = responseCodes[index];
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                target.onResult(index, requests.get(index), responseCode);
+            }
+        });
+    }
+
+    private void complete() {
+        synchronized (this) {
+            summary = new Summary(responseCodes.clone(), System.currentTimeMillis() - startTime);
+        }
+        if (scheduler != null)
+            scheduler.shutdown();
+        completion.countDown();
+        final Listener target = listener;
+        final Summary result = summary;
+        if (target != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    target.onComplete(result);
+                }
+            });
+        }
+    }
+}